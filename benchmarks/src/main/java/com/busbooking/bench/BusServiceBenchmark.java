@@ -0,0 +1,109 @@
+package com.busbooking.bench;
+
+import com.busbooking.core.BusService;
+import com.busbooking.exception.DuplicateCredentialsException;
+import com.busbooking.exception.SeatAlreadyBookedException;
+import com.busbooking.model.Schedule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// In-memory hot paths of BusService; storage is a no-op so only service cost is measured.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class BusServiceBenchmark {
+    private static final String NEW_ID = "9999999999";
+    private static final String NEW_PHONE = "99999999999";
+
+    @Param({Fixtures.DEFAULT, Fixtures.LARGE})
+    public String topology;
+
+    @Param({"0", "50", "100"})
+    public int occupancy;
+
+    // BookingMetrics latency sampling: one call in N is timed, 0 turns timing off.
+    @Param({"16", "0"})
+    public int latencySampling;
+
+    private BusService service;
+    private int[] probeRoutes;
+    private int[] probeDays;
+    private int[] probeTimes;
+    private int[] probeSeats;
+    private int probe;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Schedule schedule = Fixtures.schedule(topology);
+        service = new BusService(new Fixtures.NullStorage(), schedule);
+        service.getMetrics().setLatencySampling(latencySampling);
+        Fixtures.fill(service, occupancy);
+
+        java.util.Random random = new java.util.Random(42);
+        probeRoutes = new int[1024];
+        probeDays = new int[1024];
+        probeTimes = new int[1024];
+        probeSeats = new int[1024];
+        for (int i = 0; i < probeRoutes.length; i++) {
+            probeRoutes[i] = random.nextInt(schedule.getRouteCount());
+            probeDays[i] = random.nextInt(schedule.getDayCount());
+            probeTimes[i] = random.nextInt(schedule.getTimeCount());
+            probeSeats[i] = random.nextInt(schedule.getCapacity(probeRoutes[i], probeDays[i], probeTimes[i]));
+        }
+    }
+
+    // Successful booking (validation, duplicate check, state update) followed by its cancellation.
+    @Benchmark
+    public Object bookThenCancel() throws Exception {
+        service.bookSeat(0, 0, 0, 0, "Bench Passenger", NEW_ID, NEW_PHONE);
+        return service.cancelSeat(0, 0, 0, 0, NEW_ID, NEW_PHONE);
+    }
+
+    // Booking rejected by the duplicate-credential check.
+    @Benchmark
+    public Object bookSeatDuplicate() throws Exception {
+        try {
+            return service.bookSeat(0, 0, 0, 0, "Bench Passenger", Fixtures.id(0), NEW_PHONE);
+        } catch (DuplicateCredentialsException expected) {
+            return expected;
+        }
+    }
+
+    // Booking rejected because the seat is taken (passenger 0 sits on the first booked seat).
+    @Benchmark
+    public Object bookSeatTaken() throws Exception {
+        try {
+            return service.bookSeat(0, 0, 0, 1, "Bench Passenger", NEW_ID, NEW_PHONE);
+        } catch (SeatAlreadyBookedException expected) {
+            return expected;
+        }
+    }
+
+    @Benchmark
+    public boolean isBooked() throws Exception {
+        int i = probe++ & 1023;
+        return service.isBooked(probeRoutes[i], probeDays[i], probeTimes[i], probeSeats[i]);
+    }
+
+    @Benchmark
+    public void getSeat(Blackhole bh) throws Exception {
+        int i = probe++ & 1023;
+        bh.consume(service.getSeat(probeRoutes[i], probeDays[i], probeTimes[i], probeSeats[i]));
+    }
+}
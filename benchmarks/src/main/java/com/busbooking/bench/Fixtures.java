@@ -0,0 +1,95 @@
+package com.busbooking.bench;
+
+import com.busbooking.core.AbstractBusService;
+import com.busbooking.core.Storage;
+import com.busbooking.model.Schedule;
+
+// Shared topologies and fill helpers for the benchmarks.
+final class Fixtures {
+    static final String DEFAULT = "default";
+    static final String LARGE = "large";
+
+    private Fixtures() {
+    }
+
+    // "default" is the 8x3x10x40 network; "large" is 200 routes x 7 days x 16 slots x 48 seats (~10^6 seat-trips).
+    static Schedule schedule(String topology) {
+        if (DEFAULT.equals(topology)) {
+            return Schedule.defaultSchedule();
+        }
+        String[] routes = new String[200];
+        for (int i = 0; i < routes.length; i++) {
+            routes[i] = "Route " + i;
+        }
+        String[] days = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+        String[] times = new String[16];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = String.format("%02d:00", 6 + i);
+        }
+        return new Schedule(routes, days, times, 48);
+    }
+
+    interface BookingSink {
+        void book(int r, int d, int t, int s, String name, String id, String phone) throws Exception;
+    }
+
+    // Books roughly occupancyPercent of all seats, spread evenly, skipping seat 0 of
+    // the first trip so benchmarks always have one free seat to work with. At least
+    // one booking (passenger 0 on seat 1 of the first trip) always exists for probes.
+    static void fill(Schedule schedule, int occupancyPercent, BookingSink sink) throws Exception {
+        int n = 0;
+        for (int r = 0; r < schedule.getRouteCount(); r++) {
+            for (int d = 0; d < schedule.getDayCount(); d++) {
+                for (int t = 0; t < schedule.getTimeCount(); t++) {
+                    int capacity = schedule.getCapacity(r, d, t);
+                    for (int s = 0; s < capacity; s++) {
+                        if (r == 0 && d == 0 && t == 0 && s == 0) continue;
+                        if (n == 0 || (s * 100 / capacity) < occupancyPercent) {
+                            sink.book(r, d, t, s, "Passenger " + n, id(n), phone(n));
+                            n++;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static void fill(AbstractBusService service, int occupancyPercent) throws Exception {
+        fill(service.getSchedule(), occupancyPercent, service::bookSeat);
+    }
+
+    static Storage.BusServiceState filledState(Schedule schedule, int occupancyPercent) throws Exception {
+        Storage.BusServiceState state = new Storage.BusServiceState(schedule);
+        fill(schedule, occupancyPercent, state::book);
+        return state;
+    }
+
+    static String id(int n) {
+        return pad(n, 10);
+    }
+
+    static String phone(int n) {
+        return pad(n, 11);
+    }
+
+    private static String pad(long value, int digits) {
+        String s = Long.toString(value);
+        StringBuilder out = new StringBuilder(digits);
+        for (int i = s.length(); i < digits; i++) {
+            out.append('0');
+        }
+        return out.append(s).toString();
+    }
+
+    // Keeps I/O out of service benchmarks.
+    static final class NullStorage implements Storage {
+        @Override
+        public void save(BusServiceState state) {
+        }
+
+        @Override
+        public BusServiceState load(Schedule schedule) {
+            return null;
+        }
+    }
+}
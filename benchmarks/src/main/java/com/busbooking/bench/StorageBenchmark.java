@@ -0,0 +1,70 @@
+package com.busbooking.bench;
+
+import com.busbooking.core.BinaryStorage;
+import com.busbooking.core.FileStorage;
+import com.busbooking.core.Storage;
+import com.busbooking.model.Schedule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+// Full snapshot save/load for the text and binary storages.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class StorageBenchmark {
+    @Param({Fixtures.DEFAULT, Fixtures.LARGE})
+    public String topology;
+
+    @Param({"0", "50", "100"})
+    public int occupancy;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private Schedule schedule;
+    private Storage storage;
+    private Storage.BusServiceState state;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        schedule = Fixtures.schedule(topology);
+        file = File.createTempFile("bookings-bench", "text".equals(format) ? ".txt" : ".bin");
+        storage = "text".equals(format) ? new FileStorage(file.getPath()) : new BinaryStorage(file.getPath());
+
+        state = Fixtures.filledState(schedule, occupancy);
+        storage.save(state);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public void save() throws Exception {
+        storage.save(state);
+    }
+
+    @Benchmark
+    public Storage.BusServiceState load() throws Exception {
+        return storage.load(schedule);
+    }
+}
@@ -1,18 +1,124 @@
 package com.busbooking;
 
+import com.busbooking.api.BookingHttpServer;
+import com.busbooking.core.AbstractBusService;
 import com.busbooking.core.BusService;
+import com.busbooking.core.ConcurrentBusService;
+import com.busbooking.core.DurabilityPolicy;
 import com.busbooking.core.FileStorage;
+import com.busbooking.core.JournalStorage;
+import com.busbooking.core.OccupancyReport;
+import com.busbooking.core.Storage;
+import com.busbooking.model.Schedule;
+import com.busbooking.replication.FollowerBusService;
+import com.busbooking.replication.ReplicationLeader;
 import com.busbooking.ui.BusBookingApp;
 
+import javax.management.JMException;
+import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 public class Main {
-    public static void main(String[] args) {
+    // Usage: Main [schedule file]
+    //        Main --server [port] [schedule file]
+    //        Main --leader <replication port> [http port] [schedule file]
+    //        Main --follower <host:replication port> [http port]
+    //        Main --report <bookings file> [schedule file]     occupancy CSV on stdout, with the
+    //                                                          file's journal applied; run it offline
+    //        Main --verify <bookings file>                     checks a FileStorage file's checksums
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[0].equals("--verify")) {
+            FileStorage.Verification result = new FileStorage(args[1]).verify();
+            System.out.println(args[1] + ": " + (result.isClean() ? "ok" : "damaged") + ", " + result);
+            System.exit(result.isClean() ? 0 : 1);
+        }
+        if (args.length > 1 && args[0].equals("--report")) {
+            Schedule schedule = args.length > 2 ? Schedule.load(args[2]) : Schedule.defaultSchedule();
+            // Through the journal too: the snapshot alone misses everything since the last compaction
+            Storage storage = openStorage(args[1]);
+            Storage.BusServiceState state;
+            try {
+                state = storage.load(schedule);
+            } finally {
+                storage.close();
+            }
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            OccupancyReport.of(state).writeCsv(out);
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--leader")) {
+            ReplicationLeader leader = new ReplicationLeader(Integer.parseInt(args[1]));
+            int port = args.length > 2 ? Integer.parseInt(args[2]) : 8080;
+            Schedule schedule = args.length > 3 ? Schedule.load(args[3]) : Schedule.defaultSchedule();
+            ConcurrentBusService service = new ConcurrentBusService(leader.wrap(openStorage()), schedule, DurabilityPolicy.groupCommit(256, 5));
+            registerMetrics(service);
+            leader.start(service);
+            BookingHttpServer server = new BookingHttpServer(service, port);
+            server.start();
+            System.out.println("Replication leader on port " + leader.getPort() + ", booking API on port " + server.getPort());
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--follower")) {
+            int colon = args[1].lastIndexOf(':');
+            FollowerBusService service = FollowerBusService.connect(args[1].substring(0, colon), Integer.parseInt(args[1].substring(colon + 1)));
+            registerMetrics(service);
+            if (args.length > 2) {
+                BookingHttpServer server = new BookingHttpServer(service, Integer.parseInt(args[2]));
+                server.start();
+                System.out.println("Follower of " + args[1] + ", booking API on port " + server.getPort());
+            } else {
+                SwingUtilities.invokeLater(() -> new BusBookingApp(service).setVisible(true));
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            Schedule schedule = args.length > 2 ? Schedule.load(args[2]) : Schedule.defaultSchedule();
+            ConcurrentBusService service = new ConcurrentBusService(openStorage(), schedule, DurabilityPolicy.groupCommit(256, 5));
+            registerMetrics(service);
+            BookingHttpServer server = new BookingHttpServer(service, port);
+            server.start();
+            System.out.println("Booking API listening on port " + server.getPort());
+            return;
+        }
+        // Optional first argument: schedule file (see Schedule for the format)
+        Schedule schedule = args.length > 0 ? Schedule.load(args[0]) : Schedule.defaultSchedule();
         SwingUtilities.invokeLater(() -> {
-            BusService service = new BusService(new FileStorage("bus_booking_details.txt"));
+            BusService service;
+            try {
+                service = new BusService(openStorage(), schedule);
+            } catch (IllegalStateException e) {
+                // Bookings that failed to load must not be overwritten by an empty service
+                JOptionPane.showMessageDialog(null, e.getMessage(), "Cannot start", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
+                return;
+            }
+            registerMetrics(service);
             BusBookingApp app = new BusBookingApp(service);
             app.setVisible(true);
         });
     }
-}
 
+    // Publishes the service's metrics over JMX; monitoring is optional, so failures are only logged.
+    private static void registerMetrics(AbstractBusService service) {
+        try {
+            service.getMetrics().registerMBean("bookings");
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e);
+        }
+    }
+
+    private static Storage openStorage() {
+        return openStorage("bus_booking_details.txt");
+    }
+
+    // A bookings file and its journal, named after it: bookings.txt pairs with bookings.journal.
+    private static Storage openStorage(String bookingsFile) {
+        String base = bookingsFile.endsWith(".txt") ? bookingsFile.substring(0, bookingsFile.length() - 4) : bookingsFile;
+        return new JournalStorage(new FileStorage(bookingsFile), base + ".journal");
+    }
+}
@@ -0,0 +1,355 @@
+package com.busbooking.api;
+
+import com.busbooking.core.AbstractBusService;
+import com.busbooking.core.OccupancyStats;
+import com.busbooking.exception.DuplicateCredentialsException;
+import com.busbooking.exception.InvalidCredentialsException;
+import com.busbooking.exception.InvalidSelectionException;
+import com.busbooking.exception.MissingCredentialsException;
+import com.busbooking.exception.SeatAlreadyBookedException;
+import com.busbooking.exception.WaitlistFullException;
+import com.busbooking.model.SeatRequest;
+import com.busbooking.model.TripSnapshot;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Headless JSON API over an AbstractBusService:
+//   GET  /schedule                             route, day and time-slot names
+//   GET  /trip?route=&day=&time=               capacity, free seats and booked flags
+//   GET  /occupancy?route=&day=                free seats per time slot
+//   POST /book    route, day, time, seat, name, id, phone (form encoded)
+//   POST /cancel  route, day, time, seat, id, phone (form encoded)
+//   GET  /bookings?id=&phone=                  a passenger's booking, given both credentials
+//   POST /cancelBooking  id, phone (form encoded)          cancel without the seat
+//   GET  /waitlist?route=&day=&time=           number of passengers waiting for the trip
+//   POST /joinWaitlist   route, day, time, name, id, phone (form encoded), full trips only
+//   POST /leaveWaitlist  route, day, time, id, phone (form encoded)
+//   GET  /analytics[?route=&day=]              booked seats and load factors, peak time slot
+//   GET  /report.csv                           every occupancy aggregate as CSV, streamed
+//   GET  /metrics                              BookingMetrics text dump (text/plain)
+// Seat numbers are 0-based. Book/cancel respond once the change is durable.
+public class BookingHttpServer {
+    private final AbstractBusService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public BookingHttpServer(AbstractBusService service, int port) throws IOException {
+        this.service = service;
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/schedule", handler("GET", this::schedule));
+        server.createContext("/trip", handler("GET", this::trip));
+        server.createContext("/occupancy", handler("GET", this::occupancy));
+        server.createContext("/book", handler("POST", this::book));
+        server.createContext("/cancel", handler("POST", this::cancel));
+        server.createContext("/bookings", handler("GET", this::bookings));
+        server.createContext("/cancelBooking", handler("POST", this::cancelBooking));
+        server.createContext("/waitlist", handler("GET", this::waitlist));
+        server.createContext("/joinWaitlist", handler("POST", this::joinWaitlist));
+        server.createContext("/leaveWaitlist", handler("POST", this::leaveWaitlist));
+        server.createContext("/analytics", handler("GET", this::analytics));
+        server.createContext("/report.csv", this::report);
+        server.createContext("/metrics", exchange -> send(exchange, 200, "text/plain; charset=utf-8", service.getMetrics().dump()));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // One virtual thread per request on JDK 21+; a bounded platform pool otherwise.
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Math.max(16, Runtime.getRuntime().availableProcessors() * 8));
+        }
+    }
+
+    private interface Endpoint {
+        String handle(Map<String, String> params) throws Exception;
+    }
+
+    private static final class HttpError extends Exception {
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private HttpHandler handler(String method, Endpoint endpoint) {
+        return exchange -> {
+            int status = 200;
+            String body;
+            try {
+                if (!method.equals(exchange.getRequestMethod())) {
+                    throw new HttpError(405, "Use " + method);
+                }
+                Map<String, String> params = parseForm(exchange.getRequestURI().getRawQuery());
+                if ("POST".equals(method)) {
+                    params.putAll(parseForm(readBody(exchange)));
+                }
+                body = endpoint.handle(params);
+            } catch (HttpError e) {
+                status = e.status;
+                body = error(e.getMessage());
+            } catch (InvalidSelectionException | MissingCredentialsException e) {
+                status = 400;
+                body = error(e.getMessage());
+            } catch (InvalidCredentialsException e) {
+                status = 403;
+                body = error(e.getMessage());
+            } catch (SeatAlreadyBookedException | DuplicateCredentialsException | WaitlistFullException e) {
+                status = 409;
+                body = error(e.getMessage());
+            } catch (CompletionException e) {
+                status = 500;
+                body = error("Could not save booking data: " + e.getCause());
+            } catch (Exception e) {
+                status = 500;
+                body = error(String.valueOf(e));
+            }
+            send(exchange, status, body);
+        };
+    }
+
+    private String schedule(Map<String, String> params) {
+        return "{\"routes\":" + jsonArray(service.getRouteNames()) +
+                ",\"days\":" + jsonArray(service.getDayNames()) +
+                ",\"times\":" + jsonArray(service.getTimeSlots()) + "}";
+    }
+
+    private String trip(Map<String, String> params) throws Exception {
+        int r = intParam(params, "route");
+        int d = intParam(params, "day");
+        int t = intParam(params, "time");
+        TripSnapshot snapshot = service.getTripSnapshot(r, d, t);
+        int capacity = snapshot.getCapacity();
+        StringBuilder seats = new StringBuilder("[");
+        for (int s = 0; s < capacity; s++) {
+            if (s > 0) seats.append(',');
+            seats.append(snapshot.isBooked(s));
+        }
+        seats.append(']');
+        return "{\"version\":" + snapshot.getVersion() + ",\"capacity\":" + capacity +
+                ",\"free\":" + (capacity - snapshot.getBookedCount()) + ",\"booked\":" + seats + "}";
+    }
+
+    private String occupancy(Map<String, String> params) throws Exception {
+        int r = intParam(params, "route");
+        int d = intParam(params, "day");
+        StringBuilder free = new StringBuilder("[");
+        for (int t = 0; t < service.getTimeSlots().length; t++) {
+            if (t > 0) free.append(',');
+            free.append(service.getFreeSeatCount(r, d, t));
+        }
+        free.append(']');
+        return "{\"free\":" + free + "}";
+    }
+
+    // Only the count: the list itself holds other passengers' details.
+    private String waitlist(Map<String, String> params) throws Exception {
+        int waiting = service.getWaitlist(intParam(params, "route"), intParam(params, "day"), intParam(params, "time")).size();
+        return "{\"waiting\":" + waiting + ",\"limit\":" + service.getWaitlistLimit() + "}";
+    }
+
+    private String joinWaitlist(Map<String, String> params) throws Exception {
+        service.joinWaitlist(intParam(params, "route"), intParam(params, "day"), intParam(params, "time"),
+                params.get("name"), params.get("id"), params.get("phone")).join();
+        return "{\"status\":\"waiting\"}";
+    }
+
+    private String leaveWaitlist(Map<String, String> params) throws Exception {
+        service.leaveWaitlist(intParam(params, "route"), intParam(params, "day"), intParam(params, "time"),
+                params.get("id"), params.get("phone")).join();
+        return "{\"status\":\"left\"}";
+    }
+
+    // Network-wide figures with one entry per route, day and time slot, or the time slots
+    // of one route and day; all read from the live aggregates.
+    private String analytics(Map<String, String> params) throws Exception {
+        OccupancyStats stats = service.getOccupancyStats();
+        if (params.containsKey("route") || params.containsKey("day")) {
+            int r = intParam(params, "route");
+            int d = intParam(params, "day");
+            StringBuilder times = new StringBuilder("[");
+            for (int t = 0; t < service.getTimeSlots().length; t++) {
+                int capacity = service.getCapacity(r, d, t); // validates the route and day
+                if (t > 0) times.append(',');
+                times.append('{').append(load(stats.getBooked(r, d, t), capacity)).append('}');
+            }
+            times.append(']');
+            return "{" + load(stats.getBooked(r, d), stats.getCapacity(r, d)) +
+                    ",\"peakTime\":" + stats.getPeakTime(r, d) + ",\"times\":" + times + "}";
+        }
+        StringBuilder out = new StringBuilder("{").append(load(stats.getBooked(), stats.getCapacity()))
+                .append(",\"peakTime\":").append(stats.getPeakTime()).append(",\"routes\":[");
+        for (int r = 0; r < service.getRouteNames().length; r++) {
+            if (r > 0) out.append(',');
+            out.append('{').append(load(stats.getRouteBooked(r), stats.getRouteCapacity(r))).append('}');
+        }
+        out.append("],\"days\":[");
+        for (int d = 0; d < service.getDayNames().length; d++) {
+            if (d > 0) out.append(',');
+            out.append('{').append(load(stats.getDayBooked(d), stats.getDayCapacity(d))).append('}');
+        }
+        out.append("],\"times\":[");
+        for (int t = 0; t < service.getTimeSlots().length; t++) {
+            if (t > 0) out.append(',');
+            out.append('{').append(load(stats.getTimeBooked(t), stats.getTimeCapacity(t))).append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    private static String load(int booked, int capacity) {
+        return "\"booked\":" + booked + ",\"capacity\":" + capacity + ",\"loadFactor\":" + (double) booked / capacity;
+    }
+
+    // Chunked response written straight from the aggregates; nothing is built in memory.
+    private void report(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            send(exchange, 405, error("Use GET"));
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+            service.getOccupancyStats().writeCsv(out);
+        }
+    }
+
+    private String book(Map<String, String> params) throws Exception {
+        service.bookSeat(intParam(params, "route"), intParam(params, "day"), intParam(params, "time"),
+                intParam(params, "seat"), params.get("name"), params.get("id"), params.get("phone")).join();
+        return "{\"status\":\"booked\"}";
+    }
+
+    private String cancel(Map<String, String> params) throws Exception {
+        service.cancelSeat(intParam(params, "route"), intParam(params, "day"), intParam(params, "time"),
+                intParam(params, "seat"), params.get("id"), params.get("phone")).join();
+        return "{\"status\":\"cancelled\"}";
+    }
+
+    // Both credentials are required, as for cancel: either one alone would hand out the
+    // passenger's name and the other credential. Prefix search stays off the API.
+    private String bookings(Map<String, String> params) throws Exception {
+        if (!params.containsKey("id") || !params.containsKey("phone")) {
+            throw new HttpError(400, "Missing parameter 'id' or 'phone'");
+        }
+        SeatRequest booking = service.findBooking(params.get("id"), params.get("phone"));
+        StringBuilder out = new StringBuilder("{\"bookings\":[");
+        if (booking != null) {
+            out.append("{\"route\":").append(booking.getRouteIndex())
+                    .append(",\"day\":").append(booking.getDayIndex())
+                    .append(",\"time\":").append(booking.getTimeIndex())
+                    .append(",\"seat\":").append(booking.getSeatIndex())
+                    .append(",\"name\":").append(jsonString(booking.getPassenger().getName()))
+                    .append(",\"phone\":").append(jsonString(booking.getPassenger().getPhone()))
+                    .append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    private String cancelBooking(Map<String, String> params) throws Exception {
+        service.cancelBooking(params.get("id"), params.get("phone")).join();
+        return "{\"status\":\"cancelled\"}";
+    }
+
+    private static int intParam(Map<String, String> params, String name) throws HttpError {
+        String value = params.get(name);
+        if (value == null) {
+            throw new HttpError(400, "Missing parameter '" + name + "'");
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "Parameter '" + name + "' must be a number");
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Map<String, String> parseForm(String raw) {
+        Map<String, String> params = new HashMap<>();
+        if (raw == null || raw.isEmpty()) return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        send(exchange, status, "application/json; charset=utf-8", body);
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + jsonString(String.valueOf(message)) + "}";
+    }
+
+    private static String jsonArray(String[] values) {
+        StringBuilder out = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) out.append(',');
+            out.append(jsonString(values[i]));
+        }
+        return out.append(']').toString();
+    }
+
+    static String jsonString(String s) {
+        StringBuilder out = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+}
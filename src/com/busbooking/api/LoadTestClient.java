@@ -0,0 +1,111 @@
+package com.busbooking.api;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives a BookingHttpServer with a mix of trip views (1 in 4) and bookings, keeping
+// a fixed number of requests in flight, then prints throughput, status counts and
+// latency percentiles.
+//   java com.busbooking.api.LoadTestClient [base url] [requests] [concurrency]
+public class LoadTestClient {
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        String schedule = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/schedule")).build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        int routes = count(schedule, "routes");
+        int days = count(schedule, "days");
+        int times = count(schedule, "times");
+
+        long idBase = ThreadLocalRandom.current().nextLong(1_000_000_000L, 8_000_000_000L);
+        Semaphore inFlight = new Semaphore(concurrency);
+        long[] latencies = new long[requests];
+        AtomicInteger completed = new AtomicInteger();
+        AtomicLong failures = new AtomicLong();
+        Map<Integer, AtomicInteger> statuses = new ConcurrentHashMap<>();
+        CompletableFuture<?>[] all = new CompletableFuture<?>[requests];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String trip = "route=" + random.nextInt(routes) + "&day=" + random.nextInt(days) + "&time=" + random.nextInt(times);
+            HttpRequest request;
+            if (random.nextInt(4) == 0) {
+                request = HttpRequest.newBuilder(URI.create(baseUrl + "/trip?" + trip)).build();
+            } else {
+                long id = idBase + i;
+                String form = trip + "&seat=" + random.nextInt(40) + "&name=Load+Test&id=" + id + "&phone=0" + id;
+                request = HttpRequest.newBuilder(URI.create(baseUrl + "/book"))
+                        .header("Content-Type", "application/x-www-form-urlencoded")
+                        .POST(HttpRequest.BodyPublishers.ofString(form))
+                        .build();
+            }
+            inFlight.acquire();
+            int slot = i;
+            long sent = System.nanoTime();
+            all[i] = client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> {
+                        latencies[slot] = System.nanoTime() - sent;
+                        if (error != null) {
+                            failures.incrementAndGet();
+                        } else {
+                            statuses.computeIfAbsent(response.statusCode(), k -> new AtomicInteger()).incrementAndGet();
+                        }
+                        completed.incrementAndGet();
+                        inFlight.release();
+                    });
+        }
+        CompletableFuture.allOf(all).exceptionally(e -> null).join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf("requests: %d in %.2f s (%.0f req/s), concurrency %d%n", completed.get(), seconds, completed.get() / seconds, concurrency);
+        System.out.println("statuses: " + new TreeMap<>(statuses) + ", transport failures: " + failures.get());
+        for (double p : List.of(50.0, 90.0, 99.0, 99.9)) {
+            System.out.printf("p%-5s %8.2f ms%n", p, percentile(latencies, p) / 1e6);
+        }
+        System.out.printf("max    %8.2f ms%n", latencies[latencies.length - 1] / 1e6);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    // Number of entries in a top-level string array of the /schedule response.
+    private static int count(String json, String key) {
+        int start = json.indexOf('[', json.indexOf("\"" + key + "\""));
+        int end = json.indexOf(']', start);
+        String body = json.substring(start + 1, end).trim();
+        if (body.isEmpty()) return 0;
+        int entries = 1;
+        boolean inString = false;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                inString = !inString;
+            } else if (c == ',' && !inString) {
+                entries++;
+            }
+        }
+        return entries;
+    }
+}
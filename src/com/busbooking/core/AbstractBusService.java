@@ -5,26 +5,730 @@ import com.busbooking.exception.InvalidCredentialsException;
 import com.busbooking.exception.InvalidSelectionException;
 import com.busbooking.exception.MissingCredentialsException;
 import com.busbooking.exception.SeatAlreadyBookedException;
+import com.busbooking.exception.WaitlistFullException;
+import com.busbooking.model.Passenger;
+import com.busbooking.model.Schedule;
 import com.busbooking.model.Seat;
+import com.busbooking.model.SeatChange;
+import com.busbooking.model.SeatRequest;
+import com.busbooking.model.TripSnapshot;
 
-public abstract class AbstractBusService {
-    public static final int MAX_ROUTES = 8;
-    public static final int MAX_DAYS = 3;
-    public static final int MAX_TIMES = 10;
-    public static final int MAX_SEATS = 40;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
-    public abstract String[] getRouteNames();
-    public abstract String[] getDayNames();
-    public abstract String[] getTimeSlots();
+public abstract class AbstractBusService implements AutoCloseable {
+    // Seats come in pairs across the 2+2 layout: (0,1), (2,3), (4,5), ...
+    private static final long PAIR_LEFT_SEATS = 0x5555555555555555L;
+    private static final int SEATS_PER_ROW = 4;
+    private static final int DEFAULT_WAITLIST_LIMIT = 20;
+    private static final int ADJACENT_ATTEMPTS = 3;
 
+    // Rough heap costs behind estimateMemoryBytes, for a 64-bit JVM with compressed oops
+    private static final int BYTES_PER_TRIP = 64; // bitmaps, row and snapshot slots, hold bits, counts
+    private static final int BYTES_PER_BOOKED_TRIP = 96; // row and snapshot headers
+    private static final int BYTES_PER_SEAT = 24; // name slot, id and phone, snapshot slot
+    private static final int BYTES_PER_BOOKING = 200; // passenger strings and index entries
+    private static final int BYTES_PER_WAITING = 128;
+
+    protected static final int ID_DIGITS = 10;
+    protected static final int PHONE_DIGITS = 11;
+
+    protected final Schedule schedule;
+    final SeatHolds holds;
+    protected final BookingMetrics metrics = new BookingMetrics();
+    private final OccupancyStats occupancyStats;
+
+    // Each subscriber gets its own bounded buffer; a full buffer drops the event for
+    // that subscriber instead of stalling the booking thread.
+    private final SubmissionPublisher<SeatChange> seatChanges = new SubmissionPublisher<>();
+    private final LongAdder droppedSeatChanges = new LongAdder();
+
+    // Latest immutable view of each trip, replaced copy-on-write by every booking and
+    // cancellation; null for trips that have had no bookings.
+    private final AtomicReferenceArray<TripSnapshot> tripSnapshots;
+
+    // Canonical ID / phone of every booked passenger -> packed seat index, kept next to
+    // the snapshots. Memory grows with bookings, not with the schedule.
+    final ConcurrentLongIndex bookedIds = new ConcurrentLongIndex();
+    final ConcurrentLongIndex bookedPhones = new ConcurrentLongIndex();
+
+    // Canonical ID / phone of every waiting passenger -> trip index. A passenger waits for
+    // at most one trip at a time.
+    final ConcurrentLongIndex waitlistedIds = new ConcurrentLongIndex();
+    final ConcurrentLongIndex waitlistedPhones = new ConcurrentLongIndex();
+    private volatile int waitlistLimit = DEFAULT_WAITLIST_LIMIT;
+
+    protected AbstractBusService(Schedule schedule) {
+        this.schedule = schedule;
+        this.holds = new SeatHolds(schedule);
+        this.tripSnapshots = new AtomicReferenceArray<>(schedule.getTripCount());
+        this.occupancyStats = new OccupancyStats(schedule);
+    }
+
+    public Schedule getSchedule() {
+        return schedule;
+    }
+
+    public String[] getRouteNames() {
+        return schedule.getRouteNames();
+    }
+
+    public String[] getDayNames() {
+        return schedule.getDayNames();
+    }
+
+    public String[] getTimeSlots() {
+        return schedule.getTimeSlots();
+    }
+
+    public int getCapacity(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        return schedule.getCapacity(routeIndex, dayIndex, timeIndex);
+    }
+
+    // True while the seat is booked or on hold, i.e. whenever bookSeat would refuse it.
     public abstract boolean isBooked(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException;
-    public abstract Seat getSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException;
 
-    public abstract void bookSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone)
+    // A detached copy taken from the trip's current snapshot, so it never shows a
+    // half-written booking and changing it doesn't touch the service.
+    public Seat getSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        return tripSnapshot(routeIndex, dayIndex, timeIndex).getSeat(seatIndex);
+    }
+
+    // Consistent view of a whole trip, read without locking while bookings go on.
+    public TripSnapshot getTripSnapshot(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        return tripSnapshot(routeIndex, dayIndex, timeIndex);
+    }
+
+    // Passenger lookups go through the ID/phone index instead of scanning the schedule.
+    // IDs and phones are unique across bookings, so each matches at most one seat; the
+    // result is the seat and its passenger, or null.
+    public SeatRequest findBookingById(String id) {
+        return bookingAt(bookedIds.get(parseDigits(id, ID_DIGITS)), parseDigits(id, ID_DIGITS), -1);
+    }
+
+    public SeatRequest findBookingByPhone(String phone) {
+        return bookingAt(bookedPhones.get(parseDigits(phone, PHONE_DIGITS)), -1, parseDigits(phone, PHONE_DIGITS));
+    }
+
+    // The booking held under both credentials, or null; what to show a passenger who
+    // proves who they are, since the single-credential lookups above reveal the other one.
+    public SeatRequest findBooking(String id, String phone) {
+        long idKey = parseDigits(id, ID_DIGITS);
+        long phoneKey = parseDigits(phone, PHONE_DIGITS);
+        if (idKey < 0 || phoneKey < 0) return null;
+        return bookingAt(bookedIds.get(idKey), idKey, phoneKey);
+    }
+
+    // Cancels the passenger's booking without knowing the seat. The seat is looked up by
+    // ID, then cancelled by doCancelBooking, which checks under the trip's lock that it is
+    // still booked under both credentials, so a seat freed in between is not reported as
+    // cancelled.
+    public CompletableFuture<Void> cancelBooking(String id, String phone) throws InvalidCredentialsException {
+        SeatRequest booking = findBooking(id, phone);
+        if (booking == null) {
+            throw new InvalidCredentialsException("No booking matches these credentials");
+        }
+        long start = metrics.start();
+        try {
+            CompletableFuture<Void> done = doCancelBooking(booking.getRouteIndex(), booking.getDayIndex(), booking.getTimeIndex(),
+                    booking.getSeatIndex(), id, phone);
+            metrics.cancellations.increment();
+            metrics.cancelLatency.recordSince(start);
+            return done;
+        } catch (InvalidSelectionException e) {
+            throw new IllegalStateException(e); // coordinates come from the service's own schedule
+        } catch (Exception e) {
+            metrics.reject(e);
+            throw e;
+        }
+    }
+
+    // Resolves an index hit against the trip's snapshot; null if the seat has since been
+    // cancelled or rebooked by someone else. Pass -1 for a credential not being matched.
+    private SeatRequest bookingAt(int packed, long idKey, long phoneKey) {
+        if (packed < 0) return null;
+        int trip = packed / Schedule.MAX_CAPACITY;
+        int seat = packed % Schedule.MAX_CAPACITY;
+        int times = schedule.getTimeCount();
+        int days = schedule.getDayCount();
+        TripSnapshot snapshot = tripSnapshot(trip / (days * times), trip / times % days, trip % times);
+        if (!snapshot.isBooked(seat)) return null;
+        if (idKey >= 0 && parseDigits(snapshot.getId(seat), ID_DIGITS) != idKey) return null;
+        if (phoneKey >= 0 && parseDigits(snapshot.getPhone(seat), PHONE_DIGITS) != phoneKey) return null;
+        return new SeatRequest(snapshot.getRouteIndex(), snapshot.getDayIndex(), snapshot.getTimeIndex(), seat, snapshot.getPassenger(seat));
+    }
+
+    public BookingMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Booked seats and load factors by route, day, time slot and trip, kept up to date by
+    // every booking and cancellation.
+    public OccupancyStats getOccupancyStats() {
+        return occupancyStats;
+    }
+
+    // The returned future completes once the booking is durable under the service's DurabilityPolicy.
+    public CompletableFuture<Void> bookSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone)
+            throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        long start = metrics.start();
+        try {
+            CompletableFuture<Void> done = doBookSeat(routeIndex, dayIndex, timeIndex, seatIndex, name, id, phone);
+            metrics.bookings.increment();
+            metrics.bookLatency.recordSince(start);
+            return done;
+        } catch (Exception e) {
+            metrics.reject(e);
+            throw e;
+        }
+    }
+
+    public CompletableFuture<Void> cancelSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone) throws InvalidSelectionException, InvalidCredentialsException {
+        long start = metrics.start();
+        try {
+            CompletableFuture<Void> done = doCancelSeat(routeIndex, dayIndex, timeIndex, seatIndex, id, phone);
+            metrics.cancellations.increment();
+            metrics.cancelLatency.recordSince(start);
+            return done;
+        } catch (Exception e) {
+            metrics.reject(e);
+            throw e;
+        }
+    }
+
+    protected abstract CompletableFuture<Void> doBookSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone)
+            throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException;
+
+    protected abstract CompletableFuture<Void> doCancelSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone) throws InvalidSelectionException, InvalidCredentialsException;
+
+    // Like doCancelSeat, but fails with InvalidCredentialsException if the seat is no longer
+    // booked, where doCancelSeat treats an empty seat as already cancelled.
+    protected abstract CompletableFuture<Void> doCancelBooking(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone) throws InvalidSelectionException, InvalidCredentialsException;
+
+    // Keeps a free seat from being booked by anyone else for ttlMillis and returns the
+    // hold ID to pass to bookHeldSeat. Expired holds are dropped by a background thread.
+    public abstract long holdSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, long ttlMillis)
+            throws InvalidSelectionException, SeatAlreadyBookedException;
+
+    // Books the seat a hold is for, consuming the hold. If the credentials are rejected
+    // the hold stays in place; if it has expired this fails with SeatAlreadyBookedException.
+    public CompletableFuture<Void> bookHeldSeat(long holdId, String name, String id, String phone)
+            throws SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        long start = metrics.start();
+        try {
+            CompletableFuture<Void> done = doBookHeldSeat(holdId, name, id, phone);
+            metrics.bookings.increment();
+            metrics.bookLatency.recordSince(start);
+            return done;
+        } catch (Exception e) {
+            metrics.reject(e);
+            throw e;
+        }
+    }
+
+    protected abstract CompletableFuture<Void> doBookHeldSeat(long holdId, String name, String id, String phone)
+            throws SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException;
+
+    // Returns false if the hold had already expired or been used.
+    public boolean releaseHold(long holdId) {
+        return holds.release(holdId);
+    }
+
+    public boolean isHeld(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        return holds.isHeld(schedule.tripIndex(routeIndex, dayIndex, timeIndex), seatIndex);
+    }
+
+    // Bitmap of seats on hold on one trip; held seats are never also booked.
+    public long getHeldSeats(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        return holds.heldBits(schedule.tripIndex(routeIndex, dayIndex, timeIndex));
+    }
+
+    public int getHoldCount() {
+        return holds.size();
+    }
+
+    // Books every seat or none, on one trip or across trips; the seats are written to
+    // storage together. Fails the same way bookSeat does, and also when the request
+    // names a seat, ID or phone number more than once.
+    public abstract CompletableFuture<Void> bookSeats(List<SeatRequest> requests)
             throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException;
 
-    public abstract void cancelSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone) throws InvalidSelectionException, InvalidCredentialsException;
+    // Cancels every seat or none; each booked seat must match its passenger's ID and phone.
+    public abstract CompletableFuture<Void> cancelSeats(List<SeatRequest> requests) throws InvalidSelectionException, InvalidCredentialsException;
 
+    // Picks seats with findAdjacentSeats and books them as a group, looking again a few
+    // times if another booking takes one of them first. Completes with the booked seat indices.
+    public CompletableFuture<int[]> bookAdjacentSeats(int routeIndex, int dayIndex, int timeIndex, List<Passenger> passengers)
+            throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        for (int attempt = 1; ; attempt++) {
+            int start = findAdjacentSeats(routeIndex, dayIndex, timeIndex, passengers.size());
+            if (start < 0) {
+                throw new SeatAlreadyBookedException("Not enough adjacent seats available");
+            }
+            int[] seats = new int[passengers.size()];
+            List<SeatRequest> requests = new ArrayList<>(seats.length);
+            for (int i = 0; i < seats.length; i++) {
+                seats[i] = start + i;
+                requests.add(new SeatRequest(routeIndex, dayIndex, timeIndex, seats[i], passengers.get(i)));
+            }
+            try {
+                return bookSeats(requests).thenApply(ignored -> seats);
+            } catch (SeatAlreadyBookedException raced) {
+                // A service that can't see what took the seats would only pick them again
+                if (attempt == ADJACENT_ATTEMPTS || !seesAllHolds()) {
+                    throw raced;
+                }
+            }
+        }
+    }
+
+    // Whether getHeldSeats covers every hold on this service's trips, so that a search
+    // after a failed booking sees the seats that were taken.
+    protected boolean seesAllHolds() {
+        return true;
+    }
+
+    // Writes queued changes and then a full snapshot, blocking until done.
     public abstract void persist();
-}
 
+    // Receives every storage failure; by default they are logged to stderr.
+    public abstract void setPersistenceFailureHandler(Consumer<Throwable> handler);
+
+    // Stops the service's background threads once it is no longer used. Queued changes are
+    // written first, but no snapshot is taken; call persist() before if one is wanted.
+    @Override
+    public void close() {
+        holds.close();
+        seatChanges.close();
+    }
+
+    // Approximate heap held by the service's bookings: fixed per-trip arrays, seat columns
+    // and snapshots of trips that have had bookings, and each booked or waiting passenger.
+    // Walks the trips once, so callers budgeting many services should not call it per request.
+    public long estimateMemoryBytes() {
+        long bytes = (long) schedule.getTripCount() * BYTES_PER_TRIP;
+        for (int trip = 0; trip < schedule.getTripCount(); trip++) {
+            if (tripSnapshots.get(trip) != null) {
+                bytes += BYTES_PER_BOOKED_TRIP + (long) schedule.getCapacity(trip) * BYTES_PER_SEAT;
+            }
+        }
+        bytes += (long) occupancyStats.getBooked() * BYTES_PER_BOOKING;
+        bytes += (long) waitlistedIds.size() * BYTES_PER_WAITING;
+        return bytes;
+    }
+
+    // Bitmap of booked seats on one trip; bit s is set when seat s is booked.
+    public abstract long getOccupancy(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException;
+
+    // Queues a passenger for a full trip. When a booked seat on the trip is cancelled, it
+    // goes to the head of the queue in the same step, unless that passenger has booked
+    // elsewhere since joining. Completes once the entry is durable.
+    public abstract CompletableFuture<Void> joinWaitlist(int routeIndex, int dayIndex, int timeIndex, String name, String id, String phone)
+            throws InvalidSelectionException, MissingCredentialsException, DuplicateCredentialsException, WaitlistFullException;
+
+    public abstract CompletableFuture<Void> leaveWaitlist(int routeIndex, int dayIndex, int timeIndex, String id, String phone)
+            throws InvalidSelectionException, InvalidCredentialsException;
+
+    // The passengers waiting for the trip, next in line first.
+    public abstract List<Passenger> getWaitlist(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException;
+
+    // Most passengers a single trip's waitlist takes; bounds waitlist memory to limit x trips.
+    public int getWaitlistLimit() {
+        return waitlistLimit;
+    }
+
+    public void setWaitlistLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Waitlist limit must not be negative");
+        }
+        waitlistLimit = limit;
+    }
+
+    // Checks for joinWaitlist, with the trip's lock held and the passenger's waitlist
+    // claim made: the trip must be full, the passenger must not have a booking and the
+    // waitlist must have room.
+    protected void checkWaitlistJoin(int routeIndex, int dayIndex, int timeIndex, int waiting, long idKey, long phoneKey)
+            throws InvalidSelectionException, DuplicateCredentialsException, WaitlistFullException {
+        if (!isFull(routeIndex, dayIndex, timeIndex)) {
+            throw new InvalidSelectionException("Trip still has free seats");
+        }
+        if (bookedIds.containsKey(idKey)) {
+            throw new DuplicateCredentialsException("ID already exists in another booking");
+        }
+        if (bookedPhones.containsKey(phoneKey)) {
+            throw new DuplicateCredentialsException("Phone number already exists in another booking");
+        }
+        if (waiting >= waitlistLimit) {
+            throw new WaitlistFullException("Waitlist is full");
+        }
+    }
+
+    // Called with the trip's lock held, right after the seat was freed. Takes passengers
+    // off the head of the waitlist until one can have the seat and returns that passenger
+    // with their credentials claimed for it, or null if nobody can. Whoever has booked
+    // elsewhere since joining is dropped, as the ID/phone rules require; each dropped
+    // entry costs one step once, so promotion is O(1) amortized. Adds an UNWAITLIST
+    // mutation for everyone taken off.
+    Passenger takeFromWaitlist(Storage.BusServiceState state, int routeIndex, int dayIndex, int timeIndex, int seatIndex,
+                               List<Storage.Mutation> mutations) {
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        Waitlist waitlist = state.waitlist(trip);
+        int packed = packIndex(trip, seatIndex);
+        while (waitlist != null && waitlist.size() > 0) {
+            String name = waitlist.getName(0);
+            long idKey = waitlist.getId(0);
+            long phoneKey = waitlist.getPhone(0);
+            waitlist.removeFirst();
+            waitlistedIds.remove(idKey, trip);
+            waitlistedPhones.remove(phoneKey, trip);
+            String id = formatDigits(idKey, ID_DIGITS);
+            mutations.add(Storage.Mutation.unwaitlist(routeIndex, dayIndex, timeIndex, id));
+            if (phoneKey < 0 || !bookedIds.putIfAbsent(idKey, packed)) continue;
+            if (!bookedPhones.putIfAbsent(phoneKey, packed)) {
+                bookedIds.remove(idKey, packed);
+                continue;
+            }
+            return new Passenger(name, id, formatDigits(phoneKey, PHONE_DIGITS));
+        }
+        return null;
+    }
+
+    // Called with the trip's lock held: removes the passenger whose ID and phone both match.
+    protected void removeFromWaitlist(Storage.BusServiceState state, int trip, String id, String phone) throws InvalidCredentialsException {
+        Waitlist waitlist = state.waitlist(trip);
+        long idKey = parseDigits(id, ID_DIGITS);
+        int position = waitlist == null || idKey < 0 ? -1 : waitlist.indexOf(idKey);
+        if (position < 0 || waitlist.getPhone(position) != parseDigits(phone, PHONE_DIGITS)) {
+            throw new InvalidCredentialsException("No waitlist entry matches these credentials");
+        }
+        long phoneKey = waitlist.getPhone(position);
+        waitlist.remove(position);
+        waitlistedIds.remove(idKey, trip);
+        waitlistedPhones.remove(phoneKey, trip);
+    }
+
+    // Called with the trip's lock held.
+    protected List<Passenger> waitlistOf(Storage.BusServiceState state, int trip) {
+        List<Passenger> waiting = new ArrayList<>(state.getWaitlistSize(trip));
+        for (int i = 0; i < state.getWaitlistSize(trip); i++) {
+            waiting.add(new Passenger(state.getWaitlistName(trip, i), state.getWaitlistId(trip, i), state.getWaitlistPhone(trip, i)));
+        }
+        return waiting;
+    }
+
+    // Publishes a SeatChange for every booking and cancellation, in order per trip.
+    // Subscribers control their own demand; events they fall too far behind on are dropped,
+    // which they can detect from SeatChange.getOccupancy().
+    public Flow.Publisher<SeatChange> getSeatChanges() {
+        return seatChanges;
+    }
+
+    public long getDroppedSeatChangeCount() {
+        return droppedSeatChanges.sum();
+    }
+
+    // Publishing: call while holding whatever lock orders changes to the trip. The trip's
+    // snapshot is replaced first, then subscribers are notified; offer never blocks.
+    protected void publishBooked(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone) {
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        TripSnapshot current = tripSnapshot(routeIndex, dayIndex, timeIndex);
+        TripSnapshot next = current.withBooked(seatIndex, name, id, phone);
+        tripSnapshots.set(trip, next);
+        // A seat that changes hands (follower catch-up) is rebooked without a cancel
+        if (!current.isBooked(seatIndex)) occupancyStats.booked(trip);
+        int packed = packIndex(trip, seatIndex);
+        long idKey = parseDigits(id, ID_DIGITS);
+        if (idKey >= 0) bookedIds.put(idKey, packed);
+        long phoneKey = parseDigits(phone, PHONE_DIGITS);
+        if (phoneKey >= 0) bookedPhones.put(phoneKey, packed);
+        publishSeatChange(trip, seatIndex, true, name, next);
+    }
+
+    protected void publishCancelled(int routeIndex, int dayIndex, int timeIndex, int seatIndex) {
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        TripSnapshot current = tripSnapshot(routeIndex, dayIndex, timeIndex);
+        TripSnapshot next = current.withCancelled(seatIndex);
+        tripSnapshots.set(trip, next);
+        if (current.isBooked(seatIndex)) occupancyStats.cancelled(trip);
+        int packed = packIndex(trip, seatIndex);
+        bookedIds.remove(parseDigits(current.getId(seatIndex), ID_DIGITS), packed);
+        bookedPhones.remove(parseDigits(current.getPhone(seatIndex), PHONE_DIGITS), packed);
+        publishSeatChange(trip, seatIndex, false, "", next);
+    }
+
+    // Rebuilds every trip's snapshot, the passenger and waitlist indexes and the occupancy
+    // stats from loaded bookings; call before the service is shared.
+    protected void resetTripSnapshots(Storage.BusServiceState state) {
+        occupancyStats.reset(state.booked);
+        bookedIds.clear();
+        bookedPhones.clear();
+        waitlistedIds.clear();
+        waitlistedPhones.clear();
+        for (int r = 0; r < schedule.getRouteCount(); r++) {
+            for (int d = 0; d < schedule.getDayCount(); d++) {
+                for (int t = 0; t < schedule.getTimeCount(); t++) {
+                    int trip = schedule.tripIndex(r, d, t);
+                    Waitlist waitlist = state.waitlist(trip);
+                    for (int i = 0; waitlist != null && i < waitlist.size(); i++) {
+                        waitlistedIds.put(waitlist.getId(i), trip);
+                        if (waitlist.getPhone(i) >= 0) waitlistedPhones.put(waitlist.getPhone(i), trip);
+                    }
+                    long bits = state.booked[trip];
+                    if (bits == 0) {
+                        tripSnapshots.set(trip, null);
+                        continue;
+                    }
+                    Passenger[] passengers = new Passenger[schedule.getCapacity(trip)];
+                    while (bits != 0) {
+                        int s = Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                        passengers[s] = new Passenger(state.getName(trip, s), state.getId(trip, s), state.getPhone(trip, s));
+                        long id = state.getIdKey(trip, s);
+                        if (id >= 0) bookedIds.put(id, packIndex(trip, s));
+                        long phone = state.getPhoneKey(trip, s);
+                        if (phone >= 0) bookedPhones.put(phone, packIndex(trip, s));
+                    }
+                    tripSnapshots.set(trip, TripSnapshot.of(r, d, t, 0, state.booked[trip], passengers));
+                }
+            }
+        }
+    }
+
+    private TripSnapshot tripSnapshot(int routeIndex, int dayIndex, int timeIndex) {
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        TripSnapshot snapshot = tripSnapshots.get(trip);
+        // Never-booked trips aren't cached, so scanning a large schedule doesn't fill the array.
+        return snapshot != null ? snapshot : TripSnapshot.empty(routeIndex, dayIndex, timeIndex, schedule.getCapacity(trip));
+    }
+
+    private void publishSeatChange(int trip, int seatIndex, boolean booked, String name, TripSnapshot snapshot) {
+        if (!seatChanges.hasSubscribers()) return;
+        seatChanges.offer(new SeatChange(snapshot.getRouteIndex(), snapshot.getDayIndex(), snapshot.getTimeIndex(), trip,
+                        seatIndex, booked, name, snapshot.getOccupancy()),
+                (subscriber, change) -> {
+                    droppedSeatChanges.increment();
+                    return false;
+                });
+    }
+
+    // Every seat booked. Held seats don't count: a hold may expire without a booking, and
+    // nobody would be promoted from the waitlist when it does.
+    public boolean isFull(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        long occupancy = getOccupancy(routeIndex, dayIndex, timeIndex);
+        return occupancy == schedule.seatMask(schedule.tripIndex(routeIndex, dayIndex, timeIndex));
+    }
+
+    // Free means neither booked nor on hold, here and in the find* queries below.
+    public int getFreeSeatCount(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        return Long.bitCount(freeSeats(routeIndex, dayIndex, timeIndex));
+    }
+
+    // Returns the first free seat at or after fromSeat, or -1 if there is none.
+    public int findFreeSeat(int routeIndex, int dayIndex, int timeIndex, int fromSeat) throws InvalidSelectionException {
+        long free = freeSeats(routeIndex, dayIndex, timeIndex) & fromMask(fromSeat);
+        return free == 0 ? -1 : Long.numberOfTrailingZeros(free);
+    }
+
+    public boolean isAdjacentPairFree(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        int left = seatIndex & ~1;
+        return (freePairs(freeSeats(routeIndex, dayIndex, timeIndex)) & (1L << left)) != 0;
+    }
+
+    // Returns the left seat of the first free side-by-side pair at or after fromSeat, or -1.
+    public int findAdjacentPair(int routeIndex, int dayIndex, int timeIndex, int fromSeat) throws InvalidSelectionException {
+        long pairs = freePairs(freeSeats(routeIndex, dayIndex, timeIndex)) & fromMask(fromSeat);
+        return pairs == 0 ? -1 : Long.numberOfTrailingZeros(pairs);
+    }
+
+    // Returns the first of count free seats that sit together in the 2+2 layout, or -1.
+    // One seat is any free seat and two are a side-by-side pair. Larger groups fill whole
+    // rows from the front-left: three take a pair and the aisle seat across from it, four
+    // a full row, six a row plus the left pair of the row behind.
+    public int findAdjacentSeats(int routeIndex, int dayIndex, int timeIndex, int count) throws InvalidSelectionException {
+        if (count < 1) {
+            throw new InvalidSelectionException("Invalid seat count");
+        }
+        if (count == 1) return findFreeSeat(routeIndex, dayIndex, timeIndex, 0);
+        if (count == 2) return findAdjacentPair(routeIndex, dayIndex, timeIndex, 0);
+        long free = freeSeats(routeIndex, dayIndex, timeIndex);
+        if (count > Long.bitCount(free)) return -1;
+        long block = count == Long.SIZE ? -1L : (1L << count) - 1;
+        for (int start = 0; start + count <= Long.SIZE; start += SEATS_PER_ROW) {
+            if (((free >>> start) & block) == block) return start;
+        }
+        return -1;
+    }
+
+    // One occupancy bitmap per time slot of the given route and day.
+    public long[] getDayOccupancy(int routeIndex, int dayIndex) throws InvalidSelectionException {
+        long[] day = new long[schedule.getTimeCount()];
+        for (int t = 0; t < day.length; t++) {
+            day[t] = getOccupancy(routeIndex, dayIndex, t);
+        }
+        return day;
+    }
+
+    private long freeSeats(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        long occupancy = getOccupancy(routeIndex, dayIndex, timeIndex);
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        return ~(occupancy | holds.heldBits(trip)) & schedule.seatMask(trip);
+    }
+
+    private static long freePairs(long free) {
+        return free & (free >>> 1) & PAIR_LEFT_SEATS;
+    }
+
+    private static long fromMask(int fromSeat) {
+        if (fromSeat <= 0) return -1L;
+        if (fromSeat >= Long.SIZE) return 0L;
+        return -1L << fromSeat;
+    }
+
+    protected void validateIndices(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException {
+        if (!schedule.contains(routeIndex, dayIndex, timeIndex, seatIndex)) {
+            throw new InvalidSelectionException("Invalid selection indices");
+        }
+    }
+
+    protected void validateTrip(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        if (!schedule.containsTrip(routeIndex, dayIndex, timeIndex)) {
+            throw new InvalidSelectionException("Invalid selection indices");
+        }
+    }
+
+    // Credentials are parsed once here into canonical numbers; everything after that
+    // compares and hashes longs. Nothing is allocated for well-formed input.
+    protected static void validateName(String name) throws MissingCredentialsException {
+        if (name == null || name.isBlank()) {
+            throw new MissingCredentialsException("Name is required");
+        }
+    }
+
+    //ID should contain 10 digits
+    protected static long idKey(String id) throws MissingCredentialsException {
+        long key = parseDigits(id, ID_DIGITS);
+        if (key < 0) {
+            throw new MissingCredentialsException("ID is not valid");
+        }
+        return key;
+    }
+
+    protected static long phoneKey(String phone) throws MissingCredentialsException {
+        long key = parseDigits(phone, PHONE_DIGITS);
+        if (key < 0) {
+            throw new MissingCredentialsException("Phone number is not valid");
+        }
+        return key;
+    }
+
+    // True if the given strings are the canonical credentials stored for a seat.
+    protected static boolean credentialsMatch(long storedId, long storedPhone, String id, String phone) {
+        return storedId >= 0 && storedId == parseDigits(id, ID_DIGITS) && storedPhone == parseDigits(phone, PHONE_DIGITS);
+    }
+
+    // Loads saved bookings. A storage failure stops construction: starting empty instead
+    // would let the next full save or compaction overwrite the bookings that failed to load.
+    protected Storage.BusServiceState loadState(Storage storage) {
+        long start = System.nanoTime();
+        try {
+            Storage.BusServiceState loaded = storage.load(schedule);
+            metrics.storageLoads.increment();
+            metrics.storageLoadLatency.recordSince(start);
+            return loaded;
+        } catch (Exception e) {
+            metrics.storageFailures.increment();
+            try {
+                storage.close();
+            } catch (Exception suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new IllegalStateException("Failed to load bookings; fix or restore the storage before starting: " + e, e);
+        }
+    }
+
+    // Checks every seat and passenger of a group booking, including repeats within the group.
+    protected void validateBooking(List<SeatRequest> requests)
+            throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        LongIndex seats = new LongIndex(requests.size());
+        LongIndex ids = new LongIndex(requests.size());
+        LongIndex phones = new LongIndex(requests.size());
+        for (SeatRequest request : requests) {
+            validateIndices(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex(), request.getSeatIndex());
+            Passenger passenger = request.getPassenger();
+            if (passenger == null) {
+                throw new MissingCredentialsException("Name is required");
+            }
+            validateName(passenger.getName());
+            long id = idKey(passenger.getId());
+            long phone = phoneKey(passenger.getPhone());
+            int seat = packIndex(schedule.tripIndex(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex()), request.getSeatIndex());
+            if (seats.containsKey(seat)) {
+                throw new SeatAlreadyBookedException("Seat requested more than once");
+            }
+            seats.put(seat, 0);
+            if (ids.containsKey(id)) {
+                throw new DuplicateCredentialsException("ID appears more than once in the booking");
+            }
+            ids.put(id, 0);
+            if (phones.containsKey(phone)) {
+                throw new DuplicateCredentialsException("Phone number appears more than once in the booking");
+            }
+            phones.put(phone, 0);
+        }
+    }
+
+    // Checks every seat of a group cancellation. A seat named twice is rejected: the first
+    // entry could promote a waiting passenger into it, and the second would then cancel
+    // that passenger with credentials that were only checked against the previous holder.
+    protected void validateCancellation(List<SeatRequest> requests) throws InvalidSelectionException {
+        LongIndex seats = new LongIndex(requests.size());
+        for (SeatRequest request : requests) {
+            validateIndices(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex(), request.getSeatIndex());
+            int seat = packIndex(schedule.tripIndex(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex()), request.getSeatIndex());
+            if (seats.containsKey(seat)) {
+                throw new InvalidSelectionException("Seat requested more than once");
+            }
+            seats.put(seat, 0);
+        }
+    }
+
+    // Packs a trip and seat into one int; seats fit in the low 6 bits.
+    protected static int packIndex(int tripIndex, int seatIndex) {
+        return tripIndex * Schedule.MAX_CAPACITY + seatIndex;
+    }
+
+    // Returns the numeric value of a string of exactly the given number of digits, or -1 otherwise.
+    protected static long parseDigits(String s, int digits) {
+        if (s == null || s.length() != digits) return -1;
+        long value = 0;
+        for (int i = 0; i < digits; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // Inverse of parseDigits: the value zero-padded to the given width, or "" if negative.
+    protected static String formatDigits(long value, int digits) {
+        if (value < 0) return "";
+        char[] chars = new char[digits];
+        for (int i = digits - 1; i >= 0; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(chars);
+    }
+}
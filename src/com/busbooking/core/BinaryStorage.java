@@ -0,0 +1,176 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Versioned binary snapshot:
+//   int magic, int version, int routes, int days, int times, int max seats per trip,
+//   long bitmap per trip, then (name, id, phone) for every booked seat in
+//   trip/seat order, each as an int length followed by UTF-8 bytes.
+// Version 2 appends the waitlists: per trip an int count, then (name, id, phone) for
+// every waiting passenger in order. Version 1 files load with empty waitlists.
+public class BinaryStorage implements Storage {
+    private static final int MAGIC = 0x42425354; // "BBST"
+    private static final int VERSION = 2;
+
+    private final String filePath;
+
+    public BinaryStorage(String filePath) {
+        this.filePath = filePath;
+    }
+
+    // Written to a sibling temp file that replaces the snapshot only once it is on disk, so a
+    // crash mid-save leaves the previous snapshot intact.
+    @Override
+    public void save(BusServiceState state) throws Exception {
+        Schedule schedule = state.schedule;
+        Path path = Paths.get(filePath);
+        Path temp = FileStorage.tempFile(path);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(schedule.getRouteCount());
+            out.writeInt(schedule.getDayCount());
+            out.writeInt(schedule.getTimeCount());
+            out.writeInt(schedule.getMaxCapacity());
+            for (long bits : state.booked) {
+                out.writeLong(bits);
+            }
+            for (int r = 0; r < schedule.getRouteCount(); r++) {
+                for (int d = 0; d < schedule.getDayCount(); d++) {
+                    for (int t = 0; t < schedule.getTimeCount(); t++) {
+                        long bits = state.booked[schedule.tripIndex(r, d, t)];
+                        while (bits != 0) {
+                            int s = Long.numberOfTrailingZeros(bits);
+                            bits &= bits - 1;
+                            writeString(out, state.getName(r, d, t, s));
+                            writeString(out, state.getId(r, d, t, s));
+                            writeString(out, state.getPhone(r, d, t, s));
+                        }
+                    }
+                }
+            }
+            for (int trip = 0; trip < schedule.getTripCount(); trip++) {
+                int waiting = state.getWaitlistSize(trip);
+                out.writeInt(waiting);
+                for (int i = 0; i < waiting; i++) {
+                    writeString(out, state.getWaitlistName(trip, i));
+                    writeString(out, state.getWaitlistId(trip, i));
+                    writeString(out, state.getWaitlistPhone(trip, i));
+                }
+            }
+            out.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileStorage.syncDirectory(path);
+    }
+
+    // Seats beyond a trip's current capacity are read past and dropped.
+    @Override
+    public BusServiceState load(Schedule schedule) throws Exception {
+        BusServiceState state = new BusServiceState(schedule);
+        File file = new File(filePath);
+        // Left behind by a save that didn't finish; the snapshot itself is still intact
+        Files.deleteIfExists(FileStorage.tempFile(file.toPath()));
+        if (!file.exists()) {
+            return state;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC) {
+                throw new IOException("Not a booking snapshot: " + filePath);
+            }
+            int version = buf.getInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            if (buf.getInt() != schedule.getRouteCount() || buf.getInt() != schedule.getDayCount() ||
+                    buf.getInt() != schedule.getTimeCount()) {
+                throw new IOException("Snapshot dimensions do not match this schedule");
+            }
+            buf.getInt(); // largest trip capacity when written
+            long[] fileBits = new long[schedule.getTripCount()];
+            buf.asLongBuffer().get(fileBits);
+            buf.position(buf.position() + fileBits.length * Long.BYTES);
+            for (int trip = 0; trip < fileBits.length; trip++) {
+                long bits = fileBits[trip];
+                long seatMask = schedule.seatMask(trip);
+                while (bits != 0) {
+                    int s = Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    String name = readString(buf);
+                    String id = readString(buf);
+                    String phone = readString(buf);
+                    if ((seatMask & (1L << s)) != 0) {
+                        state.setPassenger(trip, s, name, id, phone);
+                        state.booked[trip] |= 1L << s;
+                    }
+                }
+            }
+            if (version >= 2) {
+                for (int trip = 0; trip < fileBits.length; trip++) {
+                    int waiting = buf.getInt();
+                    if (waiting < 0) {
+                        throw new IOException("Corrupt waitlist length " + waiting);
+                    }
+                    for (int i = 0; i < waiting; i++) {
+                        state.addToWaitlist(trip, readString(buf), readString(buf), readString(buf));
+                    }
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated snapshot: " + filePath, e);
+        }
+        return state;
+    }
+
+    // Rewrites a FileStorage text file as a binary snapshot.
+    public static void convert(String textPath, String binaryPath, Schedule schedule) throws Exception {
+        new BinaryStorage(binaryPath).save(new FileStorage(textPath).load(schedule));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("Usage: BinaryStorage <text file> <binary file> [schedule file]");
+            System.exit(2);
+        }
+        Schedule schedule = args.length == 3 ? Schedule.load(args[2]) : Schedule.defaultSchedule();
+        convert(args[0], args[1], schedule);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buf) throws IOException {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new IOException("Corrupt string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,163 @@
+package com.busbooking.core;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for one bus service and its storage. Counts are exact;
+// latencies are timed on a random sample of calls (one in sixteen by default) so that two
+// System.nanoTime calls don't land on every booking.
+public class BookingMetrics implements BookingMetricsMXBean {
+    private static final int DEFAULT_SAMPLING = 16;
+
+    final LongAdder bookings = new LongAdder();
+    final LongAdder cancellations = new LongAdder();
+    final LongAdder duplicateChecks = new LongAdder();
+    final LongAdder storageWrites = new LongAdder();
+    final LongAdder storageSaves = new LongAdder();
+    final LongAdder storageLoads = new LongAdder();
+    final LongAdder storageFailures = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> rejections = new ConcurrentHashMap<>();
+
+    final LatencyHistogram bookLatency = new LatencyHistogram();
+    final LatencyHistogram cancelLatency = new LatencyHistogram();
+    final LatencyHistogram duplicateCheckLatency = new LatencyHistogram();
+    final LatencyHistogram storageWriteLatency = new LatencyHistogram();
+    final LatencyHistogram storageSaveLatency = new LatencyHistogram();
+    final LatencyHistogram storageLoadLatency = new LatencyHistogram();
+
+    // -1 disables timing, 0 times every call, otherwise a power of two minus one
+    private volatile int sampleMask = DEFAULT_SAMPLING - 1;
+
+    // Start time for a hot-path call, or LatencyHistogram.NOT_SAMPLED if this call isn't timed.
+    long start() {
+        int mask = sampleMask;
+        if (mask < 0 || (mask != 0 && (ThreadLocalRandom.current().nextInt() & mask) != 0)) {
+            return LatencyHistogram.NOT_SAMPLED;
+        }
+        return System.nanoTime();
+    }
+
+    void reject(Exception e) {
+        rejections.computeIfAbsent(e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+    }
+
+    // Registers under com.busbooking:type=BookingMetrics,name=<name>.
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.busbooking:type=BookingMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public long getBookings() {
+        return bookings.sum();
+    }
+
+    @Override
+    public long getCancellations() {
+        return cancellations.sum();
+    }
+
+    @Override
+    public long getDuplicateChecks() {
+        return duplicateChecks.sum();
+    }
+
+    @Override
+    public long getStorageWrites() {
+        return storageWrites.sum();
+    }
+
+    @Override
+    public long getStorageSaves() {
+        return storageSaves.sum();
+    }
+
+    @Override
+    public long getStorageLoads() {
+        return storageLoads.sum();
+    }
+
+    @Override
+    public long getStorageFailures() {
+        return storageFailures.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRejections() {
+        Map<String, Long> counts = new TreeMap<>();
+        rejections.forEach((type, count) -> counts.put(type, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getBookLatency() {
+        return bookLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getCancelLatency() {
+        return cancelLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getDuplicateCheckLatency() {
+        return duplicateCheckLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getStorageWriteLatency() {
+        return storageWriteLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getStorageSaveLatency() {
+        return storageSaveLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getStorageLoadLatency() {
+        return storageLoadLatency.snapshot();
+    }
+
+    @Override
+    public int getLatencySampling() {
+        int mask = sampleMask;
+        return mask < 0 ? 0 : mask + 1;
+    }
+
+    // Times one call in oneIn (rounded up to a power of two); 1 times every call, 0 none.
+    @Override
+    public void setLatencySampling(int oneIn) {
+        if (oneIn < 0) {
+            throw new IllegalArgumentException("Sampling rate must not be negative");
+        }
+        sampleMask = oneIn == 0 ? -1 : Math.max(1, Integer.highestOneBit(oneIn - 1) << 1) - 1;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        out.append("bookings ").append(getBookings()).append('\n');
+        out.append("cancellations ").append(getCancellations()).append('\n');
+        out.append("duplicate_checks ").append(getDuplicateChecks()).append('\n');
+        out.append("storage_writes ").append(getStorageWrites()).append('\n');
+        out.append("storage_saves ").append(getStorageSaves()).append('\n');
+        out.append("storage_loads ").append(getStorageLoads()).append('\n');
+        out.append("storage_failures ").append(getStorageFailures()).append('\n');
+        getRejections().forEach((type, count) -> out.append("rejected ").append(type).append(' ').append(count).append('\n'));
+        out.append("book_latency ").append(getBookLatency()).append('\n');
+        out.append("cancel_latency ").append(getCancelLatency()).append('\n');
+        out.append("duplicate_check_latency ").append(getDuplicateCheckLatency()).append('\n');
+        out.append("storage_write_latency ").append(getStorageWriteLatency()).append('\n');
+        out.append("storage_save_latency ").append(getStorageSaveLatency()).append('\n');
+        out.append("storage_load_latency ").append(getStorageLoadLatency()).append('\n');
+        return out.toString();
+    }
+}
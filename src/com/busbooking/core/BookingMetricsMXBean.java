@@ -0,0 +1,29 @@
+package com.busbooking.core;
+
+import java.util.Map;
+
+// JMX view of BookingMetrics; register it with BookingMetrics.registerMBean.
+public interface BookingMetricsMXBean {
+    long getBookings();
+    long getCancellations();
+    long getDuplicateChecks();
+    long getStorageWrites();
+    long getStorageSaves();
+    long getStorageLoads();
+    long getStorageFailures();
+
+    // Rejected calls by exception class name, e.g. SeatAlreadyBookedException -> 12
+    Map<String, Long> getRejections();
+
+    LatencyHistogram.Snapshot getBookLatency();
+    LatencyHistogram.Snapshot getCancelLatency();
+    LatencyHistogram.Snapshot getDuplicateCheckLatency();
+    LatencyHistogram.Snapshot getStorageWriteLatency();
+    LatencyHistogram.Snapshot getStorageSaveLatency();
+    LatencyHistogram.Snapshot getStorageLoadLatency();
+
+    int getLatencySampling();
+    void setLatencySampling(int oneIn);
+
+    String dump();
+}
@@ -5,176 +5,332 @@ import com.busbooking.exception.InvalidCredentialsException;
 import com.busbooking.exception.InvalidSelectionException;
 import com.busbooking.exception.MissingCredentialsException;
 import com.busbooking.exception.SeatAlreadyBookedException;
+import com.busbooking.exception.WaitlistFullException;
+import com.busbooking.model.Schedule;
+import com.busbooking.model.Passenger;
 import com.busbooking.model.Seat;
+import com.busbooking.model.SeatRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class BusService extends AbstractBusService {
     private final Storage storage;
+    private final PersistencePipeline pipeline;
+    private final boolean syncWrites;
 
-    private final String[] routeNames = new String[] {
-            "Uttara to NSU", "NSU to Uttara", "Dhanmondi to NSU", "NSU to Dhanmondi",
-            "Mirpur to NSU", "NSU to Mirpur", "Banani to NSU", "NSU to Banani"
-    };
-    private final String[] dayNames = new String[] {"ST", "MW", "RA"};
-    private final String[] timeSlots = new String[] {
-            "08:00", "09:00", "10:00", "11:00", "12:00",
-            "13:00", "14:00", "15:00", "16:00", "17:00"
-    };
-
-    private final boolean[][][][] booked = new boolean[MAX_ROUTES][MAX_DAYS][MAX_TIMES][MAX_SEATS];
-    private final Seat[][][][] seats = new Seat[MAX_ROUTES][MAX_DAYS][MAX_TIMES][MAX_SEATS];
+    private Storage.BusServiceState state;
 
     public BusService(Storage storage) {
+        this(storage, Schedule.defaultSchedule());
+    }
+
+    public BusService(Storage storage, Schedule schedule) {
+        this(storage, schedule, DurabilityPolicy.sync());
+    }
+
+    public BusService(Storage storage, Schedule schedule, DurabilityPolicy durability) {
+        super(schedule);
         this.storage = storage;
-        for (int r = 0; r < MAX_ROUTES; r++) {
-            for (int d = 0; d < MAX_DAYS; d++) {
-                for (int t = 0; t < MAX_TIMES; t++) {
-                    for (int s = 0; s < MAX_SEATS; s++) {
-                        seats[r][d][t][s] = new Seat();
-                    }
-                }
+        load();
+        this.syncWrites = durability.getMode() == DurabilityPolicy.Mode.SYNC;
+        this.pipeline = new PersistencePipeline(storage, durability, this::snapshot, metrics);
+    }
+
+    // Adopts the loaded state as-is instead of copying it into a second grid.
+    private void load() {
+        state = loadState(storage);
+        resetTripSnapshots(state);
+    }
+
+    @Override
+    public synchronized boolean isBooked(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        return state.isBooked(routeIndex, dayIndex, timeIndex, seatIndex) ||
+                holds.isHeld(schedule.tripIndex(routeIndex, dayIndex, timeIndex), seatIndex);
+    }
+
+    @Override
+    public synchronized long getOccupancy(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        return state.booked[schedule.tripIndex(routeIndex, dayIndex, timeIndex)];
+    }
+
+    @Override
+    protected synchronized CompletableFuture<Void> doBookSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone)
+            throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        validateName(name);
+        long idKey = idKey(id);
+        long phoneKey = phoneKey(phone);
+
+        // Check for duplicate credentials across all routes, days, times, and seats; the
+        // passenger index is only changed under this monitor, so it is exact here.
+        long checkStart = metrics.start();
+        metrics.duplicateChecks.increment();
+        try {
+            if (bookedIds.containsKey(idKey)) {
+                throw new DuplicateCredentialsException("ID already exists in another booking");
+            }
+            if (bookedPhones.containsKey(phoneKey)) {
+                throw new DuplicateCredentialsException("Phone number already exists in another booking");
             }
+        } finally {
+            metrics.duplicateCheckLatency.recordSince(checkStart);
+        }
+
+        if (state.isBooked(routeIndex, dayIndex, timeIndex, seatIndex)) {
+            throw new SeatAlreadyBookedException("Seat already booked");
         }
-        tryLoad();
+        if (holds.isHeld(schedule.tripIndex(routeIndex, dayIndex, timeIndex), seatIndex)) {
+            throw new SeatAlreadyBookedException("Seat is on hold");
+        }
+        return book(routeIndex, dayIndex, timeIndex, seatIndex, name, id, phone, idKey, phoneKey);
     }
 
-    private void tryLoad() {
+    @Override
+    public synchronized long holdSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, long ttlMillis)
+            throws InvalidSelectionException, SeatAlreadyBookedException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        if (state.isBooked(routeIndex, dayIndex, timeIndex, seatIndex)) {
+            throw new SeatAlreadyBookedException("Seat already booked");
+        }
+        long holdId = holds.place(routeIndex, dayIndex, timeIndex, schedule.tripIndex(routeIndex, dayIndex, timeIndex), seatIndex, ttlMillis);
+        if (holdId < 0) {
+            throw new SeatAlreadyBookedException("Seat is on hold");
+        }
+        return holdId;
+    }
+
+    @Override
+    protected synchronized CompletableFuture<Void> doBookHeldSeat(long holdId, String name, String id, String phone)
+            throws SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        validateName(name);
+        long idKey = idKey(id);
+        long phoneKey = phoneKey(phone);
+        SeatHolds.Hold hold = holds.get(holdId);
+        if (hold == null) {
+            throw new SeatAlreadyBookedException("Hold expired");
+        }
+        long checkStart = metrics.start();
+        metrics.duplicateChecks.increment();
         try {
-            Storage.BusServiceState state = storage.load();
-            if (state != null) {
-                for (int r = 0; r < MAX_ROUTES; r++) {
-                    for (int d = 0; d < MAX_DAYS; d++) {
-                        for (int t = 0; t < MAX_TIMES; t++) {
-                            for (int s = 0; s < MAX_SEATS; s++) {
-                                booked[r][d][t][s] = state.booked[r][d][t][s];
-                                Seat src = state.seatData[r][d][t][s];
-                                Seat dst = seats[r][d][t][s];
-                                dst.setBooked(src.isBooked());
-                                dst.setName(src.getName());
-                                dst.setId(src.getId());
-                                dst.setPhone(src.getPhone());
-                            }
-                        }
-                    }
-                }
+            if (bookedIds.containsKey(idKey)) {
+                throw new DuplicateCredentialsException("ID already exists in another booking");
+            }
+            if (bookedPhones.containsKey(phoneKey)) {
+                throw new DuplicateCredentialsException("Phone number already exists in another booking");
             }
-        } catch (Exception ignored) {
+        } finally {
+            metrics.duplicateCheckLatency.recordSince(checkStart);
+        }
+        if (!holds.take(hold)) {
+            throw new SeatAlreadyBookedException("Hold expired");
+        }
+        return book(hold.routeIndex, hold.dayIndex, hold.timeIndex, hold.seat, name, id, phone, idKey, phoneKey);
+    }
+
+    // id and phone are already validated, so they are their own canonical text form.
+    private CompletableFuture<Void> book(int routeIndex, int dayIndex, int timeIndex, int seatIndex,
+                                         String name, String id, String phone, long idKey, long phoneKey) {
+        return pipeline.submit(applyBooking(routeIndex, dayIndex, timeIndex, seatIndex, name, id, phone, idKey, phoneKey));
+    }
+
+    private Storage.Mutation applyBooking(int routeIndex, int dayIndex, int timeIndex, int seatIndex,
+                                          String name, String id, String phone, long idKey, long phoneKey) {
+        String trimmedName = name.trim();
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        state.setPassenger(trip, seatIndex, trimmedName, idKey, phoneKey);
+        state.booked[trip] |= 1L << seatIndex;
+        publishBooked(routeIndex, dayIndex, timeIndex, seatIndex, trimmedName, id, phone);
+        return Storage.Mutation.book(routeIndex, dayIndex, timeIndex, seatIndex, trimmedName, id, phone);
+    }
+
+    // Gives a just-freed seat to the trip's waitlist, appending the resulting mutations.
+    private void promote(int routeIndex, int dayIndex, int timeIndex, int seatIndex, List<Storage.Mutation> mutations) {
+        Passenger next = takeFromWaitlist(state, routeIndex, dayIndex, timeIndex, seatIndex, mutations);
+        if (next != null) {
+            mutations.add(applyBooking(routeIndex, dayIndex, timeIndex, seatIndex, next.getName(), next.getId(), next.getPhone(),
+                    parseDigits(next.getId(), ID_DIGITS), parseDigits(next.getPhone(), PHONE_DIGITS)));
         }
     }
 
     @Override
-    public String[] getRouteNames() {
-        return routeNames;
+    protected CompletableFuture<Void> doCancelSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone) throws InvalidSelectionException, InvalidCredentialsException {
+        return cancel(routeIndex, dayIndex, timeIndex, seatIndex, id, phone, false);
     }
 
     @Override
-    public String[] getDayNames() {
-        return dayNames;
+    protected CompletableFuture<Void> doCancelBooking(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone) throws InvalidSelectionException, InvalidCredentialsException {
+        return cancel(routeIndex, dayIndex, timeIndex, seatIndex, id, phone, true);
+    }
+
+    private synchronized CompletableFuture<Void> cancel(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone, boolean mustBeBooked)
+            throws InvalidSelectionException, InvalidCredentialsException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        boolean wasBooked = state.isBooked(routeIndex, dayIndex, timeIndex, seatIndex);
+        if (wasBooked) {
+            int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+            if (!credentialsMatch(state.getIdKey(trip, seatIndex), state.getPhoneKey(trip, seatIndex), id, phone)) {
+                throw new InvalidCredentialsException("Invalid credentials");
+            }
+        } else if (mustBeBooked) {
+            throw new InvalidCredentialsException("No booking matches these credentials");
+        }
+        state.cancel(routeIndex, dayIndex, timeIndex, seatIndex);
+        Storage.Mutation cancel = Storage.Mutation.cancel(routeIndex, dayIndex, timeIndex, seatIndex);
+        if (!wasBooked) {
+            return pipeline.submit(cancel);
+        }
+        publishCancelled(routeIndex, dayIndex, timeIndex, seatIndex);
+        if (state.getWaitlistSize(schedule.tripIndex(routeIndex, dayIndex, timeIndex)) == 0) {
+            return pipeline.submit(cancel);
+        }
+        // The cancellation and the promotion are stored as one unit
+        List<Storage.Mutation> mutations = new ArrayList<>(3);
+        mutations.add(cancel);
+        promote(routeIndex, dayIndex, timeIndex, seatIndex, mutations);
+        return pipeline.submit(mutations);
     }
 
     @Override
-    public String[] getTimeSlots() {
-        return timeSlots;
+    public synchronized CompletableFuture<Void> joinWaitlist(int routeIndex, int dayIndex, int timeIndex, String name, String id, String phone)
+            throws InvalidSelectionException, MissingCredentialsException, DuplicateCredentialsException, WaitlistFullException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        validateName(name);
+        long idKey = idKey(id);
+        long phoneKey = phoneKey(phone);
+        if (waitlistedIds.containsKey(idKey)) {
+            throw new DuplicateCredentialsException("ID is already on a waitlist");
+        }
+        if (waitlistedPhones.containsKey(phoneKey)) {
+            throw new DuplicateCredentialsException("Phone number is already on a waitlist");
+        }
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        checkWaitlistJoin(routeIndex, dayIndex, timeIndex, state.getWaitlistSize(trip), idKey, phoneKey);
+        String trimmedName = name.trim();
+        state.addToWaitlist(trip, trimmedName, idKey, phoneKey);
+        waitlistedIds.put(idKey, trip);
+        waitlistedPhones.put(phoneKey, trip);
+        return pipeline.submit(Storage.Mutation.waitlist(routeIndex, dayIndex, timeIndex, trimmedName, id, phone));
     }
 
     @Override
-    public boolean isBooked(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException {
-        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
-        return booked[routeIndex][dayIndex][timeIndex][seatIndex];
+    public synchronized CompletableFuture<Void> leaveWaitlist(int routeIndex, int dayIndex, int timeIndex, String id, String phone)
+            throws InvalidSelectionException, InvalidCredentialsException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        removeFromWaitlist(state, schedule.tripIndex(routeIndex, dayIndex, timeIndex), id, phone);
+        return pipeline.submit(Storage.Mutation.unwaitlist(routeIndex, dayIndex, timeIndex, id));
     }
 
     @Override
-    public Seat getSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException {
-        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
-        return seats[routeIndex][dayIndex][timeIndex][seatIndex];
+    public synchronized List<Passenger> getWaitlist(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        return waitlistOf(state, schedule.tripIndex(routeIndex, dayIndex, timeIndex));
     }
 
     @Override
-    public void bookSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone)
+    public synchronized CompletableFuture<Void> bookSeats(List<SeatRequest> requests)
             throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
-        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
-
-        // Validate required fields
-        if (name == null || name.trim().isEmpty()) {
-            throw new MissingCredentialsException("Name is required");
-        }
-        //ID should contain 10 digits
-        if (id == null || id.trim().isEmpty() || !id.matches("\\d{10}")) {
-            throw new MissingCredentialsException("ID is not valid");
-        }
-        if (phone == null || phone.trim().isEmpty() || !phone.matches("\\d{11}")) {
-            throw new MissingCredentialsException("Phone number is not valid");
-        }
-
-        // Check for duplicate credentials across all routes, days, times, and seats
-        for (int r = 0; r < MAX_ROUTES; r++) {
-            for (int d = 0; d < MAX_DAYS; d++) {
-                for (int t = 0; t < MAX_TIMES; t++) {
-                    for (int s = 0; s < MAX_SEATS; s++) {
-                        if (booked[r][d][t][s]) {
-                            Seat existingSeat = seats[r][d][t][s];
-//                            if (name.trim().equalsIgnoreCase(existingSeat.getName().trim())) {
-//                                throw new DuplicateCredentialsException("Name already exists in another booking");
-//                            }
-                            if (id.trim().equalsIgnoreCase(existingSeat.getId().trim())) {
-                                throw new DuplicateCredentialsException("ID already exists in another booking");
-                            }
-                            if (phone.trim().equals(existingSeat.getPhone().trim())) {
-                                throw new DuplicateCredentialsException("Phone number already exists in another booking");
-                            }
-                        }
-                    }
-                }
+        validateBooking(requests);
+        for (SeatRequest request : requests) {
+            Passenger passenger = request.getPassenger();
+            if (bookedIds.containsKey(parseDigits(passenger.getId(), ID_DIGITS))) {
+                throw new DuplicateCredentialsException("ID already exists in another booking");
+            }
+            if (bookedPhones.containsKey(parseDigits(passenger.getPhone(), PHONE_DIGITS))) {
+                throw new DuplicateCredentialsException("Phone number already exists in another booking");
+            }
+            if (state.isBooked(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex(), request.getSeatIndex())) {
+                throw new SeatAlreadyBookedException("Seat already booked");
+            }
+            if (holds.isHeld(schedule.tripIndex(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex()), request.getSeatIndex())) {
+                throw new SeatAlreadyBookedException("Seat is on hold");
             }
         }
 
-        if (booked[routeIndex][dayIndex][timeIndex][seatIndex]) {
-            throw new SeatAlreadyBookedException("Seat already booked");
+        List<Storage.Mutation> mutations = new ArrayList<>(requests.size());
+        for (SeatRequest request : requests) {
+            Passenger passenger = request.getPassenger();
+            Storage.Mutation mutation = Storage.Mutation.book(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex(),
+                    request.getSeatIndex(), passenger.getName().trim(), passenger.getId(), passenger.getPhone());
+            mutation.applyTo(state);
+            publishBooked(mutation.routeIndex, mutation.dayIndex, mutation.timeIndex, mutation.seatIndex, mutation.name, mutation.id, mutation.phone);
+            mutations.add(mutation);
         }
-
-        Seat seat = seats[routeIndex][dayIndex][timeIndex][seatIndex];
-        seat.setName(name.trim());
-        seat.setId(id.trim());
-        seat.setPhone(phone.trim());
-        seat.setBooked(true);
-        booked[routeIndex][dayIndex][timeIndex][seatIndex] = true;
-        persist();
+        return pipeline.submit(mutations);
     }
 
     @Override
-    public void cancelSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone) throws InvalidSelectionException, InvalidCredentialsException {
-        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
-        Seat seat = seats[routeIndex][dayIndex][timeIndex][seatIndex];
-        if (seat.isBooked()) {
-            boolean idMatches = seat.getId() != null && seat.getId().equals(id);
-            boolean phoneMatches = seat.getPhone() != null && seat.getPhone().equals(phone);
-            if (!(idMatches && phoneMatches)) {
-                throw new InvalidCredentialsException("Invalid credentials");
+    public synchronized CompletableFuture<Void> cancelSeats(List<SeatRequest> requests) throws InvalidSelectionException, InvalidCredentialsException {
+        validateCancellation(requests);
+        for (SeatRequest request : requests) {
+            int r = request.getRouteIndex();
+            int d = request.getDayIndex();
+            int t = request.getTimeIndex();
+            int s = request.getSeatIndex();
+            if (state.isBooked(r, d, t, s)) {
+                Passenger passenger = request.getPassenger();
+                int trip = schedule.tripIndex(r, d, t);
+                if (passenger == null || !credentialsMatch(state.getIdKey(trip, s), state.getPhoneKey(trip, s), passenger.getId(), passenger.getPhone())) {
+                    throw new InvalidCredentialsException("Invalid credentials");
+                }
             }
         }
-        seat.setBooked(false);
-        seat.setName("");
-        seat.setId("");
-        seat.setPhone("");
-        booked[routeIndex][dayIndex][timeIndex][seatIndex] = false;
-        persist();
+
+        List<Storage.Mutation> mutations = new ArrayList<>(requests.size());
+        for (SeatRequest request : requests) {
+            int r = request.getRouteIndex();
+            int d = request.getDayIndex();
+            int t = request.getTimeIndex();
+            int s = request.getSeatIndex();
+            boolean wasBooked = state.isBooked(r, d, t, s);
+            state.cancel(r, d, t, s);
+            mutations.add(Storage.Mutation.cancel(r, d, t, s));
+            if (wasBooked) {
+                publishCancelled(r, d, t, s);
+                promote(r, d, t, s, mutations);
+            }
+        }
+        return pipeline.submit(mutations);
     }
 
     @Override
     public void persist() {
-        try {
-            storage.save(new Storage.BusServiceState(booked, seats));
-        } catch (Exception ignored) {
+        // SYNC bookings hold this monitor while they wait for the storage, so the save has to
+        // take it first as well. Copying outside the storage lock instead would let a journal
+        // save truncate records written after the copy. The background writer takes the
+        // storage lock before this monitor, so the other modes must not hold it here.
+        if (syncWrites) {
+            synchronized (this) {
+                pipeline.saveSnapshot();
+            }
+        } else {
+            pipeline.saveSnapshot();
         }
     }
 
-    private void validateIndices(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException {
-        if (routeIndex < 0 || routeIndex >= MAX_ROUTES ||
-                dayIndex < 0 || dayIndex >= MAX_DAYS ||
-                timeIndex < 0 || timeIndex >= MAX_TIMES ||
-                seatIndex < 0 || seatIndex >= MAX_SEATS) {
-            throw new InvalidSelectionException("Invalid selection indices");
-        }
+    @Override
+    public void close() {
+        pipeline.close();
+        super.close();
     }
-}
 
+    @Override
+    public void setPersistenceFailureHandler(Consumer<Throwable> handler) {
+        pipeline.setFailureHandler(handler);
+    }
 
+    // SYNC writes and SYNC persist() run under the lock and can use the live state;
+    // the background writer and other saves get a copy taken under the lock.
+    private Storage.BusServiceState snapshot() {
+        if (Thread.holdsLock(this)) {
+            return state;
+        }
+        synchronized (this) {
+            return state.copy();
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package com.busbooking.core;
+
+import com.busbooking.exception.DuplicateCredentialsException;
+import com.busbooking.exception.InvalidCredentialsException;
+import com.busbooking.exception.InvalidSelectionException;
+import com.busbooking.exception.MissingCredentialsException;
+import com.busbooking.exception.SeatAlreadyBookedException;
+import com.busbooking.exception.WaitlistFullException;
+import com.busbooking.model.Schedule;
+import com.busbooking.model.Passenger;
+import com.busbooking.model.Seat;
+import com.busbooking.model.SeatRequest;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Thread-safe BusService: one lock per (route, day, time) trip, striped over at most
+// MAX_LOCK_STRIPES locks on very large schedules, so bookings on different trips
+// practically never contend. ID/phone uniqueness is claimed atomically via
+// putIfAbsent in the passenger index before the trip lock is taken and released
+// again if the seat is taken; lookups check hits against the trip snapshot, so a
+// claim whose booking is still in flight is never reported as a booking.
+public class ConcurrentBusService extends AbstractBusService {
+    // Seat bitmaps are written under the trip lock but read lock-free through BOOKED
+    private static final VarHandle BOOKED = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int MAX_LOCK_STRIPES = 4096;
+
+    private final Storage storage;
+    private final PersistencePipeline pipeline;
+
+    private volatile Storage.BusServiceState state;
+    private final ReentrantLock[] tripLocks;
+
+    public ConcurrentBusService(Storage storage) {
+        this(storage, Schedule.defaultSchedule());
+    }
+
+    public ConcurrentBusService(Storage storage, Schedule schedule) {
+        this(storage, schedule, DurabilityPolicy.sync());
+    }
+
+    public ConcurrentBusService(Storage storage, Schedule schedule, DurabilityPolicy durability) {
+        super(schedule);
+        this.storage = storage;
+        this.tripLocks = new ReentrantLock[Math.min(schedule.getTripCount(), MAX_LOCK_STRIPES)];
+        for (int i = 0; i < tripLocks.length; i++) {
+            tripLocks[i] = new ReentrantLock();
+        }
+        load();
+        this.pipeline = new PersistencePipeline(storage, durability, () -> state, metrics);
+    }
+
+    private void load() {
+        state = loadState(storage);
+        resetTripSnapshots(state);
+    }
+
+    @Override
+    public boolean isBooked(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        return ((bits(trip) | holds.heldBits(trip)) & (1L << seatIndex)) != 0;
+    }
+
+    @Override
+    public long getOccupancy(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        return bits(schedule.tripIndex(routeIndex, dayIndex, timeIndex));
+    }
+
+    @Override
+    protected CompletableFuture<Void> doBookSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone)
+            throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        validateName(name);
+        long idKey = idKey(id);
+        long phoneKey = phoneKey(phone);
+
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        int packed = packIndex(trip, seatIndex);
+        long checkStart = metrics.start();
+        metrics.duplicateChecks.increment();
+        try {
+            if (!bookedIds.putIfAbsent(idKey, packed)) {
+                throw new DuplicateCredentialsException("ID already exists in another booking");
+            }
+            if (!bookedPhones.putIfAbsent(phoneKey, packed)) {
+                bookedIds.remove(idKey, packed);
+                throw new DuplicateCredentialsException("Phone number already exists in another booking");
+            }
+        } finally {
+            metrics.duplicateCheckLatency.recordSince(checkStart);
+        }
+
+        ReentrantLock lock = tripLock(trip);
+        lock.lock();
+        try {
+            long bits = bits(trip);
+            if ((bits & (1L << seatIndex)) != 0) {
+                bookedIds.remove(idKey, packed);
+                bookedPhones.remove(phoneKey, packed);
+                throw new SeatAlreadyBookedException("Seat already booked");
+            }
+            if (holds.isHeld(trip, seatIndex)) {
+                bookedIds.remove(idKey, packed);
+                bookedPhones.remove(phoneKey, packed);
+                throw new SeatAlreadyBookedException("Seat is on hold");
+            }
+            return book(routeIndex, dayIndex, timeIndex, trip, seatIndex, name, id, phone, idKey, phoneKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long holdSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, long ttlMillis)
+            throws InvalidSelectionException, SeatAlreadyBookedException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        ReentrantLock lock = tripLock(trip);
+        lock.lock();
+        try {
+            if ((bits(trip) & (1L << seatIndex)) != 0) {
+                throw new SeatAlreadyBookedException("Seat already booked");
+            }
+            long holdId = holds.place(routeIndex, dayIndex, timeIndex, trip, seatIndex, ttlMillis);
+            if (holdId < 0) {
+                throw new SeatAlreadyBookedException("Seat is on hold");
+            }
+            return holdId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected CompletableFuture<Void> doBookHeldSeat(long holdId, String name, String id, String phone)
+            throws SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        validateName(name);
+        long idKey = idKey(id);
+        long phoneKey = phoneKey(phone);
+        SeatHolds.Hold hold = holds.get(holdId);
+        if (hold == null) {
+            throw new SeatAlreadyBookedException("Hold expired");
+        }
+        int packed = packIndex(hold.trip, hold.seat);
+        long checkStart = metrics.start();
+        metrics.duplicateChecks.increment();
+        try {
+            if (!bookedIds.putIfAbsent(idKey, packed)) {
+                throw new DuplicateCredentialsException("ID already exists in another booking");
+            }
+            if (!bookedPhones.putIfAbsent(phoneKey, packed)) {
+                bookedIds.remove(idKey, packed);
+                throw new DuplicateCredentialsException("Phone number already exists in another booking");
+            }
+        } finally {
+            metrics.duplicateCheckLatency.recordSince(checkStart);
+        }
+
+        ReentrantLock lock = tripLock(hold.trip);
+        lock.lock();
+        try {
+            if (!holds.take(hold)) {
+                bookedIds.remove(idKey, packed);
+                bookedPhones.remove(phoneKey, packed);
+                throw new SeatAlreadyBookedException("Hold expired");
+            }
+            return book(hold.routeIndex, hold.dayIndex, hold.timeIndex, hold.trip, hold.seat, name, id, phone, idKey, phoneKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the trip lock and has claimed the credentials.
+    // id and phone are already validated, so they are their own canonical text form.
+    private CompletableFuture<Void> book(int routeIndex, int dayIndex, int timeIndex, int trip, int seatIndex,
+                                         String name, String id, String phone, long idKey, long phoneKey) {
+        // Submitting under the trip lock keeps journal records for a seat in order.
+        return pipeline.submit(applyBooking(routeIndex, dayIndex, timeIndex, trip, seatIndex, name, id, phone, idKey, phoneKey));
+    }
+
+    private Storage.Mutation applyBooking(int routeIndex, int dayIndex, int timeIndex, int trip, int seatIndex,
+                                          String name, String id, String phone, long idKey, long phoneKey) {
+        long bits = bits(trip) | (1L << seatIndex);
+        String trimmedName = name.trim();
+        state.setPassenger(trip, seatIndex, trimmedName, idKey, phoneKey);
+        BOOKED.setVolatile(state.booked, trip, bits);
+        publishBooked(routeIndex, dayIndex, timeIndex, seatIndex, trimmedName, id, phone);
+        return Storage.Mutation.book(routeIndex, dayIndex, timeIndex, seatIndex, trimmedName, id, phone);
+    }
+
+    // Caller holds the trip lock and has just freed the seat: gives it to the trip's
+    // waitlist, appending the resulting mutations.
+    private void promote(int routeIndex, int dayIndex, int timeIndex, int trip, int seatIndex, List<Storage.Mutation> mutations) {
+        Passenger next = takeFromWaitlist(state, routeIndex, dayIndex, timeIndex, seatIndex, mutations);
+        if (next != null) {
+            mutations.add(applyBooking(routeIndex, dayIndex, timeIndex, trip, seatIndex, next.getName(), next.getId(), next.getPhone(),
+                    parseDigits(next.getId(), ID_DIGITS), parseDigits(next.getPhone(), PHONE_DIGITS)));
+        }
+    }
+
+    @Override
+    protected CompletableFuture<Void> doCancelSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone) throws InvalidSelectionException, InvalidCredentialsException {
+        return cancel(routeIndex, dayIndex, timeIndex, seatIndex, id, phone, false);
+    }
+
+    @Override
+    protected CompletableFuture<Void> doCancelBooking(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone) throws InvalidSelectionException, InvalidCredentialsException {
+        return cancel(routeIndex, dayIndex, timeIndex, seatIndex, id, phone, true);
+    }
+
+    private CompletableFuture<Void> cancel(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone, boolean mustBeBooked)
+            throws InvalidSelectionException, InvalidCredentialsException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        ReentrantLock lock = tripLock(trip);
+        lock.lock();
+        try {
+            long bits = bits(trip);
+            if ((bits & (1L << seatIndex)) != 0) {
+                // publishCancelled releases the credentials
+                if (!credentialsMatch(state.getIdKey(trip, seatIndex), state.getPhoneKey(trip, seatIndex), id, phone)) {
+                    throw new InvalidCredentialsException("Invalid credentials");
+                }
+            } else if (mustBeBooked) {
+                throw new InvalidCredentialsException("No booking matches these credentials");
+            }
+            BOOKED.setVolatile(state.booked, trip, bits & ~(1L << seatIndex));
+            state.clearPassenger(trip, seatIndex);
+            Storage.Mutation cancel = Storage.Mutation.cancel(routeIndex, dayIndex, timeIndex, seatIndex);
+            if ((bits & (1L << seatIndex)) == 0) {
+                return pipeline.submit(cancel);
+            }
+            publishCancelled(routeIndex, dayIndex, timeIndex, seatIndex);
+            if (state.getWaitlistSize(trip) == 0) {
+                return pipeline.submit(cancel);
+            }
+            // The cancellation and the promotion are stored as one unit
+            List<Storage.Mutation> mutations = new ArrayList<>(3);
+            mutations.add(cancel);
+            promote(routeIndex, dayIndex, timeIndex, trip, seatIndex, mutations);
+            return pipeline.submit(mutations);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The passenger's place on a waitlist is claimed in the waitlist index before the trip
+    // lock is taken, like booking credentials, and released again if the join fails.
+    @Override
+    public CompletableFuture<Void> joinWaitlist(int routeIndex, int dayIndex, int timeIndex, String name, String id, String phone)
+            throws InvalidSelectionException, MissingCredentialsException, DuplicateCredentialsException, WaitlistFullException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        validateName(name);
+        long idKey = idKey(id);
+        long phoneKey = phoneKey(phone);
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        if (!waitlistedIds.putIfAbsent(idKey, trip)) {
+            throw new DuplicateCredentialsException("ID is already on a waitlist");
+        }
+        if (!waitlistedPhones.putIfAbsent(phoneKey, trip)) {
+            waitlistedIds.remove(idKey, trip);
+            throw new DuplicateCredentialsException("Phone number is already on a waitlist");
+        }
+        ReentrantLock lock = tripLock(trip);
+        lock.lock();
+        try {
+            try {
+                checkWaitlistJoin(routeIndex, dayIndex, timeIndex, state.getWaitlistSize(trip), idKey, phoneKey);
+            } catch (InvalidSelectionException | DuplicateCredentialsException | WaitlistFullException e) {
+                waitlistedIds.remove(idKey, trip);
+                waitlistedPhones.remove(phoneKey, trip);
+                throw e;
+            }
+            String trimmedName = name.trim();
+            state.addToWaitlist(trip, trimmedName, idKey, phoneKey);
+            return pipeline.submit(Storage.Mutation.waitlist(routeIndex, dayIndex, timeIndex, trimmedName, id, phone));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> leaveWaitlist(int routeIndex, int dayIndex, int timeIndex, String id, String phone)
+            throws InvalidSelectionException, InvalidCredentialsException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        ReentrantLock lock = tripLock(trip);
+        lock.lock();
+        try {
+            removeFromWaitlist(state, trip, id, phone);
+            return pipeline.submit(Storage.Mutation.unwaitlist(routeIndex, dayIndex, timeIndex, id));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Passenger> getWaitlist(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        ReentrantLock lock = tripLock(trip);
+        lock.lock();
+        try {
+            return waitlistOf(state, trip);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Claims every credential first, then locks the stripes of all trips involved in
+    // ascending order, so concurrent group bookings can't deadlock each other.
+    @Override
+    public CompletableFuture<Void> bookSeats(List<SeatRequest> requests)
+            throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        validateBooking(requests);
+        int n = requests.size();
+        int[] trips = new int[n];
+        int[] packed = new int[n];
+        long[] idKeys = new long[n];
+        long[] phoneKeys = new long[n];
+        for (int i = 0; i < n; i++) {
+            SeatRequest request = requests.get(i);
+            trips[i] = schedule.tripIndex(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex());
+            packed[i] = packIndex(trips[i], request.getSeatIndex());
+            idKeys[i] = parseDigits(request.getPassenger().getId(), ID_DIGITS);
+            phoneKeys[i] = parseDigits(request.getPassenger().getPhone(), PHONE_DIGITS);
+            if (!bookedIds.putIfAbsent(idKeys[i], packed[i])) {
+                releaseCredentials(idKeys, phoneKeys, packed, i);
+                throw new DuplicateCredentialsException("ID already exists in another booking");
+            }
+            if (!bookedPhones.putIfAbsent(phoneKeys[i], packed[i])) {
+                bookedIds.remove(idKeys[i], packed[i]);
+                releaseCredentials(idKeys, phoneKeys, packed, i);
+                throw new DuplicateCredentialsException("Phone number already exists in another booking");
+            }
+        }
+
+        int[] stripes = lockStripes(trips);
+        try {
+            for (int i = 0; i < n; i++) {
+                int seat = requests.get(i).getSeatIndex();
+                if ((bits(trips[i]) & (1L << seat)) != 0) {
+                    releaseCredentials(idKeys, phoneKeys, packed, n);
+                    throw new SeatAlreadyBookedException("Seat already booked");
+                }
+                if (holds.isHeld(trips[i], seat)) {
+                    releaseCredentials(idKeys, phoneKeys, packed, n);
+                    throw new SeatAlreadyBookedException("Seat is on hold");
+                }
+            }
+            List<Storage.Mutation> mutations = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                SeatRequest request = requests.get(i);
+                Passenger passenger = request.getPassenger();
+                int seat = request.getSeatIndex();
+                String name = passenger.getName().trim();
+                String id = passenger.getId();
+                String phone = passenger.getPhone();
+                state.setPassenger(trips[i], seat, name, idKeys[i], phoneKeys[i]);
+                long bits = bits(trips[i]) | (1L << seat);
+                BOOKED.setVolatile(state.booked, trips[i], bits);
+                publishBooked(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex(), seat, name, id, phone);
+                mutations.add(Storage.Mutation.book(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex(), seat, name, id, phone));
+            }
+            return pipeline.submit(mutations);
+        } finally {
+            unlockStripes(stripes);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> cancelSeats(List<SeatRequest> requests) throws InvalidSelectionException, InvalidCredentialsException {
+        validateCancellation(requests);
+        int n = requests.size();
+        int[] trips = new int[n];
+        for (int i = 0; i < n; i++) {
+            SeatRequest request = requests.get(i);
+            trips[i] = schedule.tripIndex(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex());
+        }
+
+        int[] stripes = lockStripes(trips);
+        try {
+            for (int i = 0; i < n; i++) {
+                int seat = requests.get(i).getSeatIndex();
+                if ((bits(trips[i]) & (1L << seat)) != 0) {
+                    Passenger passenger = requests.get(i).getPassenger();
+                    if (passenger == null || !credentialsMatch(state.getIdKey(trips[i], seat), state.getPhoneKey(trips[i], seat),
+                            passenger.getId(), passenger.getPhone())) {
+                        throw new InvalidCredentialsException("Invalid credentials");
+                    }
+                }
+            }
+            List<Storage.Mutation> mutations = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                SeatRequest request = requests.get(i);
+                int seat = request.getSeatIndex();
+                long bits = bits(trips[i]);
+                mutations.add(Storage.Mutation.cancel(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex(), seat));
+                if ((bits & (1L << seat)) != 0) {
+                    BOOKED.setVolatile(state.booked, trips[i], bits & ~(1L << seat));
+                    state.clearPassenger(trips[i], seat);
+                    publishCancelled(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex(), seat);
+                    promote(request.getRouteIndex(), request.getDayIndex(), request.getTimeIndex(), trips[i], seat, mutations);
+                }
+            }
+            return pipeline.submit(mutations);
+        } finally {
+            unlockStripes(stripes);
+        }
+    }
+
+    // Full snapshots read the grid without trip locks; a seat caught mid-update is
+    // rewritten by the mutation record or save that its writer issues next.
+    @Override
+    public void persist() {
+        pipeline.saveSnapshot();
+    }
+
+    @Override
+    public void close() {
+        pipeline.close();
+        super.close();
+    }
+
+    @Override
+    public void setPersistenceFailureHandler(Consumer<Throwable> handler) {
+        pipeline.setFailureHandler(handler);
+    }
+
+    private long bits(int trip) {
+        return (long) BOOKED.getVolatile(state.booked, trip);
+    }
+
+    private ReentrantLock tripLock(int trip) {
+        return tripLocks[trip % tripLocks.length];
+    }
+
+    // Locks the distinct stripes of the given trips in ascending order and returns them.
+    private int[] lockStripes(int[] trips) {
+        int[] stripes = new int[trips.length];
+        for (int i = 0; i < trips.length; i++) {
+            stripes[i] = trips[i] % tripLocks.length;
+        }
+        Arrays.sort(stripes);
+        int distinct = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) stripes[distinct++] = stripes[i];
+        }
+        stripes = Arrays.copyOf(stripes, distinct);
+        for (int stripe : stripes) {
+            tripLocks[stripe].lock();
+        }
+        return stripes;
+    }
+
+    private void unlockStripes(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            tripLocks[stripes[i]].unlock();
+        }
+    }
+
+    // Releases the credentials claimed for the first count seats of a group booking.
+    private void releaseCredentials(long[] idKeys, long[] phoneKeys, int[] packed, int count) {
+        for (int i = 0; i < count; i++) {
+            bookedIds.remove(idKeys[i], packed[i]);
+            bookedPhones.remove(phoneKeys[i], packed[i]);
+        }
+    }
+}
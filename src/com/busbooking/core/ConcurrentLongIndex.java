@@ -0,0 +1,78 @@
+package com.busbooking.core;
+
+// Thread-safe long -> int map for credential claims: LongIndex segments, each guarded
+// by its own monitor and picked by key hash, so claims on different keys rarely contend
+// and nothing is boxed.
+final class ConcurrentLongIndex {
+    private static final int SEGMENTS = 64;
+
+    private final LongIndex[] segments = new LongIndex[SEGMENTS];
+
+    ConcurrentLongIndex() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new LongIndex();
+        }
+    }
+
+    // Returns the stored value, or -1 if the key is absent.
+    int get(long key) {
+        LongIndex segment = segment(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    // Sum of the segment sizes, each read under its own monitor.
+    int size() {
+        int size = 0;
+        for (LongIndex segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    boolean containsKey(long key) {
+        return get(key) >= 0;
+    }
+
+    // Maps key to value unless it is already mapped; returns true if it was added.
+    boolean putIfAbsent(long key, int value) {
+        LongIndex segment = segment(key);
+        synchronized (segment) {
+            if (segment.containsKey(key)) return false;
+            segment.put(key, value);
+            return true;
+        }
+    }
+
+    void put(long key, int value) {
+        LongIndex segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    // Removes the key only while it still maps to value, so a stale release can't
+    // drop another booking's claim.
+    void remove(long key, int value) {
+        LongIndex segment = segment(key);
+        synchronized (segment) {
+            if (segment.get(key) == value) segment.remove(key);
+        }
+    }
+
+    void clear() {
+        for (LongIndex segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private LongIndex segment(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return segments[(int) (h >>> 58)];
+    }
+}
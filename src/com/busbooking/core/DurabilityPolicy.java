@@ -0,0 +1,50 @@
+package com.busbooking.core;
+
+// How BusService mutations reach storage.
+//   SYNC:  the calling thread writes each change before bookSeat/cancelSeat return.
+//   GROUP: a writer thread batches up to maxBatch changes or maxDelayMillis, whichever
+//          comes first, and persists them with one storage write.
+//   ASYNC: a writer thread persists whatever is queued as soon as it can.
+// In every mode the returned future completes once the change is stored.
+public class DurabilityPolicy {
+    public enum Mode { SYNC, GROUP, ASYNC }
+
+    private static final int DEFAULT_MAX_BATCH = 1024;
+
+    private final Mode mode;
+    private final int maxBatch;
+    private final long maxDelayMillis;
+
+    private DurabilityPolicy(Mode mode, int maxBatch, long maxDelayMillis) {
+        if (maxBatch < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid group commit settings");
+        }
+        this.mode = mode;
+        this.maxBatch = maxBatch;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public static DurabilityPolicy sync() {
+        return new DurabilityPolicy(Mode.SYNC, 1, 0);
+    }
+
+    public static DurabilityPolicy groupCommit(int maxBatch, long maxDelayMillis) {
+        return new DurabilityPolicy(Mode.GROUP, maxBatch, maxDelayMillis);
+    }
+
+    public static DurabilityPolicy async() {
+        return new DurabilityPolicy(Mode.ASYNC, DEFAULT_MAX_BATCH, 0);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+}
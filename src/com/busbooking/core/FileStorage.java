@@ -1,14 +1,45 @@
 package com.busbooking.core;
 
-import com.busbooking.model.Seat;
+import com.busbooking.model.Schedule;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
 
+// One line per booked seat: route,day,time,seat,name,id,phone. A trip's waitlist follows
+// its seats as lines with seat -1, in waiting order.
+//
+// Files start with a "#bookings,2" header, and every block of up to BLOCK_LINES lines is
+// followed by "#crc32c,<lines>,<checksum>" over the block's bytes; "#end,<lines>" closes a
+// complete file. A save writes a temp file next to the target, fsyncs it and renames it
+// over the target, so a crash leaves either the old or the new snapshot in place. Load
+// checks the checksums in the same pass that parses the lines and salvages what it can:
+// blocks that fail their checksum and lines after the last good block of a cut-off file
+// are dropped, and the damaged file is copied to <file>.corrupt before the next save can
+// replace it. Files without the header are read as before, without verification.
 public class FileStorage implements Storage {
+    private static final String HEADER = "#bookings,2";
+    private static final String CHECKSUM = "#crc32c,";
+    private static final String END = "#end,";
+    private static final int BLOCK_LINES = 128;
+
+    // Saves and loads of one file are serialized, so they can share a fixed temp file name.
+    private static final ConcurrentHashMap<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
     private final String filePath;
 
     public FileStorage(String filePath) {
@@ -17,86 +48,376 @@ public class FileStorage implements Storage {
 
     @Override
     public void save(BusServiceState state) throws Exception {
-        File file = new File(filePath);
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-            for (int r = 0; r < AbstractBusService.MAX_ROUTES; r++) {
-                for (int d = 0; d < AbstractBusService.MAX_DAYS; d++) {
-                    for (int t = 0; t < AbstractBusService.MAX_TIMES; t++) {
-                        for (int s = 0; s < AbstractBusService.MAX_SEATS; s++) {
-                            if (state.booked[r][d][t][s]) {
-                                Seat seat = state.seatData[r][d][t][s];
-                                String line = r + "," + d + "," + t + "," + s + "," +
-                                        escape(seat.getName()) + "," + escape(seat.getId()) + "," + escape(seat.getPhone());
-                                writer.write(line);
-                                writer.newLine();
-                            }
+        saveTrips(state, 0, state.schedule.getTripCount());
+    }
+
+    // Lines for trips or seats that no longer exist in the schedule are skipped.
+    @Override
+    public BusServiceState load(Schedule schedule) throws Exception {
+        BusServiceState state = new BusServiceState(schedule);
+        loadTrips(state, 0, schedule.getTripCount());
+        return state;
+    }
+
+    // Checks the file's checksums and line format without loading it.
+    public Verification verify() throws IOException {
+        Path path = Paths.get(filePath);
+        synchronized (lock(path)) {
+            return scan(path, fields -> { });
+        }
+    }
+
+    // Replaces the file with the bookings of trips [fromTrip, toTrip).
+    void saveTrips(BusServiceState state, int fromTrip, int toTrip) throws IOException {
+        Path path = Paths.get(filePath);
+        Path temp = tempFile(path);
+        Schedule schedule = state.schedule;
+        int days = schedule.getDayCount();
+        int times = schedule.getTimeCount();
+        synchronized (lock(path)) {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                BlockWriter writer = new BlockWriter(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+                for (int trip = fromTrip; trip < toTrip; trip++) {
+                    int r = trip / (days * times);
+                    int d = trip / times % days;
+                    int t = trip % times;
+                    String prefix = r + "," + d + "," + t + ",";
+                    long bits = state.booked[trip];
+                    while (bits != 0) {
+                        int s = Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                        writer.line(prefix + s + "," + escape(state.getName(trip, s)) + "," +
+                                escape(state.getId(trip, s)) + "," + escape(state.getPhone(trip, s)));
+                    }
+                    for (int i = 0; i < state.getWaitlistSize(trip); i++) {
+                        writer.line(prefix + "-1," + escape(state.getWaitlistName(trip, i)) + "," +
+                                escape(state.getWaitlistId(trip, i)) + "," + escape(state.getWaitlistPhone(trip, i)));
+                    }
+                }
+                writer.finish();
+                channel.force(true);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory(path);
+        }
+    }
+
+    // Books every line of the file whose trip lies in [fromTrip, toTrip) into state, so
+    // loads of disjoint ranges can run in parallel on one state.
+    void loadTrips(BusServiceState state, int fromTrip, int toTrip) throws IOException {
+        Path path = Paths.get(filePath);
+        Schedule schedule = state.schedule;
+        synchronized (lock(path)) {
+            // Left behind by a save that didn't finish; the file itself is still intact
+            Files.deleteIfExists(tempFile(path));
+            Verification result = scan(path, fields -> {
+                int r = Integer.parseInt(fields[0]);
+                int d = Integer.parseInt(fields[1]);
+                int t = Integer.parseInt(fields[2]);
+                int s = Integer.parseInt(fields[3]);
+                if (s == -1 ? !schedule.containsTrip(r, d, t) : !schedule.contains(r, d, t, s)) return;
+                int trip = schedule.tripIndex(r, d, t);
+                if (trip < fromTrip || trip >= toTrip) return;
+                if (s == -1) {
+                    state.addToWaitlist(trip, fields[4], fields[5], fields[6]);
+                } else {
+                    state.book(r, d, t, s, fields[4], fields[5], fields[6]);
+                }
+            });
+            if (!result.isClean()) {
+                Path copy = path.resolveSibling(path.getFileName() + ".corrupt");
+                Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+                System.err.println("Salvaged bookings from " + path + " (" + result + "); original kept as " + copy);
+            }
+        }
+    }
+
+    interface RecordHandler {
+        void accept(String[] fields) throws IOException;
+    }
+
+    // Reads the file once, verifying each block before handing its records to the handler;
+    // a missing file reads as empty.
+    private static Verification scan(Path path, RecordHandler handler) throws IOException {
+        Verification result = new Verification();
+        InputStream stream;
+        try {
+            stream = Files.newInputStream(path);
+        } catch (NoSuchFileException e) {
+            return result;
+        }
+        try (LineReader in = new LineReader(stream)) {
+            CRC32C crc = new CRC32C();
+            List<String> block = new ArrayList<>(BLOCK_LINES);
+            String line = in.next();
+            // Record lines start with a digit, so any comment line here is a (possibly damaged) header
+            result.checksummed = line != null && line.startsWith("#");
+            if (result.checksummed) {
+                if (!HEADER.equals(line)) result.malformedLines++;
+                line = in.next();
+            }
+            boolean ended = false;
+            long blockLines = 0; // lines covered by checksum lines so far, good or bad
+            for (; line != null; line = in.next()) {
+                if (!result.checksummed) {
+                    deliver(line, handler, result);
+                } else if (ended) {
+                    result.droppedLines++;
+                } else if (line.startsWith(CHECKSUM)) {
+                    result.blocks++;
+                    blockLines += block.size();
+                    if (checksumMatches(line, block.size(), crc)) {
+                        for (String record : block) {
+                            deliver(record, handler, result);
                         }
+                    } else {
+                        result.corruptBlocks++;
+                        result.droppedLines += block.size();
+                    }
+                    block.clear();
+                    crc.reset();
+                } else if (line.startsWith(END)) {
+                    ended = true;
+                    result.droppedLines += block.size();
+                    block.clear();
+                    // A block removed together with its checksum line only shows up here
+                    long expected = parseCount(line.substring(END.length()));
+                    if (expected != blockLines) {
+                        result.corruptBlocks++;
+                        result.droppedLines += Math.max(0, expected - blockLines);
                     }
+                } else {
+                    block.add(line);
+                    in.updateChecksum(crc);
                 }
             }
+            if (result.checksummed && !ended) {
+                result.truncated = true;
+                result.droppedLines += block.size();
+            }
         }
+        return result;
     }
 
-    @Override
-    public BusServiceState load() throws Exception {
-        File file = new File(filePath);
-        boolean[][][][] booked = new boolean[AbstractBusService.MAX_ROUTES][AbstractBusService.MAX_DAYS][AbstractBusService.MAX_TIMES][AbstractBusService.MAX_SEATS];
-        Seat[][][][] seats = new Seat[AbstractBusService.MAX_ROUTES][AbstractBusService.MAX_DAYS][AbstractBusService.MAX_TIMES][AbstractBusService.MAX_SEATS];
-        for (int r = 0; r < AbstractBusService.MAX_ROUTES; r++) {
-            for (int d = 0; d < AbstractBusService.MAX_DAYS; d++) {
-                for (int t = 0; t < AbstractBusService.MAX_TIMES; t++) {
-                    for (int s = 0; s < AbstractBusService.MAX_SEATS; s++) {
-                        seats[r][d][t][s] = new Seat();
+    private static boolean checksumMatches(String line, int lines, CRC32C crc) {
+        String[] parts = line.split(",");
+        try {
+            return parts.length == 3 && Integer.parseInt(parts[1]) == lines &&
+                    Long.parseLong(parts[2], 16) == crc.getValue();
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static long parseCount(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void deliver(String line, RecordHandler handler, Verification result) throws IOException {
+        String[] fields = splitCsv(line);
+        if (fields == null) {
+            result.malformedLines++;
+            return;
+        }
+        try {
+            handler.accept(fields);
+            result.records++;
+        } catch (NumberFormatException e) {
+            result.malformedLines++;
+        }
+    }
+
+    // Outcome of reading a file: how many records were good and what had to be dropped.
+    public static class Verification {
+        private long records;
+        private long blocks;
+        private long corruptBlocks;
+        private long droppedLines;
+        private long malformedLines;
+        private boolean truncated;
+        private boolean checksummed;
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getBlocks() {
+            return blocks;
+        }
+
+        public long getCorruptBlocks() {
+            return corruptBlocks;
+        }
+
+        public long getDroppedLines() {
+            return droppedLines;
+        }
+
+        public long getMalformedLines() {
+            return malformedLines;
+        }
+
+        // True if a checksummed file ends without its end marker.
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        // False for files written before checksums were added; those are read unverified.
+        public boolean isChecksummed() {
+            return checksummed;
+        }
+
+        public boolean isClean() {
+            return corruptBlocks == 0 && droppedLines == 0 && malformedLines == 0 && !truncated;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("records=%d blocks=%d corrupt blocks=%d dropped lines=%d malformed lines=%d%s%s",
+                    records, blocks, corruptBlocks, droppedLines, malformedLines,
+                    truncated ? " truncated" : "", checksummed ? "" : " unverified");
+        }
+    }
+
+    // Writes lines as UTF-8 and closes every block with its line count and checksum.
+    private static final class BlockWriter {
+        private final OutputStream out;
+        private final CRC32C crc = new CRC32C();
+        private final StringBuilder block = new StringBuilder(BLOCK_LINES * 48);
+        private int lines;
+        private long total;
+
+        BlockWriter(OutputStream out) throws IOException {
+            this.out = out;
+            out.write((HEADER + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void line(String line) throws IOException {
+            block.append(line).append('\n');
+            if (++lines == BLOCK_LINES) {
+                flushBlock();
+            }
+        }
+
+        void finish() throws IOException {
+            flushBlock();
+            out.write((END + total + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        private void flushBlock() throws IOException {
+            if (lines == 0) return;
+            byte[] bytes = block.toString().getBytes(StandardCharsets.UTF_8);
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            out.write(bytes);
+            out.write((CHECKSUM + lines + "," + Long.toHexString(crc.getValue()) + "\n").getBytes(StandardCharsets.UTF_8));
+            total += lines;
+            lines = 0;
+            block.setLength(0);
+        }
+    }
+
+    // Splits on '\n' and keeps the raw bytes of the current line, so checksums cover
+    // exactly what was written rather than a decoded and re-encoded copy.
+    private static final class LineReader implements AutoCloseable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int position;
+        private int limit;
+        private byte[] line = new byte[256];
+        private int length;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        // Next line without its terminator (and without a trailing '\r'), or null at the end.
+        String next() throws IOException {
+            length = 0;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer, 0, buffer.length);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return length == 0 ? null : decode();
                     }
                 }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                append(start, position - start);
+                if (position < limit) {
+                    position++;
+                    append(position - 1, 1);
+                    return decode();
+                }
             }
         }
-        if (!file.exists()) {
-            return new BusServiceState(booked, seats);
-        }
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = splitCsv(line);
-                if (parts.length < 7) continue;
-                int r = Integer.parseInt(parts[0]);
-                int d = Integer.parseInt(parts[1]);
-                int t = Integer.parseInt(parts[2]);
-                int s = Integer.parseInt(parts[3]);
-                booked[r][d][t][s] = true;
-                Seat seat = seats[r][d][t][s];
-                seat.setBooked(true);
-                seat.setName(unescape(parts[4]));
-                seat.setId(unescape(parts[5]));
-                seat.setPhone(unescape(parts[6]));
+
+        void updateChecksum(CRC32C crc) {
+            crc.update(line, 0, length);
+        }
+
+        private void append(int from, int count) {
+            if (length + count > line.length) {
+                byte[] grown = new byte[Math.max(line.length * 2, length + count)];
+                System.arraycopy(line, 0, grown, 0, length);
+                line = grown;
             }
+            System.arraycopy(buffer, from, line, length, count);
+            length += count;
+        }
+
+        private String decode() {
+            int end = length;
+            if (end > 0 && line[end - 1] == '\n') end--;
+            if (end > 0 && line[end - 1] == '\r') end--;
+            return new String(line, 0, end, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
         }
-        return new BusServiceState(booked, seats);
     }
 
-    private static String escape(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace(",", "\\,").replace("\n", "\\n");
+    private static Object lock(Path path) {
+        return LOCKS.computeIfAbsent(path.toAbsolutePath().normalize(), p -> new Object());
     }
 
-    private static String unescape(String s) {
-        StringBuilder out = new StringBuilder();
-        boolean esc = false;
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            if (esc) {
-                if (c == 'n') out.append('\n');
-                else out.append(c);
-                esc = false;
-            } else if (c == '\\') {
-                esc = true;
-            } else {
-                out.append(c);
-            }
+    static Path tempFile(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    // Makes the rename itself durable. Not every platform can open a directory; there the
+    // rename is as durable as the file system makes it.
+    static void syncDirectory(Path path) {
+        Path directory = path.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // e.g. Windows
         }
-        return out.toString();
     }
 
+    private static String escape(String s) {
+        if (s == null) return "";
+        return s.replace("\\", "\\\\").replace(",", "\\,").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    // Splits a record line into its seven unescaped fields, or returns null if it has a
+    // different number of fields.
     private static String[] splitCsv(String line) {
         String[] parts = new String[7];
         StringBuilder current = new StringBuilder();
@@ -105,19 +426,20 @@ public class FileStorage implements Storage {
         for (int i = 0; i < line.length(); i++) {
             char c = line.charAt(i);
             if (esc) {
-                current.append(c == 'n' ? '\n' : c);
+                current.append(c == 'n' ? '\n' : c == 'r' ? '\r' : c);
                 esc = false;
             } else if (c == '\\') {
                 esc = true;
             } else if (c == ',') {
-                if (idx < parts.length) parts[idx++] = current.toString();
+                if (idx == parts.length - 1) return null;
+                parts[idx++] = current.toString();
                 current.setLength(0);
             } else {
                 current.append(c);
             }
         }
-        if (idx < parts.length) parts[idx] = current.toString();
+        if (idx != parts.length - 1) return null;
+        parts[idx] = current.toString();
         return parts;
     }
 }
-
@@ -0,0 +1,202 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+// Write-ahead journal in front of a snapshot storage: each apply call appends one
+// checksummed record holding all of its mutations, so a group booking replays
+// completely or not at all. The snapshot is rewritten only every compactEvery mutations.
+public class JournalStorage implements Storage {
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    // Payload tag of a multi-mutation record; single-mutation records start with the
+    // Mutation.Type ordinal instead.
+    private static final int BATCH = 0x7F;
+
+    private final Storage snapshot;
+    private final String journalPath;
+    private final int compactEvery;
+
+    private FileChannel channel;
+    private int pendingRecords;
+
+    public JournalStorage(Storage snapshot, String journalPath) {
+        this(snapshot, journalPath, 1000);
+    }
+
+    public JournalStorage(Storage snapshot, String journalPath, int compactEvery) {
+        this.snapshot = snapshot;
+        this.journalPath = journalPath;
+        this.compactEvery = compactEvery;
+    }
+
+    @Override
+    public synchronized void save(BusServiceState state) throws Exception {
+        snapshot.save(state);
+        openChannel().truncate(0);
+        pendingRecords = 0;
+    }
+
+    @Override
+    public synchronized BusServiceState load(Schedule schedule) throws Exception {
+        BusServiceState state = snapshot.load(schedule);
+        pendingRecords = replay(state);
+        return state;
+    }
+
+    @Override
+    public synchronized void apply(List<Mutation> mutations, Supplier<BusServiceState> state) throws Exception {
+        if (mutations.isEmpty()) return;
+        FileChannel ch = openChannel();
+        ByteBuffer record = encode(mutations);
+        while (record.hasRemaining()) {
+            ch.write(record);
+        }
+        ch.force(false);
+        pendingRecords += mutations.size();
+        if (pendingRecords >= compactEvery) {
+            save(state.get());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // Replays valid records into state and cuts off anything after the first torn or corrupt one.
+    private int replay(BusServiceState state) throws IOException {
+        File file = new File(journalPath);
+        if (!file.exists()) return 0;
+        int count = 0;
+        long validLength = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            while (validLength + 8 <= length) {
+                raf.seek(validLength);
+                int size = raf.readInt();
+                int checksum = raf.readInt();
+                if (size <= 0 || size > MAX_RECORD_BYTES || validLength + 8 + size > length) break;
+                byte[] payload = new byte[size];
+                raf.readFully(payload);
+                if (crc(payload) != checksum) break;
+                List<Mutation> mutations = decode(payload);
+                if (mutations == null) break;
+                for (Mutation m : mutations) {
+                    // Records for trips or seats no longer in the schedule are skipped
+                    if (m.fits(state.schedule)) {
+                        m.applyTo(state);
+                    }
+                }
+                validLength += 8 + size;
+                count += mutations.size();
+            }
+        }
+        FileChannel ch = openChannel();
+        if (ch.size() > validLength) {
+            ch.truncate(validLength);
+            ch.force(false);
+        }
+        return count;
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel == null) {
+            RandomAccessFile raf = new RandomAccessFile(journalPath, "rw");
+            channel = raf.getChannel();
+        }
+        channel.position(channel.size());
+        return channel;
+    }
+
+    private static ByteBuffer encode(List<Mutation> mutations) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * mutations.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (mutations.size() == 1) {
+            writeMutation(out, mutations.get(0));
+        } else {
+            out.writeByte(BATCH);
+            out.writeInt(mutations.size());
+            for (Mutation m : mutations) {
+                writeMutation(out, m);
+            }
+        }
+        byte[] payload = bytes.toByteArray();
+        if (payload.length > MAX_RECORD_BYTES) {
+            throw new IOException("Journal record too large: " + payload.length + " bytes");
+        }
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+        return record;
+    }
+
+    private static void writeMutation(DataOutputStream out, Mutation m) throws IOException {
+        out.writeByte(m.type.ordinal());
+        out.writeInt(m.routeIndex);
+        out.writeInt(m.dayIndex);
+        out.writeInt(m.timeIndex);
+        out.writeInt(m.seatIndex);
+        out.writeUTF(m.name == null ? "" : m.name);
+        out.writeUTF(m.id == null ? "" : m.id);
+        out.writeUTF(m.phone == null ? "" : m.phone);
+    }
+
+    // Returns null if the payload is not a well-formed record.
+    private static List<Mutation> decode(byte[] payload) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            int type = in.readByte();
+            if (type != BATCH) {
+                Mutation m = readMutation(in, type);
+                return m == null ? null : Collections.singletonList(m);
+            }
+            int count = in.readInt();
+            if (count <= 0 || count > payload.length) return null;
+            List<Mutation> mutations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Mutation m = readMutation(in, in.readByte());
+                if (m == null) return null;
+                mutations.add(m);
+            }
+            return mutations;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Mutation readMutation(DataInputStream in, int type) throws IOException {
+        int r = in.readInt();
+        int d = in.readInt();
+        int t = in.readInt();
+        int s = in.readInt();
+        String name = in.readUTF();
+        String id = in.readUTF();
+        String phone = in.readUTF();
+        if (type < 0 || type >= Mutation.Type.values().length) {
+            return null;
+        }
+        return new Mutation(Mutation.Type.values()[type], r, d, t, s, name, id, phone);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,132 @@
+package com.busbooking.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear latency histogram in nanoseconds, in the style of HdrHistogram: every
+// power of two is split into SUB_BUCKETS linear buckets, so any recorded value is
+// reported to within 1/SUB_BUCKETS (12.5%). Buckets are LongAdders, so concurrent
+// writers don't contend on a shared counter.
+public class LatencyHistogram {
+    // Pass to recordSince when a call wasn't chosen for timing.
+    public static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets[bucket(nanos)].increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public void recordSince(long startNanos) {
+        if (startNanos != NOT_SAMPLED) record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    // Value at the given percentile (0-100), reported as the upper edge of its bucket.
+    public long percentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public Snapshot snapshot() {
+        long n = count.sum();
+        return new Snapshot(n, n == 0 ? 0 : sum.sum() / n, percentile(50), percentile(99), percentile(99.9), max.get());
+    }
+
+    // Values below SUB_BUCKETS map to themselves; above that, the exponent picks a
+    // group of SUB_BUCKETS buckets and the next SUB_BUCKET_BITS bits pick one of them.
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> exponent) & (SUB_BUCKETS - 1);
+        return (exponent + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << exponent) - 1;
+    }
+
+    // Point-in-time summary, in microseconds; exposed as composite data over JMX.
+    public static class Snapshot {
+        private final long count;
+        private final long meanNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+        private final long maxNanos;
+
+        Snapshot(long count, long meanNanos, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.p999Nanos = p999Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return micros(meanNanos);
+        }
+
+        public double getP50Micros() {
+            return micros(p50Nanos);
+        }
+
+        public double getP99Micros() {
+            return micros(p99Nanos);
+        }
+
+        public double getP999Micros() {
+            return micros(p999Nanos);
+        }
+
+        public double getMaxMicros() {
+            return micros(maxNanos);
+        }
+
+        private static double micros(long nanos) {
+            return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                    count, getMeanMicros(), getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+        }
+    }
+}
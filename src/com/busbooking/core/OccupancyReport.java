@@ -0,0 +1,30 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+
+// Fixed occupancy counts, either a snapshot of a service's OccupancyStats or recomputed
+// in a batch from saved bookings, e.g. to report on a bookings file and its journal offline:
+//   OccupancyReport.of(new JournalStorage(new FileStorage(path), journalPath).load(schedule)).writeCsv(writer)
+public class OccupancyReport extends OccupancyView {
+    private final int[] counts;
+
+    OccupancyReport(OccupancyView layout, int[] counts) {
+        super(layout);
+        this.counts = counts;
+    }
+
+    private OccupancyReport(Schedule schedule, long[] booked) {
+        super(schedule);
+        this.counts = countAll(booked);
+    }
+
+    // Counts every route in parallel on the common fork-join pool.
+    public static OccupancyReport of(Storage.BusServiceState state) {
+        return new OccupancyReport(state.schedule, state.booked);
+    }
+
+    @Override
+    int count(int index) {
+        return counts[index];
+    }
+}
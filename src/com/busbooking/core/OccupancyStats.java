@@ -0,0 +1,55 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Live occupancy aggregates of one bus service. Every booking and cancellation adjusts the
+// trip's count and each aggregate containing it, so dashboards read counts and load
+// factors without touching the seat data. Counts are updated one at a time, so a reader
+// racing a booking may see the trip counted before the route; take a snapshot() for a
+// report whose rows add up.
+public class OccupancyStats extends OccupancyView {
+    private final AtomicIntegerArray counts;
+
+    OccupancyStats(Schedule schedule) {
+        super(schedule);
+        counts = new AtomicIntegerArray(size());
+    }
+
+    @Override
+    int count(int index) {
+        return counts.get(index);
+    }
+
+    void booked(int trip) {
+        add(trip, 1);
+    }
+
+    void cancelled(int trip) {
+        add(trip, -1);
+    }
+
+    // Recounts everything from loaded seat bitmaps; call before the service is shared.
+    void reset(long[] booked) {
+        int[] recount = countAll(booked);
+        for (int i = 0; i < recount.length; i++) {
+            counts.set(i, recount[i]);
+        }
+    }
+
+    // Detached copy of the current counts.
+    public OccupancyReport snapshot() {
+        int[] copy = new int[size()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new OccupancyReport(this, copy);
+    }
+
+    private void add(int trip, int delta) {
+        for (int index : indices(trip)) {
+            counts.getAndAdd(index, delta);
+        }
+    }
+}
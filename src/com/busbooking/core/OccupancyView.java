@@ -0,0 +1,298 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.stream.IntStream;
+
+// Booked seats against capacity for the whole network and for every route, day, time
+// slot, (route, day) pair and trip. All counts sit in one flat array laid out as
+//   [total | routes | days | time slots | route-days | trips]
+// so every count and load factor is a single read; only the peak-slot queries scan.
+// OccupancyStats keeps the counts live, OccupancyReport holds a fixed result.
+public abstract class OccupancyView {
+    protected final Schedule schedule;
+    final int routeBase;
+    final int dayBase;
+    final int timeBase;
+    final int routeDayBase;
+    final int tripBase;
+    private final int[] capacities; // same layout as the counts
+
+    OccupancyView(Schedule schedule) {
+        this.schedule = schedule;
+        int routes = schedule.getRouteCount();
+        int days = schedule.getDayCount();
+        int times = schedule.getTimeCount();
+        routeBase = 1;
+        dayBase = routeBase + routes;
+        timeBase = dayBase + days;
+        routeDayBase = timeBase + times;
+        tripBase = routeDayBase + routes * days;
+        capacities = new int[tripBase + schedule.getTripCount()];
+        for (int trip = 0; trip < schedule.getTripCount(); trip++) {
+            addTo(capacities, trip, schedule.getCapacity(trip));
+        }
+    }
+
+    // Shares the layout and capacities of a view over the same schedule.
+    OccupancyView(OccupancyView layout) {
+        this.schedule = layout.schedule;
+        this.routeBase = layout.routeBase;
+        this.dayBase = layout.dayBase;
+        this.timeBase = layout.timeBase;
+        this.routeDayBase = layout.routeDayBase;
+        this.tripBase = layout.tripBase;
+        this.capacities = layout.capacities;
+    }
+
+    abstract int count(int index);
+
+    int size() {
+        return capacities.length;
+    }
+
+    // Positions of the counts a trip contributes to: the total, its route, day, time slot,
+    // route-day and the trip itself. Live updates and capacities both go through here.
+    int[] indices(int trip) {
+        int days = schedule.getDayCount();
+        int times = schedule.getTimeCount();
+        int routeDay = trip / times;
+        return new int[] {
+                0,
+                routeBase + routeDay / days,
+                dayBase + routeDay % days,
+                timeBase + trip % times,
+                routeDayBase + routeDay,
+                tripBase + trip
+        };
+    }
+
+    // Adds delta to the trip and to every aggregate the trip belongs to.
+    void addTo(int[] counts, int trip, int delta) {
+        for (int index : indices(trip)) {
+            counts[index] += delta;
+        }
+    }
+
+    // Counts every aggregate from per-trip seat bitmaps. Routes are counted in parallel:
+    // each route owns its route, route-day and trip entries, and the per-day and per-slot
+    // totals it contributes come back as partial sums that are added up at the end.
+    int[] countAll(long[] booked) {
+        int days = schedule.getDayCount();
+        int times = schedule.getTimeCount();
+        int[] counts = new int[size()];
+        int[] crossRoute = IntStream.range(0, schedule.getRouteCount()).parallel()
+                .mapToObj(r -> {
+                    int[] partial = new int[1 + days + times];
+                    for (int d = 0; d < days; d++) {
+                        int routeDay = r * days + d;
+                        for (int t = 0; t < times; t++) {
+                            int trip = routeDay * times + t;
+                            int n = Long.bitCount(booked[trip]);
+                            counts[tripBase + trip] = n;
+                            counts[routeDayBase + routeDay] += n;
+                            partial[1 + d] += n;
+                            partial[1 + days + t] += n;
+                        }
+                        counts[routeBase + r] += counts[routeDayBase + routeDay];
+                    }
+                    partial[0] = counts[routeBase + r];
+                    return partial;
+                })
+                .reduce(new int[1 + days + times], (a, b) -> {
+                    int[] sum = new int[a.length];
+                    for (int i = 0; i < sum.length; i++) {
+                        sum[i] = a[i] + b[i];
+                    }
+                    return sum;
+                });
+        counts[0] = crossRoute[0];
+        System.arraycopy(crossRoute, 1, counts, dayBase, days);
+        System.arraycopy(crossRoute, 1 + days, counts, timeBase, times);
+        return counts;
+    }
+
+    public Schedule getSchedule() {
+        return schedule;
+    }
+
+    public int getBooked() {
+        return count(0);
+    }
+
+    public int getCapacity() {
+        return capacities[0];
+    }
+
+    public double getLoadFactor() {
+        return loadFactor(0);
+    }
+
+    public int getRouteBooked(int routeIndex) {
+        return count(routeBase + routeIndex);
+    }
+
+    public int getRouteCapacity(int routeIndex) {
+        return capacities[routeBase + routeIndex];
+    }
+
+    public double getRouteLoadFactor(int routeIndex) {
+        return loadFactor(routeBase + routeIndex);
+    }
+
+    public int getDayBooked(int dayIndex) {
+        return count(dayBase + dayIndex);
+    }
+
+    public int getDayCapacity(int dayIndex) {
+        return capacities[dayBase + dayIndex];
+    }
+
+    public double getDayLoadFactor(int dayIndex) {
+        return loadFactor(dayBase + dayIndex);
+    }
+
+    // Time slots are counted across every route and day.
+    public int getTimeBooked(int timeIndex) {
+        return count(timeBase + timeIndex);
+    }
+
+    public int getTimeCapacity(int timeIndex) {
+        return capacities[timeBase + timeIndex];
+    }
+
+    public double getTimeLoadFactor(int timeIndex) {
+        return loadFactor(timeBase + timeIndex);
+    }
+
+    public int getBooked(int routeIndex, int dayIndex) {
+        return count(routeDayIndex(routeIndex, dayIndex));
+    }
+
+    public int getCapacity(int routeIndex, int dayIndex) {
+        return capacities[routeDayIndex(routeIndex, dayIndex)];
+    }
+
+    public double getLoadFactor(int routeIndex, int dayIndex) {
+        return loadFactor(routeDayIndex(routeIndex, dayIndex));
+    }
+
+    public int getBooked(int routeIndex, int dayIndex, int timeIndex) {
+        return count(tripBase + schedule.tripIndex(routeIndex, dayIndex, timeIndex));
+    }
+
+    public double getLoadFactor(int routeIndex, int dayIndex, int timeIndex) {
+        return loadFactor(tripBase + schedule.tripIndex(routeIndex, dayIndex, timeIndex));
+    }
+
+    // The time slot with the highest load factor across the network; ties go to the earlier slot.
+    public int getPeakTime() {
+        return peak(timeBase);
+    }
+
+    // The busiest time slot of one route and day.
+    public int getPeakTime(int routeIndex, int dayIndex) {
+        return peak(tripBase + schedule.tripIndex(routeIndex, dayIndex, 0));
+    }
+
+    // Streams one CSV row per aggregate and per trip to out, which the caller should buffer:
+    //   scope,route,day,time,booked,capacity,load_factor,peak_time
+    // scope is total, route, day, time, route_day or trip; cells that don't apply to the
+    // scope are left empty. peak_time is filled in for total and route_day rows.
+    public void writeCsv(Writer out) throws IOException {
+        String[] routes = schedule.getRouteNames();
+        String[] days = schedule.getDayNames();
+        String[] times = schedule.getTimeSlots();
+        out.write("scope,route,day,time,booked,capacity,load_factor,peak_time\n");
+        writeRow(out, "total", null, null, null, 0, times[getPeakTime()]);
+        for (int r = 0; r < routes.length; r++) {
+            writeRow(out, "route", routes[r], null, null, routeBase + r, null);
+        }
+        for (int d = 0; d < days.length; d++) {
+            writeRow(out, "day", null, days[d], null, dayBase + d, null);
+        }
+        for (int t = 0; t < times.length; t++) {
+            writeRow(out, "time", null, null, times[t], timeBase + t, null);
+        }
+        for (int r = 0; r < routes.length; r++) {
+            for (int d = 0; d < days.length; d++) {
+                writeRow(out, "route_day", routes[r], days[d], null, routeDayIndex(r, d), times[getPeakTime(r, d)]);
+            }
+        }
+        for (int r = 0; r < routes.length; r++) {
+            for (int d = 0; d < days.length; d++) {
+                for (int t = 0; t < times.length; t++) {
+                    writeRow(out, "trip", routes[r], days[d], times[t], tripBase + schedule.tripIndex(r, d, t), null);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private void writeRow(Writer out, String scope, String route, String day, String time, int index, String peak) throws IOException {
+        out.write(scope);
+        out.write(',');
+        writeCell(out, route);
+        out.write(',');
+        writeCell(out, day);
+        out.write(',');
+        writeCell(out, time);
+        out.write(',');
+        int booked = count(index);
+        out.write(Integer.toString(booked));
+        out.write(',');
+        out.write(Integer.toString(capacities[index]));
+        out.write(',');
+        // Four decimals without going through String.format on every row
+        long scaled = Math.round(booked * 10000.0 / capacities[index]);
+        out.write(Long.toString(scaled / 10000));
+        out.write('.');
+        String fraction = Long.toString(scaled % 10000);
+        for (int i = fraction.length(); i < 4; i++) {
+            out.write('0');
+        }
+        out.write(fraction);
+        out.write(',');
+        writeCell(out, peak);
+        out.write('\n');
+    }
+
+    // Quotes names that contain a comma, quote or line break.
+    private static void writeCell(Writer out, String value) throws IOException {
+        if (value == null) return;
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    private int routeDayIndex(int routeIndex, int dayIndex) {
+        return routeDayBase + routeIndex * schedule.getDayCount() + dayIndex;
+    }
+
+    private double loadFactor(int index) {
+        return (double) count(index) / capacities[index];
+    }
+
+    // Time slots sit next to each other both in the per-slot block and within a route-day's trips.
+    private int peak(int from) {
+        int best = 0;
+        for (int t = 1; t < schedule.getTimeCount(); t++) {
+            int i = from + t;
+            int b = from + best;
+            // booked_i / cap_i > booked_b / cap_b, without dividing
+            if ((long) count(i) * capacities[b] > (long) count(b) * capacities[i]) best = t;
+        }
+        return best;
+    }
+}
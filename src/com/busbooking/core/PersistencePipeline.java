@@ -0,0 +1,194 @@
+package com.busbooking.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Moves mutations from the booking path to storage according to a DurabilityPolicy.
+// Mutations are written in submission order; batching lets one storage write (and
+// one fsync for journaled storage) cover many concurrent bookings.
+class PersistencePipeline {
+    private final Storage storage;
+    private final DurabilityPolicy policy;
+    private final Supplier<Storage.BusServiceState> snapshot;
+    private final BookingMetrics metrics;
+    private final Object storageLock = new Object();
+    // Makes the closed check and the hand-off to the writer one step, so nothing is queued
+    // behind the stop marker where the exited writer would never complete it.
+    private final Object submitLock = new Object();
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private volatile Consumer<Throwable> failureHandler = PersistencePipeline::logFailure;
+    private boolean closed; // guarded by submitLock
+    private Pending stopMarker; // guarded by submitLock
+
+    // A group of mutations is never split across storage writes.
+    private static class Pending {
+        final List<Storage.Mutation> mutations; // null for a flush or stop marker
+        final boolean stop; // the writer exits after writing this marker's batch
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(List<Storage.Mutation> mutations) {
+            this(mutations, false);
+        }
+
+        Pending(List<Storage.Mutation> mutations, boolean stop) {
+            this.mutations = mutations;
+            this.stop = stop;
+        }
+    }
+
+    PersistencePipeline(Storage storage, DurabilityPolicy policy, Supplier<Storage.BusServiceState> snapshot, BookingMetrics metrics) {
+        this.storage = storage;
+        this.policy = policy;
+        this.snapshot = snapshot;
+        this.metrics = metrics;
+        if (policy.getMode() != DurabilityPolicy.Mode.SYNC) {
+            Thread writer = new Thread(this::runWriter, "booking-persistence");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    void setFailureHandler(Consumer<Throwable> handler) {
+        failureHandler = handler == null ? PersistencePipeline::logFailure : handler;
+    }
+
+    CompletableFuture<Void> submit(Storage.Mutation mutation) {
+        return submit(Collections.singletonList(mutation));
+    }
+
+    // Writes the mutations as one unit: they reach storage in the same apply call.
+    CompletableFuture<Void> submit(List<Storage.Mutation> mutations) {
+        Pending pending = new Pending(mutations);
+        synchronized (submitLock) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Persistence is closed"));
+            }
+            if (policy.getMode() == DurabilityPolicy.Mode.SYNC) {
+                write(Collections.singletonList(pending));
+            } else {
+                queue.add(pending);
+            }
+        }
+        return pending.done;
+    }
+
+    // Waits until everything submitted so far has been written (or has failed).
+    void flush() {
+        if (policy.getMode() == DurabilityPolicy.Mode.SYNC) return;
+        Pending marker;
+        synchronized (submitLock) {
+            // Once closed, everything submitted is written by the time the stop marker completes
+            marker = closed ? stopMarker : new Pending(null);
+            if (!closed) queue.add(marker);
+        }
+        marker.done.join();
+    }
+
+    // Writes everything queued, stops the writer thread and closes the storage. Mutations
+    // submitted afterwards fail.
+    void close() {
+        Pending marker = null;
+        synchronized (submitLock) {
+            if (closed) return;
+            closed = true;
+            if (policy.getMode() != DurabilityPolicy.Mode.SYNC) {
+                marker = stopMarker = new Pending(null, true);
+                queue.add(marker);
+            }
+        }
+        if (marker != null) {
+            marker.done.join();
+        }
+        synchronized (storageLock) {
+            try {
+                storage.close();
+            } catch (Exception e) {
+                metrics.storageFailures.increment();
+                failureHandler.accept(e);
+            }
+        }
+    }
+
+    // Writes a full snapshot after all queued mutations.
+    void saveSnapshot() {
+        flush();
+        synchronized (storageLock) {
+            long start = System.nanoTime();
+            try {
+                storage.save(snapshot.get());
+                metrics.storageSaves.increment();
+                metrics.storageSaveLatency.recordSince(start);
+            } catch (Exception e) {
+                metrics.storageFailures.increment();
+                failureHandler.accept(e);
+            }
+        }
+    }
+
+    private void runWriter() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                if (policy.getMode() == DurabilityPolicy.Mode.GROUP) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getMaxDelayMillis());
+                    while (batch.size() < policy.getMaxBatch() && batch.get(batch.size() - 1).mutations != null) {
+                        Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                        batch.add(next);
+                    }
+                }
+                queue.drainTo(batch, policy.getMaxBatch() - batch.size());
+                write(batch);
+                for (Pending p : batch) {
+                    if (p.stop) return;
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        List<Storage.Mutation> mutations = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            if (p.mutations != null) mutations.addAll(p.mutations);
+        }
+        Exception failure = null;
+        if (!mutations.isEmpty()) {
+            synchronized (storageLock) {
+                long start = System.nanoTime();
+                try {
+                    storage.apply(mutations, snapshot);
+                    metrics.storageWrites.increment();
+                    metrics.storageWriteLatency.recordSince(start);
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            metrics.storageFailures.increment();
+            failureHandler.accept(failure);
+        }
+        for (Pending p : batch) {
+            if (failure != null && p.mutations != null) {
+                p.done.completeExceptionally(failure);
+            } else {
+                p.done.complete(null);
+            }
+        }
+    }
+
+    private static void logFailure(Throwable failure) {
+        System.err.println("Failed to persist bookings: " + failure);
+    }
+}
@@ -0,0 +1,173 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Short-lived seat holds. Held seats are tracked in one bitmap per trip, like bookings.
+// Expiry runs on a single daemon thread that owns a hashed timing wheel, so placing or
+// releasing a hold is O(1) no matter how many are outstanding.
+//
+// Services place and take holds under the same lock that guards booking the seat; the
+// expiry thread takes no service locks. Ownership of a hold goes to whoever removes it
+// from byId first, so a hold is either taken by its booking or expired, never both.
+final class SeatHolds {
+    private static final long TICK_MILLIS = 50;
+    private static final int WHEEL_SIZE = 512; // one revolution is about 25 s
+
+    static final class Hold {
+        final long id;
+        final int routeIndex;
+        final int dayIndex;
+        final int timeIndex;
+        final int trip;
+        final int seat;
+        final long deadlineMillis;
+
+        Hold(long id, int routeIndex, int dayIndex, int timeIndex, int trip, int seat, long deadlineMillis) {
+            this.id = id;
+            this.routeIndex = routeIndex;
+            this.dayIndex = dayIndex;
+            this.timeIndex = timeIndex;
+            this.trip = trip;
+            this.seat = seat;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    private final AtomicLongArray held;
+    private final ConcurrentHashMap<Long, Hold> byId = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    // New holds are handed to the expiry thread here; only that thread touches the wheel.
+    private final ConcurrentLinkedQueue<Hold> incoming = new ConcurrentLinkedQueue<>();
+    private Thread expiry;
+    private boolean closed;
+
+    SeatHolds(Schedule schedule) {
+        this.held = new AtomicLongArray(schedule.getTripCount());
+    }
+
+    long heldBits(int trip) {
+        return held.get(trip);
+    }
+
+    boolean isHeld(int trip, int seat) {
+        return (held.get(trip) & (1L << seat)) != 0;
+    }
+
+    int size() {
+        return byId.size();
+    }
+
+    // Holds the seat for ttlMillis and returns the hold ID, or -1 if it is already held.
+    // The caller has checked the seat isn't booked, under the lock bookings take.
+    long place(int routeIndex, int dayIndex, int timeIndex, int trip, int seat, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("Hold time must be positive");
+        }
+        long bit = 1L << seat;
+        long bits;
+        do {
+            bits = held.get(trip);
+            if ((bits & bit) != 0) return -1;
+        } while (!held.compareAndSet(trip, bits, bits | bit));
+        Hold hold = new Hold(nextId.getAndIncrement(), routeIndex, dayIndex, timeIndex, trip, seat,
+                System.currentTimeMillis() + ttlMillis);
+        byId.put(hold.id, hold);
+        incoming.add(hold);
+        startExpiry();
+        return hold.id;
+    }
+
+    // Returns the hold if it exists and hasn't run out, without taking it.
+    Hold get(long holdId) {
+        Hold hold = byId.get(holdId);
+        return hold == null || hold.deadlineMillis <= System.currentTimeMillis() ? null : hold;
+    }
+
+    // Takes the hold for booking: true if it was still live, in which case the seat is
+    // no longer held and the caller must book it before releasing its lock.
+    boolean take(Hold hold) {
+        if (!byId.remove(hold.id, hold)) return false;
+        clear(hold);
+        return hold.deadlineMillis > System.currentTimeMillis();
+    }
+
+    boolean release(long holdId) {
+        Hold hold = byId.remove(holdId);
+        if (hold == null) return false;
+        clear(hold);
+        return true;
+    }
+
+    private void clear(Hold hold) {
+        long bit = 1L << hold.seat;
+        long bits;
+        do {
+            bits = held.get(hold.trip);
+        } while (!held.compareAndSet(hold.trip, bits, bits & ~bit));
+    }
+
+    // Stops the expiry thread; holds placed afterwards no longer expire on their own.
+    synchronized void close() {
+        closed = true;
+        if (expiry != null) expiry.interrupt();
+    }
+
+    private synchronized void startExpiry() {
+        if (expiry != null || closed) return;
+        expiry = new Thread(this::runExpiry, "seat-hold-expiry");
+        expiry.setDaemon(true);
+        expiry.start();
+    }
+
+    private void runExpiry() {
+        List<List<Hold>> wheel = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        long tick = System.currentTimeMillis() / TICK_MILLIS;
+        while (true) {
+            long now = System.currentTimeMillis();
+            long sleep = (tick + 1) * TICK_MILLIS - now;
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            Hold hold;
+            while ((hold = incoming.poll()) != null) {
+                // Holds already released are skipped here and when their bucket comes round
+                if (byId.get(hold.id) != hold) continue;
+                // Bucket of the first tick that starts after the deadline
+                long due = Math.max(hold.deadlineMillis / TICK_MILLIS + 1, tick + 1);
+                wheel.get((int) (due % WHEEL_SIZE)).add(hold);
+            }
+            // Catch up on every tick that passed while we slept.
+            long target = System.currentTimeMillis() / TICK_MILLIS;
+            while (tick < target) {
+                tick++;
+                List<Hold> bucket = wheel.get((int) (tick % WHEEL_SIZE));
+                long nowMillis = System.currentTimeMillis();
+                int kept = 0;
+                for (int i = 0; i < bucket.size(); i++) {
+                    Hold h = bucket.get(i);
+                    if (byId.get(h.id) != h) continue;
+                    if (h.deadlineMillis <= nowMillis) {
+                        if (byId.remove(h.id, h)) clear(h);
+                    } else {
+                        bucket.set(kept++, h); // due in a later revolution
+                    }
+                }
+                bucket.subList(kept, bucket.size()).clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Many bus services in one process, e.g. one per operator or seasonal schedule, each with
+// its own storage. A service is loaded the first time it is acquired, and concurrent first
+// acquisitions wait for the same load. Loaded services are kept in least-recently-acquired
+// order; whenever their estimated memory exceeds the budget, the coldest ones nobody holds
+// a lease on are persisted, closed and dropped, to be loaded again on their next acquire.
+// A tenant is not reloaded until its evicted service has finished flushing, so two
+// instances never write the same storage at once.
+//
+//   try (ServiceRegistry.Lease lease = registry.acquire("operator-a")) {
+//       lease.getService().bookSeat(...);
+//   }
+//
+// Services are only evicted while unleased, so the budget can be exceeded while they are
+// in use; one service bigger than the whole budget is reloaded on every acquire. Memory
+// figures come from AbstractBusService.estimateMemoryBytes, taken at load and refreshed
+// at most once a second per service as leases are released.
+public class ServiceRegistry implements AutoCloseable {
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public interface Loader {
+        AbstractBusService load(String tenant) throws Exception;
+    }
+
+    private static final class Entry {
+        final String tenant;
+        final CompletableFuture<AbstractBusService> service = new CompletableFuture<>();
+        // Guarded by the registry
+        int leases;
+        long bytes;
+        long estimatedAt;
+        boolean resident = true;
+
+        Entry(String tenant) {
+            this.tenant = tenant;
+        }
+    }
+
+    private final Loader loader;
+    private final long budgetBytes;
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // Guarded by this. Access-ordered, so iteration starts at the least recently acquired tenant.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Tenants whose evicted service is still being persisted and closed.
+    private final Map<String, CompletableFuture<Void>> evicting = new HashMap<>();
+    private long usedBytes;
+    private boolean closed;
+
+    public ServiceRegistry(Loader loader, long budgetBytes) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive");
+        }
+        this.loader = loader;
+        this.budgetBytes = budgetBytes;
+    }
+
+    // Loader for one directory per tenant under root, holding schedule.txt (optional, the
+    // default schedule otherwise) and journaled bookings in bookings.txt, served the way
+    // Main serves a single schedule. Tenants are provisioned by creating their directory.
+    public static Loader directoryLoader(String root) {
+        return tenant -> {
+            if (!isTenantName(tenant)) {
+                throw new IllegalArgumentException("Invalid tenant name: " + tenant);
+            }
+            File directory = new File(root, tenant);
+            if (!directory.isDirectory()) {
+                throw new IllegalArgumentException("Unknown tenant: " + tenant);
+            }
+            File scheduleFile = new File(directory, "schedule.txt");
+            Schedule schedule = scheduleFile.isFile() ? Schedule.load(scheduleFile.getPath()) : Schedule.defaultSchedule();
+            Storage storage = new JournalStorage(new FileStorage(new File(directory, "bookings.txt").getPath()),
+                    new File(directory, "bookings.journal").getPath());
+            return new ConcurrentBusService(storage, schedule, DurabilityPolicy.groupCommit(256, 5));
+        };
+    }
+
+    // Letters, digits, '-' and '_', so a tenant name can't reach outside the root directory.
+    private static boolean isTenantName(String tenant) {
+        if (tenant == null || tenant.isEmpty()) return false;
+        for (int i = 0; i < tenant.length(); i++) {
+            char c = tenant.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the tenant's service, loading it if needed, pinned until the lease is closed.
+    // A failed load is rethrown to every caller waiting on it; the next acquire tries again.
+    public Lease acquire(String tenant) throws Exception {
+        Entry entry;
+        CompletableFuture<Void> flushing = null;
+        boolean load = false;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Registry is closed");
+            }
+            entry = entries.get(tenant);
+            if (entry == null) {
+                entry = new Entry(tenant);
+                entries.put(tenant, entry);
+                flushing = evicting.get(tenant);
+                load = true;
+            }
+            entry.leases++;
+        }
+        if (load) {
+            load(entry, flushing);
+        }
+        try {
+            return new Lease(entry, entry.service.join());
+        } catch (CompletionException e) {
+            release(entry, null);
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    // Loads outside the registry lock, so other tenants are served meanwhile.
+    private void load(Entry entry, CompletableFuture<Void> flushing) {
+        AbstractBusService service;
+        try {
+            if (flushing != null) {
+                flushing.join();
+            }
+            service = loader.load(entry.tenant);
+        } catch (Throwable e) {
+            synchronized (this) {
+                if (entries.remove(entry.tenant, entry)) entry.resident = false;
+            }
+            entry.service.completeExceptionally(e);
+            return;
+        }
+        long bytes = service.estimateMemoryBytes();
+        synchronized (this) {
+            entry.bytes = bytes;
+            entry.estimatedAt = System.nanoTime();
+            usedBytes += bytes;
+        }
+        loads.increment();
+        entry.service.complete(service);
+        evictOverBudget();
+    }
+
+    private void release(Entry entry, AbstractBusService service) {
+        boolean refresh;
+        synchronized (this) {
+            entry.leases--;
+            long now = System.nanoTime();
+            refresh = service != null && entry.resident && now - entry.estimatedAt > REFRESH_NANOS;
+            if (refresh) entry.estimatedAt = now;
+        }
+        long bytes = refresh ? service.estimateMemoryBytes() : 0;
+        boolean over;
+        synchronized (this) {
+            if (refresh && entry.resident) {
+                usedBytes += bytes - entry.bytes;
+                entry.bytes = bytes;
+            }
+            over = usedBytes > budgetBytes;
+        }
+        if (over) {
+            evictOverBudget();
+        }
+    }
+
+    // Picks victims from the cold end under the lock, then persists and closes them outside it.
+    private void evictOverBudget() {
+        List<Entry> victims = new ArrayList<>();
+        List<CompletableFuture<Void>> flushed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (usedBytes > budgetBytes && it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.leases > 0 || !entry.service.isDone()) continue;
+                it.remove();
+                entry.resident = false;
+                usedBytes -= entry.bytes;
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                evicting.put(entry.tenant, done);
+                victims.add(entry);
+                flushed.add(done);
+            }
+        }
+        for (int i = 0; i < victims.size(); i++) {
+            Entry entry = victims.get(i);
+            try {
+                shutdown(entry.service.join());
+            } finally {
+                synchronized (this) {
+                    evicting.remove(entry.tenant, flushed.get(i));
+                }
+                flushed.get(i).complete(null);
+                evictions.increment();
+            }
+        }
+    }
+
+    private static void shutdown(AbstractBusService service) {
+        service.persist();
+        service.close();
+    }
+
+    // Persists and closes every loaded service, waiting for loads and evictions in flight.
+    // Leases still open are not waited for.
+    @Override
+    public void close() {
+        List<Entry> loaded;
+        List<CompletableFuture<Void>> flushing;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            loaded = new ArrayList<>(entries.values());
+            for (Entry entry : loaded) {
+                entry.resident = false;
+            }
+            entries.clear();
+            usedBytes = 0;
+            flushing = new ArrayList<>(evicting.values());
+        }
+        for (Entry entry : loaded) {
+            AbstractBusService service = entry.service.exceptionally(e -> null).join();
+            if (service != null) {
+                shutdown(service);
+            }
+        }
+        flushing.forEach(CompletableFuture::join);
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized long getEstimatedBytes() {
+        return usedBytes;
+    }
+
+    // Scans rather than calling get, which would count as an access and reorder the tenant.
+    public synchronized boolean isLoaded(String tenant) {
+        for (Entry entry : entries.values()) {
+            if (entry.tenant.equals(tenant)) {
+                return entry.service.isDone() && !entry.service.isCompletedExceptionally();
+            }
+        }
+        return false;
+    }
+
+    // Resident tenants (including ones still loading), least recently acquired first.
+    public synchronized List<String> getLoadedTenants() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    // Pins a service in memory until closed; the service must not be used afterwards.
+    public final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private final AbstractBusService service;
+        private boolean released;
+
+        private Lease(Entry entry, AbstractBusService service) {
+            this.entry = entry;
+            this.service = service;
+        }
+
+        public AbstractBusService getService() {
+            return service;
+        }
+
+        @Override
+        public void close() {
+            if (released) return;
+            released = true;
+            release(entry, service);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+// Bookings split over one FileStorage file per route, or per route and day, in a directory.
+// Trips are numbered route-major, so every shard holds a contiguous range of trips.
+// apply() reads back only the shards its mutations touch, applies them and rewrites those
+// files, and load() reads all shards in parallel on the common fork-join pool, so both
+// scale with shard size instead of with the whole schedule.
+//
+// Each shard file is replaced atomically, but a batch spanning several shards is not: a
+// crash or failed write part-way leaves some shards with the batch and others without.
+// Wrap the storage in a JournalStorage when group bookings across routes (or days) must
+// be all-or-nothing; the journal then replays the batch over the shards.
+//
+// Shard files are named route-<r>.txt or route-<r>-day-<d>.txt and use FileStorage's
+// line format; files written with the other granularity are not read.
+public class ShardedStorage implements Storage {
+    public enum Granularity { ROUTE, ROUTE_DAY }
+
+    private final File directory;
+    private final Granularity granularity;
+    private volatile Schedule schedule; // from the last load, so apply() needn't take a snapshot
+
+    public ShardedStorage(String directory) {
+        this(directory, Granularity.ROUTE);
+    }
+
+    public ShardedStorage(String directory, Granularity granularity) {
+        this.directory = new File(directory);
+        this.granularity = granularity;
+    }
+
+    @Override
+    public void save(BusServiceState state) throws Exception {
+        BitSet all = new BitSet();
+        all.set(0, shardCount(state.schedule));
+        saveShards(state, all);
+    }
+
+    @Override
+    public BusServiceState load(Schedule schedule) throws Exception {
+        this.schedule = schedule;
+        BusServiceState state = new BusServiceState(schedule);
+        if (!directory.isDirectory()) {
+            return state;
+        }
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        for (int shard = 0; shard < shardCount(schedule); shard++) {
+            int from = shard * tripsPerShard(schedule);
+            FileStorage file = shardFile(schedule, shard);
+            // Each shard books only its own trip range, so tasks never share state slots.
+            tasks.add(ForkJoinTask.adapt(() -> {
+                file.loadTrips(state, from, from + tripsPerShard(schedule));
+                return null;
+            }));
+        }
+        invokeAll(tasks);
+        return state;
+    }
+
+    @Override
+    public void apply(List<Mutation> mutations, Supplier<BusServiceState> snapshot) throws Exception {
+        Schedule schedule = this.schedule;
+        if (schedule == null) {
+            save(snapshot.get());
+            return;
+        }
+        BitSet dirty = new BitSet();
+        for (Mutation m : mutations) {
+            if (m.fits(schedule)) {
+                dirty.set(shardOf(schedule, m.routeIndex, m.dayIndex));
+            }
+        }
+        if (dirty.isEmpty()) return;
+        // The dirty shards are read into one state (they cover disjoint trips), brought up to
+        // date with the batch and written back; other trips stay empty and are not written.
+        BusServiceState state = new BusServiceState(schedule);
+        for (int shard = dirty.nextSetBit(0); shard >= 0; shard = dirty.nextSetBit(shard + 1)) {
+            int from = shard * tripsPerShard(schedule);
+            shardFile(schedule, shard).loadTrips(state, from, from + tripsPerShard(schedule));
+        }
+        for (Mutation m : mutations) {
+            if (m.fits(schedule)) {
+                m.applyTo(state);
+            }
+        }
+        saveShards(state, dirty);
+    }
+
+    private void saveShards(BusServiceState state, BitSet shards) throws Exception {
+        if (shards.isEmpty()) return;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        Schedule schedule = state.schedule;
+        if (shards.cardinality() == 1) {
+            int shard = shards.nextSetBit(0);
+            int from = shard * tripsPerShard(schedule);
+            shardFile(schedule, shard).saveTrips(state, from, from + tripsPerShard(schedule));
+            return;
+        }
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        for (int shard = shards.nextSetBit(0); shard >= 0; shard = shards.nextSetBit(shard + 1)) {
+            int from = shard * tripsPerShard(schedule);
+            FileStorage file = shardFile(schedule, shard);
+            tasks.add(ForkJoinTask.adapt(() -> {
+                file.saveTrips(state, from, from + tripsPerShard(schedule));
+                return null;
+            }));
+        }
+        invokeAll(tasks);
+    }
+
+    // Runs the tasks on the common pool and rethrows the first checked failure as-is.
+    private static void invokeAll(List<ForkJoinTask<Void>> tasks) throws Exception {
+        try {
+            ForkJoinTask.invokeAll(tasks);
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof Exception && !(cause instanceof RuntimeException)) {
+                    throw (Exception) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private int shardCount(Schedule schedule) {
+        return schedule.getTripCount() / tripsPerShard(schedule);
+    }
+
+    private int tripsPerShard(Schedule schedule) {
+        return granularity == Granularity.ROUTE
+                ? schedule.getDayCount() * schedule.getTimeCount()
+                : schedule.getTimeCount();
+    }
+
+    private int shardOf(Schedule schedule, int routeIndex, int dayIndex) {
+        return granularity == Granularity.ROUTE ? routeIndex : routeIndex * schedule.getDayCount() + dayIndex;
+    }
+
+    private FileStorage shardFile(Schedule schedule, int shard) {
+        String name = granularity == Granularity.ROUTE
+                ? "route-" + shard + ".txt"
+                : "route-" + shard / schedule.getDayCount() + "-day-" + shard % schedule.getDayCount() + ".txt";
+        return new FileStorage(new File(directory, name).getPath());
+    }
+}
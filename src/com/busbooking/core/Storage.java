@@ -1,19 +1,292 @@
 package com.busbooking.core;
 
+import com.busbooking.model.Schedule;
 import com.busbooking.model.Seat;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
 public interface Storage {
     void save(BusServiceState state) throws Exception;
-    BusServiceState load() throws Exception;
+    BusServiceState load(Schedule schedule) throws Exception;
+
+    // Persists a set of changes; storages without incremental support rewrite the full snapshot.
+    default void apply(List<Mutation> mutations, Supplier<BusServiceState> snapshot) throws Exception {
+        save(snapshot.get());
+    }
+
+    // Releases files held open between writes; a later write may open them again.
+    default void close() throws Exception {
+    }
 
+    // Column store for bookings: a seat bitmap per trip plus name and credential columns
+    // that are only allocated for trips that have at least one booking. IDs and phones
+    // are kept in canonical numeric form (-1 when absent or unparseable) and formatted
+    // back to digit strings only when read as text. Each trip may also have a waitlist,
+    // allocated the first time someone joins it.
     class BusServiceState {
-        public final boolean[][][][] booked; // [route][day][time][seat]
-        public final Seat[][][][] seatData; // parallel data for name/id/phone
+        private static final long NONE = -1;
+
+        public final Schedule schedule;
+        public final long[] booked; // one seat bitmap per trip, in Schedule.tripIndex order
+        private final String[][] names; // per trip: name for each seat
+        private final long[][] credentials; // per trip: id, phone for each seat
+        private final Waitlist[] waitlists; // per trip, null until someone waits
+
+        public BusServiceState(Schedule schedule) {
+            this.schedule = schedule;
+            this.booked = new long[schedule.getTripCount()];
+            this.names = new String[booked.length][];
+            this.credentials = new long[booked.length][];
+            this.waitlists = new Waitlist[booked.length];
+        }
+
+        private BusServiceState(BusServiceState other) {
+            this.schedule = other.schedule;
+            this.booked = other.booked.clone();
+            this.names = new String[booked.length][];
+            this.credentials = new long[booked.length][];
+            this.waitlists = new Waitlist[booked.length];
+            for (int trip = 0; trip < booked.length; trip++) {
+                if (booked[trip] != 0) {
+                    names[trip] = other.names[trip].clone();
+                    credentials[trip] = other.credentials[trip].clone();
+                }
+                if (other.waitlists[trip] != null && other.waitlists[trip].size() > 0) {
+                    waitlists[trip] = other.waitlists[trip].copy();
+                }
+            }
+        }
+
+        // Detached copy for writers that run alongside further bookings.
+        public BusServiceState copy() {
+            return new BusServiceState(this);
+        }
+
+        public boolean isBooked(int routeIndex, int dayIndex, int timeIndex, int seatIndex) {
+            return (booked[schedule.tripIndex(routeIndex, dayIndex, timeIndex)] & (1L << seatIndex)) != 0;
+        }
+
+        public void book(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone) {
+            int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+            setPassenger(trip, seatIndex, name, id, phone);
+            booked[trip] |= 1L << seatIndex;
+        }
+
+        public void cancel(int routeIndex, int dayIndex, int timeIndex, int seatIndex) {
+            int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+            booked[trip] &= ~(1L << seatIndex);
+            clearPassenger(trip, seatIndex);
+        }
+
+        // Column-only updates for callers that publish the bitmap themselves.
+        void setPassenger(int trip, int seatIndex, String name, long id, long phone) {
+            String[] nameRow = names[trip];
+            long[] credentialRow = credentials[trip];
+            if (nameRow == null) {
+                nameRow = new String[schedule.getCapacity(trip)];
+                credentialRow = new long[schedule.getCapacity(trip) * 2];
+                Arrays.fill(credentialRow, NONE);
+                names[trip] = nameRow;
+                credentials[trip] = credentialRow;
+            }
+            nameRow[seatIndex] = name;
+            credentialRow[seatIndex * 2] = id;
+            credentialRow[seatIndex * 2 + 1] = phone;
+        }
+
+        // For loaders reading text: credentials that aren't canonical digit strings are dropped.
+        void setPassenger(int trip, int seatIndex, String name, String id, String phone) {
+            setPassenger(trip, seatIndex, name,
+                    AbstractBusService.parseDigits(id, AbstractBusService.ID_DIGITS),
+                    AbstractBusService.parseDigits(phone, AbstractBusService.PHONE_DIGITS));
+        }
+
+        void clearPassenger(int trip, int seatIndex) {
+            if (names[trip] != null) {
+                names[trip][seatIndex] = null;
+                credentials[trip][seatIndex * 2] = NONE;
+                credentials[trip][seatIndex * 2 + 1] = NONE;
+            }
+        }
+
+        public String getName(int routeIndex, int dayIndex, int timeIndex, int seatIndex) {
+            return getName(schedule.tripIndex(routeIndex, dayIndex, timeIndex), seatIndex);
+        }
+
+        public String getId(int routeIndex, int dayIndex, int timeIndex, int seatIndex) {
+            return getId(schedule.tripIndex(routeIndex, dayIndex, timeIndex), seatIndex);
+        }
+
+        public String getPhone(int routeIndex, int dayIndex, int timeIndex, int seatIndex) {
+            return getPhone(schedule.tripIndex(routeIndex, dayIndex, timeIndex), seatIndex);
+        }
+
+        public String getName(int tripIndex, int seatIndex) {
+            String[] row = names[tripIndex];
+            String value = row == null ? null : row[seatIndex];
+            return value == null ? "" : value;
+        }
+
+        public String getId(int tripIndex, int seatIndex) {
+            return AbstractBusService.formatDigits(getIdKey(tripIndex, seatIndex), AbstractBusService.ID_DIGITS);
+        }
+
+        public String getPhone(int tripIndex, int seatIndex) {
+            return AbstractBusService.formatDigits(getPhoneKey(tripIndex, seatIndex), AbstractBusService.PHONE_DIGITS);
+        }
+
+        // Canonical credentials, or -1 if the seat has none.
+        public long getIdKey(int tripIndex, int seatIndex) {
+            long[] row = credentials[tripIndex];
+            return row == null ? NONE : row[seatIndex * 2];
+        }
+
+        public long getPhoneKey(int tripIndex, int seatIndex) {
+            long[] row = credentials[tripIndex];
+            return row == null ? NONE : row[seatIndex * 2 + 1];
+        }
+
+        // Passengers waiting for a seat on the trip, position 0 being the next one offered.
+        public int getWaitlistSize(int tripIndex) {
+            Waitlist waitlist = waitlists[tripIndex];
+            return waitlist == null ? 0 : waitlist.size();
+        }
+
+        public String getWaitlistName(int tripIndex, int position) {
+            return waitlists[tripIndex].getName(position);
+        }
+
+        public String getWaitlistId(int tripIndex, int position) {
+            return AbstractBusService.formatDigits(waitlists[tripIndex].getId(position), AbstractBusService.ID_DIGITS);
+        }
+
+        public String getWaitlistPhone(int tripIndex, int position) {
+            return AbstractBusService.formatDigits(waitlists[tripIndex].getPhone(position), AbstractBusService.PHONE_DIGITS);
+        }
+
+        // The trip's waitlist, or null if nobody has waited for it yet.
+        Waitlist waitlist(int trip) {
+            return waitlists[trip];
+        }
+
+        // Appends unless the ID is already waiting for this trip, so a replayed record is harmless.
+        void addToWaitlist(int trip, String name, long id, long phone) {
+            Waitlist waitlist = waitlists[trip];
+            if (waitlist == null) {
+                waitlist = new Waitlist();
+                waitlists[trip] = waitlist;
+            }
+            if (waitlist.indexOf(id) < 0) {
+                waitlist.add(name, id, phone);
+            }
+        }
+
+        // For loaders reading text; entries without a valid ID are dropped.
+        void addToWaitlist(int trip, String name, String id, String phone) {
+            long idKey = AbstractBusService.parseDigits(id, AbstractBusService.ID_DIGITS);
+            if (idKey >= 0) {
+                addToWaitlist(trip, name, idKey, AbstractBusService.parseDigits(phone, AbstractBusService.PHONE_DIGITS));
+            }
+        }
 
-        public BusServiceState(boolean[][][][] booked, Seat[][][][] seatData) {
-            this.booked = booked;
-            this.seatData = seatData;
+        boolean removeFromWaitlist(int trip, long id) {
+            Waitlist waitlist = waitlists[trip];
+            int position = waitlist == null ? -1 : waitlist.indexOf(id);
+            if (position < 0) return false;
+            waitlist.remove(position);
+            return true;
+        }
+
+        public void clearWaitlists() {
+            for (Waitlist waitlist : waitlists) {
+                if (waitlist != null) waitlist.clear();
+            }
+        }
+
+        // Builds a detached Seat; nothing is allocated per seat until asked for.
+        public Seat getSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex) {
+            Seat seat = new Seat();
+            if (isBooked(routeIndex, dayIndex, timeIndex, seatIndex)) {
+                int trip = schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+                seat.setBooked(true);
+                seat.setName(getName(trip, seatIndex));
+                seat.setId(getId(trip, seatIndex));
+                seat.setPhone(getPhone(trip, seatIndex));
+            }
+            return seat;
         }
     }
-}
 
+    // WAITLIST and UNWAITLIST refer to a trip's waitlist and carry seatIndex -1;
+    // UNWAITLIST only carries the ID of the passenger who leaves it.
+    class Mutation {
+        public enum Type { BOOK, CANCEL, WAITLIST, UNWAITLIST }
+
+        public final Type type;
+        public final int routeIndex;
+        public final int dayIndex;
+        public final int timeIndex;
+        public final int seatIndex;
+        public final String name;
+        public final String id;
+        public final String phone;
+
+        public Mutation(Type type, int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone) {
+            this.type = type;
+            this.routeIndex = routeIndex;
+            this.dayIndex = dayIndex;
+            this.timeIndex = timeIndex;
+            this.seatIndex = seatIndex;
+            this.name = name;
+            this.id = id;
+            this.phone = phone;
+        }
+
+        public static Mutation book(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone) {
+            return new Mutation(Type.BOOK, routeIndex, dayIndex, timeIndex, seatIndex, name, id, phone);
+        }
+
+        public static Mutation cancel(int routeIndex, int dayIndex, int timeIndex, int seatIndex) {
+            return new Mutation(Type.CANCEL, routeIndex, dayIndex, timeIndex, seatIndex, "", "", "");
+        }
+
+        public static Mutation waitlist(int routeIndex, int dayIndex, int timeIndex, String name, String id, String phone) {
+            return new Mutation(Type.WAITLIST, routeIndex, dayIndex, timeIndex, -1, name, id, phone);
+        }
+
+        public static Mutation unwaitlist(int routeIndex, int dayIndex, int timeIndex, String id) {
+            return new Mutation(Type.UNWAITLIST, routeIndex, dayIndex, timeIndex, -1, "", id, "");
+        }
+
+        public boolean isWaitlistChange() {
+            return type == Type.WAITLIST || type == Type.UNWAITLIST;
+        }
+
+        // False for records about trips or seats the schedule no longer has.
+        public boolean fits(Schedule schedule) {
+            return isWaitlistChange()
+                    ? schedule.containsTrip(routeIndex, dayIndex, timeIndex)
+                    : schedule.contains(routeIndex, dayIndex, timeIndex, seatIndex);
+        }
+
+        public void applyTo(BusServiceState state) {
+            switch (type) {
+                case BOOK:
+                    state.book(routeIndex, dayIndex, timeIndex, seatIndex, name, id, phone);
+                    break;
+                case CANCEL:
+                    state.cancel(routeIndex, dayIndex, timeIndex, seatIndex);
+                    break;
+                case WAITLIST:
+                    state.addToWaitlist(state.schedule.tripIndex(routeIndex, dayIndex, timeIndex), name, id, phone);
+                    break;
+                case UNWAITLIST:
+                    state.removeFromWaitlist(state.schedule.tripIndex(routeIndex, dayIndex, timeIndex),
+                            AbstractBusService.parseDigits(id, AbstractBusService.ID_DIGITS));
+                    break;
+            }
+        }
+    }
+}
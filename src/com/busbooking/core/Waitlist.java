@@ -0,0 +1,143 @@
+package com.busbooking.core;
+
+// FIFO of passengers waiting for a seat on one trip: a ring over parallel arrays that
+// grows by doubling, with credentials in canonical numeric form. Adding and taking the
+// head are O(1); removing someone from the middle shifts the entries behind them.
+//
+// Changes happen under the owning service's lock for the trip, but full snapshots read
+// without it. The three arrays are therefore published together as one Slots, and every
+// read indexes the Slots it loaded, so a read racing grow() sees old or new arrays but
+// never a mix of lengths. Such a read may return a stale entry; the mutation record
+// written after the change puts it right, as for seats.
+final class Waitlist {
+    private static final class Slots {
+        final String[] names;
+        final long[] ids;
+        final long[] phones;
+
+        Slots(int capacity) {
+            names = new String[capacity];
+            ids = new long[capacity];
+            phones = new long[capacity];
+        }
+
+        int slot(int head, int i) {
+            return (head + i) % names.length;
+        }
+    }
+
+    private Slots slots;
+    private int head;
+    private int size;
+
+    Waitlist() {
+        slots = new Slots(4);
+    }
+
+    private Waitlist(Waitlist other) {
+        Slots from = other.slots;
+        int count = Math.min(other.size, from.names.length);
+        int otherHead = other.head;
+        Slots to = new Slots(from.names.length);
+        for (int i = 0; i < count; i++) {
+            int s = from.slot(otherHead, i);
+            to.names[i] = from.names[s];
+            to.ids[i] = from.ids[s];
+            to.phones[i] = from.phones[s];
+        }
+        slots = to;
+        size = count;
+    }
+
+    Waitlist copy() {
+        return new Waitlist(this);
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Position i counts from the head, 0 being the next passenger to be offered a seat.
+    String getName(int i) {
+        Slots s = slots;
+        return s.names[s.slot(head, i)];
+    }
+
+    long getId(int i) {
+        Slots s = slots;
+        return s.ids[s.slot(head, i)];
+    }
+
+    long getPhone(int i) {
+        Slots s = slots;
+        return s.phones[s.slot(head, i)];
+    }
+
+    // Returns the position of the passenger with this ID, or -1.
+    int indexOf(long id) {
+        Slots s = slots;
+        for (int i = 0; i < size; i++) {
+            if (s.ids[s.slot(head, i)] == id) return i;
+        }
+        return -1;
+    }
+
+    void add(String name, long id, long phone) {
+        if (size == slots.names.length) {
+            grow();
+        }
+        Slots s = slots;
+        int slot = s.slot(head, size);
+        s.names[slot] = name;
+        s.ids[slot] = id;
+        s.phones[slot] = phone;
+        size++;
+    }
+
+    void removeFirst() {
+        Slots s = slots;
+        s.names[head] = null;
+        head = (head + 1) % s.names.length;
+        size--;
+    }
+
+    void remove(int i) {
+        if (i == 0) {
+            removeFirst();
+            return;
+        }
+        Slots s = slots;
+        for (int j = i; j < size - 1; j++) {
+            int to = s.slot(head, j);
+            int from = s.slot(head, j + 1);
+            s.names[to] = s.names[from];
+            s.ids[to] = s.ids[from];
+            s.phones[to] = s.phones[from];
+        }
+        s.names[s.slot(head, size - 1)] = null;
+        size--;
+    }
+
+    void clear() {
+        Slots s = slots;
+        for (int i = 0; i < size; i++) {
+            s.names[s.slot(head, i)] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    // Copies into fresh arrays with the head at 0, then swaps them in with one write.
+    private void grow() {
+        Slots old = slots;
+        Slots grown = new Slots(old.names.length * 2);
+        for (int i = 0; i < size; i++) {
+            int s = old.slot(head, i);
+            grown.names[i] = old.names[s];
+            grown.ids[i] = old.ids[s];
+            grown.phones[i] = old.phones[s];
+        }
+        head = 0;
+        slots = grown;
+    }
+}
@@ -0,0 +1,7 @@
+package com.busbooking.exception;
+
+public class WaitlistFullException extends Exception {
+    public WaitlistFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,25 @@
+package com.busbooking.model;
+
+public class Passenger {
+    private final String name;
+    private final String id;
+    private final String phone;
+
+    public Passenger(String name, String id, String phone) {
+        this.name = name;
+        this.id = id;
+        this.phone = phone;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPhone() {
+        return phone;
+    }
+}
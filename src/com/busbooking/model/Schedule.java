@@ -0,0 +1,223 @@
+package com.busbooking.model;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Network topology: route, day and time-slot names plus the seat capacity of every
+// (route, day, time) trip. Trips are numbered route-major, then day, then time.
+//
+// Schedule files are line based; blank lines and lines starting with # are ignored:
+//   routes: Uttara to NSU | NSU to Uttara
+//   days: ST | MW | RA
+//   times: 08:00 | 09:00
+//   seats: 40                 default capacity of every trip
+//   route-seats: 1 = 30       capacity of every trip on route 1
+//   trip-seats: 0,2,1 = 52    capacity of one (route, day, time) trip
+public class Schedule {
+    // Seat availability is a single long bitmap per trip.
+    public static final int MAX_CAPACITY = Long.SIZE;
+
+    private final String[] routeNames;
+    private final String[] dayNames;
+    private final String[] timeSlots;
+    private final int[] capacities;
+    private final int maxCapacity;
+
+    public Schedule(String[] routeNames, String[] dayNames, String[] timeSlots, int seats) {
+        this(routeNames, dayNames, timeSlots, filled(routeNames.length * dayNames.length * timeSlots.length, seats));
+    }
+
+    public Schedule(String[] routeNames, String[] dayNames, String[] timeSlots, int[] capacities) {
+        if (routeNames.length == 0 || dayNames.length == 0 || timeSlots.length == 0) {
+            throw new IllegalArgumentException("Schedule needs at least one route, day and time slot");
+        }
+        if (capacities.length != routeNames.length * dayNames.length * timeSlots.length) {
+            throw new IllegalArgumentException("Expected one capacity per trip");
+        }
+        int max = 0;
+        for (int capacity : capacities) {
+            if (capacity < 1 || capacity > MAX_CAPACITY) {
+                throw new IllegalArgumentException("Trip capacity must be between 1 and " + MAX_CAPACITY);
+            }
+            max = Math.max(max, capacity);
+        }
+        this.routeNames = routeNames.clone();
+        this.dayNames = dayNames.clone();
+        this.timeSlots = timeSlots.clone();
+        this.capacities = capacities.clone();
+        this.maxCapacity = max;
+    }
+
+    public static Schedule defaultSchedule() {
+        return new Schedule(
+                new String[] {
+                        "Uttara to NSU", "NSU to Uttara", "Dhanmondi to NSU", "NSU to Dhanmondi",
+                        "Mirpur to NSU", "NSU to Mirpur", "Banani to NSU", "NSU to Banani"
+                },
+                new String[] {"ST", "MW", "RA"},
+                new String[] {
+                        "08:00", "09:00", "10:00", "11:00", "12:00",
+                        "13:00", "14:00", "15:00", "16:00", "17:00"
+                },
+                40);
+    }
+
+    public static Schedule load(String path) throws IOException {
+        String[] routes = null;
+        String[] days = null;
+        String[] times = null;
+        int seats = 40;
+        List<String[]> overrides = new ArrayList<>(); // {line number, key, value}
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    throw new IOException(path + ":" + lineNo + ": expected 'key: value'");
+                }
+                String key = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                switch (key) {
+                    case "routes": routes = splitNames(value); break;
+                    case "days": days = splitNames(value); break;
+                    case "times": times = splitNames(value); break;
+                    case "seats": seats = parseInt(value, path, lineNo); break;
+                    case "route-seats":
+                    case "trip-seats":
+                        overrides.add(new String[] {String.valueOf(lineNo), key, value});
+                        break;
+                    default:
+                        throw new IOException(path + ":" + lineNo + ": unknown key '" + key + "'");
+                }
+            }
+        }
+        if (routes == null || days == null || times == null) {
+            throw new IOException(path + ": routes, days and times are required");
+        }
+        int[] capacities = filled(routes.length * days.length * times.length, seats);
+        for (String[] parts : overrides) {
+            int lineNo = Integer.parseInt(parts[0]);
+            int eq = parts[2].indexOf('=');
+            if (eq < 0) {
+                throw new IOException(path + ":" + lineNo + ": expected '<index> = <seats>'");
+            }
+            String[] index = parts[2].substring(0, eq).split(",");
+            int capacity = parseInt(parts[2].substring(eq + 1).trim(), path, lineNo);
+            int r = parseInt(index[0].trim(), path, lineNo);
+            if (r < 0 || r >= routes.length) {
+                throw new IOException(path + ":" + lineNo + ": route index out of range");
+            }
+            if (parts[1].equals("route-seats")) {
+                for (int i = r * days.length * times.length; i < (r + 1) * days.length * times.length; i++) {
+                    capacities[i] = capacity;
+                }
+            } else {
+                if (index.length != 3) {
+                    throw new IOException(path + ":" + lineNo + ": expected 'route,day,time'");
+                }
+                int d = parseInt(index[1].trim(), path, lineNo);
+                int t = parseInt(index[2].trim(), path, lineNo);
+                if (d < 0 || d >= days.length || t < 0 || t >= times.length) {
+                    throw new IOException(path + ":" + lineNo + ": trip index out of range");
+                }
+                capacities[(r * days.length + d) * times.length + t] = capacity;
+            }
+        }
+        try {
+            return new Schedule(routes, days, times, capacities);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(path + ": " + e.getMessage(), e);
+        }
+    }
+
+    public String[] getRouteNames() {
+        return routeNames;
+    }
+
+    public String[] getDayNames() {
+        return dayNames;
+    }
+
+    public String[] getTimeSlots() {
+        return timeSlots;
+    }
+
+    public int getRouteCount() {
+        return routeNames.length;
+    }
+
+    public int getDayCount() {
+        return dayNames.length;
+    }
+
+    public int getTimeCount() {
+        return timeSlots.length;
+    }
+
+    public int getTripCount() {
+        return capacities.length;
+    }
+
+    public int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    public int tripIndex(int routeIndex, int dayIndex, int timeIndex) {
+        return (routeIndex * dayNames.length + dayIndex) * timeSlots.length + timeIndex;
+    }
+
+    public int getCapacity(int tripIndex) {
+        return capacities[tripIndex];
+    }
+
+    public int getCapacity(int routeIndex, int dayIndex, int timeIndex) {
+        return capacities[tripIndex(routeIndex, dayIndex, timeIndex)];
+    }
+
+    // Bitmap with one bit set for every seat that exists on the trip.
+    public long seatMask(int tripIndex) {
+        int capacity = capacities[tripIndex];
+        return capacity == MAX_CAPACITY ? -1L : (1L << capacity) - 1;
+    }
+
+    public boolean containsTrip(int routeIndex, int dayIndex, int timeIndex) {
+        return routeIndex >= 0 && routeIndex < routeNames.length &&
+                dayIndex >= 0 && dayIndex < dayNames.length &&
+                timeIndex >= 0 && timeIndex < timeSlots.length;
+    }
+
+    public boolean contains(int routeIndex, int dayIndex, int timeIndex, int seatIndex) {
+        return containsTrip(routeIndex, dayIndex, timeIndex) &&
+                seatIndex >= 0 && seatIndex < getCapacity(routeIndex, dayIndex, timeIndex);
+    }
+
+    private static int[] filled(int length, int value) {
+        int[] values = new int[length];
+        Arrays.fill(values, value);
+        return values;
+    }
+
+    private static String[] splitNames(String value) {
+        String[] names = value.split("\\|");
+        for (int i = 0; i < names.length; i++) {
+            names[i] = names[i].trim();
+        }
+        return names;
+    }
+
+    private static int parseInt(String value, String path, int lineNo) throws IOException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException(path + ":" + lineNo + ": not a number '" + value + "'");
+        }
+    }
+}
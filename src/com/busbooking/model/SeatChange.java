@@ -0,0 +1,59 @@
+package com.busbooking.model;
+
+// One seat being booked or cancelled. occupancy is the trip's booked-seat bitmap right
+// after the change, so a subscriber that missed earlier events can tell it is behind.
+public class SeatChange {
+    private final int routeIndex;
+    private final int dayIndex;
+    private final int timeIndex;
+    private final int tripIndex;
+    private final int seatIndex;
+    private final boolean booked;
+    private final String name;
+    private final long occupancy;
+
+    public SeatChange(int routeIndex, int dayIndex, int timeIndex, int tripIndex, int seatIndex,
+                      boolean booked, String name, long occupancy) {
+        this.routeIndex = routeIndex;
+        this.dayIndex = dayIndex;
+        this.timeIndex = timeIndex;
+        this.tripIndex = tripIndex;
+        this.seatIndex = seatIndex;
+        this.booked = booked;
+        this.name = name;
+        this.occupancy = occupancy;
+    }
+
+    public int getRouteIndex() {
+        return routeIndex;
+    }
+
+    public int getDayIndex() {
+        return dayIndex;
+    }
+
+    public int getTimeIndex() {
+        return timeIndex;
+    }
+
+    public int getTripIndex() {
+        return tripIndex;
+    }
+
+    public int getSeatIndex() {
+        return seatIndex;
+    }
+
+    public boolean isBooked() {
+        return booked;
+    }
+
+    // Passenger name for a booking, "" for a cancellation.
+    public String getName() {
+        return name;
+    }
+
+    public long getOccupancy() {
+        return occupancy;
+    }
+}
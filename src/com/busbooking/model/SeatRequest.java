@@ -0,0 +1,39 @@
+package com.busbooking.model;
+
+// One seat of a group booking or cancellation. Cancellations only look at the
+// passenger's ID and phone.
+public class SeatRequest {
+    private final int routeIndex;
+    private final int dayIndex;
+    private final int timeIndex;
+    private final int seatIndex;
+    private final Passenger passenger;
+
+    public SeatRequest(int routeIndex, int dayIndex, int timeIndex, int seatIndex, Passenger passenger) {
+        this.routeIndex = routeIndex;
+        this.dayIndex = dayIndex;
+        this.timeIndex = timeIndex;
+        this.seatIndex = seatIndex;
+        this.passenger = passenger;
+    }
+
+    public int getRouteIndex() {
+        return routeIndex;
+    }
+
+    public int getDayIndex() {
+        return dayIndex;
+    }
+
+    public int getTimeIndex() {
+        return timeIndex;
+    }
+
+    public int getSeatIndex() {
+        return seatIndex;
+    }
+
+    public Passenger getPassenger() {
+        return passenger;
+    }
+}
@@ -0,0 +1,111 @@
+package com.busbooking.model;
+
+// Immutable view of one trip's bookings. Services replace a trip's snapshot copy-on-write
+// on every change, so a reader holding one always sees a consistent trip without locking.
+// The version goes up by one with every change to the trip; comparing versions is a cheap
+// way to tell whether anything changed since the last look.
+public class TripSnapshot {
+    private final int routeIndex;
+    private final int dayIndex;
+    private final int timeIndex;
+    private final long version;
+    private final long occupancy;
+    private final Passenger[] passengers; // null for free seats
+
+    private TripSnapshot(int routeIndex, int dayIndex, int timeIndex, long version, long occupancy, Passenger[] passengers) {
+        this.routeIndex = routeIndex;
+        this.dayIndex = dayIndex;
+        this.timeIndex = timeIndex;
+        this.version = version;
+        this.occupancy = occupancy;
+        this.passengers = passengers;
+    }
+
+    public static TripSnapshot empty(int routeIndex, int dayIndex, int timeIndex, int capacity) {
+        return new TripSnapshot(routeIndex, dayIndex, timeIndex, 0, 0, new Passenger[capacity]);
+    }
+
+    // passengers has one entry per seat, null when free, and is copied.
+    public static TripSnapshot of(int routeIndex, int dayIndex, int timeIndex, long version, long occupancy, Passenger[] passengers) {
+        return new TripSnapshot(routeIndex, dayIndex, timeIndex, version, occupancy, passengers.clone());
+    }
+
+    // The next version, with the seat booked. Only one reference per seat is copied.
+    public TripSnapshot withBooked(int seatIndex, String name, String id, String phone) {
+        Passenger[] next = passengers.clone();
+        next[seatIndex] = new Passenger(name, id, phone);
+        return new TripSnapshot(routeIndex, dayIndex, timeIndex, version + 1, occupancy | (1L << seatIndex), next);
+    }
+
+    // The next version, with the seat free.
+    public TripSnapshot withCancelled(int seatIndex) {
+        Passenger[] next = passengers.clone();
+        next[seatIndex] = null;
+        return new TripSnapshot(routeIndex, dayIndex, timeIndex, version + 1, occupancy & ~(1L << seatIndex), next);
+    }
+
+    public int getRouteIndex() {
+        return routeIndex;
+    }
+
+    public int getDayIndex() {
+        return dayIndex;
+    }
+
+    public int getTimeIndex() {
+        return timeIndex;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // Bit s is set when seat s is booked.
+    public long getOccupancy() {
+        return occupancy;
+    }
+
+    public int getCapacity() {
+        return passengers.length;
+    }
+
+    public int getBookedCount() {
+        return Long.bitCount(occupancy);
+    }
+
+    public boolean isBooked(int seatIndex) {
+        return (occupancy & (1L << seatIndex)) != 0;
+    }
+
+    // The seat's passenger, or null if it is free.
+    public Passenger getPassenger(int seatIndex) {
+        return passengers[seatIndex];
+    }
+
+    public String getName(int seatIndex) {
+        Passenger passenger = passengers[seatIndex];
+        return passenger == null ? "" : passenger.getName();
+    }
+
+    public String getId(int seatIndex) {
+        Passenger passenger = passengers[seatIndex];
+        return passenger == null ? "" : passenger.getId();
+    }
+
+    public String getPhone(int seatIndex) {
+        Passenger passenger = passengers[seatIndex];
+        return passenger == null ? "" : passenger.getPhone();
+    }
+
+    // A detached Seat; changing it doesn't affect the snapshot or the service.
+    public Seat getSeat(int seatIndex) {
+        Seat seat = new Seat();
+        if (isBooked(seatIndex)) {
+            seat.setBooked(true);
+            seat.setName(getName(seatIndex));
+            seat.setId(getId(seatIndex));
+            seat.setPhone(getPhone(seatIndex));
+        }
+        return seat;
+    }
+}
@@ -0,0 +1,279 @@
+package com.busbooking.replay;
+
+import com.busbooking.core.AbstractBusService;
+import com.busbooking.model.Schedule;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// One recorded call against a bus service. Operation files hold one per line, either as
+// CSV with the columns
+//   op,route,day,time,seat,name,id,phone
+// (commas and backslashes in names escaped with a backslash, as in FileStorage) or as
+// one JSON object per line with the same keys:
+//   {"op":"book","route":0,"day":1,"time":2,"seat":3,"name":"Ann","id":"1234567890","phone":"01712345678"}
+// Columns an operation doesn't use may be left empty or omitted.
+public final class Operation {
+    public enum Type {
+        BOOK("book"),
+        CANCEL("cancel"),
+        CANCEL_BOOKING("cancelBooking"),
+        JOIN_WAITLIST("joinWaitlist"),
+        LEAVE_WAITLIST("leaveWaitlist");
+
+        private final String label;
+
+        Type(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        static Type of(String label) {
+            for (Type type : values()) {
+                if (type.label.equals(label)) return type;
+            }
+            throw new IllegalArgumentException("Unknown operation: " + label);
+        }
+    }
+
+    public static final String CSV_HEADER = "op,route,day,time,seat,name,id,phone";
+    private static final String[] KEYS = CSV_HEADER.split(",");
+
+    public final Type type;
+    public final int routeIndex;
+    public final int dayIndex;
+    public final int timeIndex;
+    public final int seatIndex;
+    public final String name;
+    public final String id;
+    public final String phone;
+
+    public Operation(Type type, int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone) {
+        this.type = type;
+        this.routeIndex = routeIndex;
+        this.dayIndex = dayIndex;
+        this.timeIndex = timeIndex;
+        this.seatIndex = seatIndex;
+        this.name = name;
+        this.id = id;
+        this.phone = phone;
+    }
+
+    // Parses a CSV or JSON line; returns null for blank lines, comments (#) and the CSV header.
+    public static Operation parse(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.equals(CSV_HEADER)) {
+            return null;
+        }
+        String[] fields = trimmed.startsWith("{") ? jsonFields(trimmed) : splitCsv(trimmed);
+        return new Operation(Type.of(fields[0]), intField(fields[1]), intField(fields[2]), intField(fields[3]),
+                intField(fields[4]), fields[5], fields[6], fields[7]);
+    }
+
+    // Sends the operation to the service. Rejections are thrown as the service throws them.
+    public CompletableFuture<Void> applyTo(AbstractBusService service) throws Exception {
+        switch (type) {
+            case BOOK:
+                return service.bookSeat(routeIndex, dayIndex, timeIndex, seatIndex, name, id, phone);
+            case CANCEL:
+                return service.cancelSeat(routeIndex, dayIndex, timeIndex, seatIndex, id, phone);
+            case CANCEL_BOOKING:
+                return service.cancelBooking(id, phone);
+            case JOIN_WAITLIST:
+                return service.joinWaitlist(routeIndex, dayIndex, timeIndex, name, id, phone);
+            default:
+                return service.leaveWaitlist(routeIndex, dayIndex, timeIndex, id, phone);
+        }
+    }
+
+    // Whether the operation may touch any trip: cancelBooking finds the passenger's seat
+    // by ID, so it can't be routed by the trip it names.
+    boolean isCrossTrip() {
+        return type == Type.CANCEL_BOOKING;
+    }
+
+    // Operations with the same key touch the same trip; replaying each key on one worker
+    // keeps their recorded order. Operations without a valid trip are keyed by ID.
+    // Cross-trip operations don't go through a partition; see ReplayTool.
+    int partitionKey(Schedule schedule) {
+        if (schedule.containsTrip(routeIndex, dayIndex, timeIndex)) {
+            return schedule.tripIndex(routeIndex, dayIndex, timeIndex);
+        }
+        return id == null ? 0 : id.hashCode() & Integer.MAX_VALUE;
+    }
+
+    public String toCsv() {
+        return type.label + "," + routeIndex + "," + dayIndex + "," + timeIndex + "," + seatIndex + "," +
+                escape(name) + "," + escape(id) + "," + escape(phone);
+    }
+
+    public String toJson() {
+        return "{\"op\":\"" + type.label + "\",\"route\":" + routeIndex + ",\"day\":" + dayIndex + ",\"time\":" + timeIndex +
+                ",\"seat\":" + seatIndex + ",\"name\":" + jsonString(name) + ",\"id\":" + jsonString(id) +
+                ",\"phone\":" + jsonString(phone) + "}";
+    }
+
+    @Override
+    public String toString() {
+        return toCsv();
+    }
+
+    private static int intField(String s) {
+        return s == null || s.isEmpty() ? -1 : Integer.parseInt(s.trim());
+    }
+
+    private static String escape(String s) {
+        if (s == null) return "";
+        return s.replace("\\", "\\\\").replace(",", "\\,").replace("\n", "\\n");
+    }
+
+    private static String[] splitCsv(String line) {
+        String[] fields = new String[8];
+        StringBuilder current = new StringBuilder();
+        int index = 0;
+        boolean esc = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (esc) {
+                current.append(c == 'n' ? '\n' : c);
+                esc = false;
+            } else if (c == '\\') {
+                esc = true;
+            } else if (c == ',') {
+                if (index == fields.length - 1) {
+                    throw new IllegalArgumentException("Too many columns");
+                }
+                fields[index++] = current.toString();
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        fields[index] = current.toString();
+        return fields;
+    }
+
+    // Reads a flat JSON object into the CSV column order; nested values aren't supported.
+    private static String[] jsonFields(String line) {
+        Map<String, String> values = new HashMap<>();
+        int[] pos = {1};
+        skipSpace(line, pos);
+        if (peek(line, pos) == '}') {
+            pos[0]++;
+        } else {
+            while (true) {
+                skipSpace(line, pos);
+                String key = readString(line, pos);
+                skipSpace(line, pos);
+                expect(line, pos, ':');
+                skipSpace(line, pos);
+                values.put(key, peek(line, pos) == '"' ? readString(line, pos) : readLiteral(line, pos));
+                skipSpace(line, pos);
+                if (peek(line, pos) == ',') {
+                    pos[0]++;
+                    continue;
+                }
+                expect(line, pos, '}');
+                break;
+            }
+        }
+        skipSpace(line, pos);
+        if (pos[0] != line.length()) {
+            throw new IllegalArgumentException("Trailing characters after object");
+        }
+        String[] fields = new String[KEYS.length];
+        for (int i = 0; i < KEYS.length; i++) {
+            fields[i] = values.get(KEYS[i]);
+        }
+        if (fields[0] == null) {
+            throw new IllegalArgumentException("Missing \"op\"");
+        }
+        return fields;
+    }
+
+    private static char peek(String s, int[] pos) {
+        if (pos[0] >= s.length()) {
+            throw new IllegalArgumentException("Unexpected end of line");
+        }
+        return s.charAt(pos[0]);
+    }
+
+    private static void expect(String s, int[] pos, char c) {
+        if (peek(s, pos) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at column " + (pos[0] + 1));
+        }
+        pos[0]++;
+    }
+
+    private static void skipSpace(String s, int[] pos) {
+        while (pos[0] < s.length() && Character.isWhitespace(s.charAt(pos[0]))) {
+            pos[0]++;
+        }
+    }
+
+    private static String readString(String s, int[] pos) {
+        expect(s, pos, '"');
+        StringBuilder out = new StringBuilder();
+        while (true) {
+            char c = peek(s, pos);
+            pos[0]++;
+            if (c == '"') return out.toString();
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            char e = peek(s, pos);
+            pos[0]++;
+            switch (e) {
+                case 'n': out.append('\n'); break;
+                case 't': out.append('\t'); break;
+                case 'r': out.append('\r'); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'u':
+                    if (pos[0] + 4 > s.length()) {
+                        throw new IllegalArgumentException("Bad \\u escape");
+                    }
+                    out.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default: out.append(e);
+            }
+        }
+    }
+
+    // Numbers, true, false and null, returned as their text; null becomes a missing value.
+    private static String readLiteral(String s, int[] pos) {
+        int start = pos[0];
+        while (pos[0] < s.length() && ",} \t".indexOf(s.charAt(pos[0])) < 0) {
+            pos[0]++;
+        }
+        String literal = s.substring(start, pos[0]);
+        if (literal.isEmpty()) {
+            throw new IllegalArgumentException("Missing value at column " + (start + 1));
+        }
+        return literal.equals("null") ? null : literal;
+    }
+
+    private static String jsonString(String s) {
+        if (s == null) return "null";
+        StringBuilder out = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+}
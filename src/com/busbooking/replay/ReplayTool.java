@@ -0,0 +1,383 @@
+package com.busbooking.replay;
+
+import com.busbooking.core.AbstractBusService;
+import com.busbooking.core.BinaryStorage;
+import com.busbooking.core.BusService;
+import com.busbooking.core.ConcurrentBusService;
+import com.busbooking.core.DurabilityPolicy;
+import com.busbooking.core.FileStorage;
+import com.busbooking.core.JournalStorage;
+import com.busbooking.core.LatencyHistogram;
+import com.busbooking.core.OccupancyStats;
+import com.busbooking.core.ShardedStorage;
+import com.busbooking.core.Storage;
+import com.busbooking.model.Schedule;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless driver that streams an operation file (see Operation) through a bus service
+// in this process, with no network and no UI, then prints throughput, rejections and
+// latency percentiles.
+//   java com.busbooking.replay.ReplayTool replay <operations file | -> [options]
+//       --storage none|file:<path>|journal:<path>|binary:<path>|sharded:<dir>   (none)
+//       --service concurrent|simple      (concurrent)
+//       --durability sync|group|async    (group: up to 256 changes or 5 ms)
+//       --threads N  --batch N  --queue N   (4 workers, 256 ops per batch, 8 batches queued per worker)
+//       --schedule <schedule file>
+//   java com.busbooking.replay.ReplayTool generate <output file | -> [options]
+//       --ops N  --skew S  --cancel R  --seed N  --format csv|jsonl  --schedule <file>
+//       (100000 operations, skew 1.0, cancel ratio 0.2, seed 1, format from the file extension)
+//
+// A reader thread parses the file into batches and hands each to a worker through a
+// bounded queue, so memory stays flat however large the file is and a slow service
+// pushes back on the reader. Operations are partitioned by trip, so every operation on
+// one trip is replayed by the same worker in file order; operations on different trips
+// run in parallel. A cross-trip operation (cancelBooking) is a barrier: the reader waits
+// until every worker has finished the operations before it, applies it itself, and only
+// then hands out the rest. Operations on different trips are otherwise unordered, so an
+// ID or phone freed on one trip and reused on another may replay in either order. A
+// worker waits for the durability futures of one batch before taking the next. Each operation is timed twice: until the service call returns ("call") and
+// until its change is stored ("durable").
+public class ReplayTool {
+    private static final int MAX_REPORTED_ERRORS = 10;
+    // Queue markers, told apart by identity
+    private static final Operation[] STOP = new Operation[0];
+    private static final Operation[] BARRIER = new Operation[0];
+
+    private final AbstractBusService service;
+    private final int workers;
+    private final int batchSize;
+    private final int queueBatches;
+
+    private final LatencyHistogram callLatency = new LatencyHistogram();
+    private final LatencyHistogram durableLatency = new LatencyHistogram();
+    private final Map<Operation.Type, LongAdder> accepted = new ConcurrentHashMap<>();
+    private final Map<Operation.Type, LongAdder> rejected = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> rejections = new ConcurrentHashMap<>();
+    private final LongAdder storageFailures = new LongAdder();
+    private long malformedLines;
+    private long elapsedNanos;
+
+    public ReplayTool(AbstractBusService service, int workers, int batchSize, int queueBatches) {
+        if (workers < 1 || batchSize < 1 || queueBatches < 1) {
+            throw new IllegalArgumentException("Workers, batch size and queue length must be positive");
+        }
+        this.service = service;
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.queueBatches = queueBatches;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("replay") || args[0].equals("generate"))) {
+            System.err.println("Usage: ReplayTool replay <operations file | -> [options]");
+            System.err.println("       ReplayTool generate <output file | -> [options]");
+            System.exit(2);
+        }
+        Map<String, String> options = options(args);
+        Schedule schedule = options.containsKey("schedule") ? Schedule.load(options.get("schedule")) : Schedule.defaultSchedule();
+        if (args[0].equals("generate")) {
+            generate(schedule, args[1], options);
+            return;
+        }
+        AbstractBusService service = openService(schedule, options);
+        ReplayTool tool = new ReplayTool(service, intOption(options, "threads", 4),
+                intOption(options, "batch", 256), intOption(options, "queue", 8));
+        try (Reader in = args[1].equals("-")
+                ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                : new InputStreamReader(new FileInputStream(args[1]), StandardCharsets.UTF_8)) {
+            tool.replay(new BufferedReader(in, 1 << 16));
+        }
+        service.persist();
+        tool.printReport();
+    }
+
+    // Replays every operation in the reader and returns once all of them are stored.
+    public void replay(BufferedReader in) throws IOException, InterruptedException {
+        List<BlockingQueue<Operation[]>> queues = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        // Workers arrive when they take a BARRIER; the reader waits for all of them
+        Phaser drained = new Phaser(workers + 1);
+        for (int w = 0; w < workers; w++) {
+            BlockingQueue<Operation[]> queue = new ArrayBlockingQueue<>(queueBatches);
+            queues.add(queue);
+            Thread thread = new Thread(() -> work(queue, drained), "replay-worker-" + w);
+            threads.add(thread);
+        }
+        Schedule schedule = service.getSchedule();
+        Operation[][] pending = new Operation[workers][batchSize];
+        int[] filled = new int[workers];
+        List<CompletableFuture<Void>> inFlight = new ArrayList<>(1);
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        try {
+            String line;
+            long lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                Operation operation;
+                try {
+                    operation = Operation.parse(line);
+                } catch (RuntimeException e) {
+                    if (malformedLines++ < MAX_REPORTED_ERRORS) {
+                        System.err.println("Skipping line " + lineNumber + ": " + e.getMessage());
+                    }
+                    continue;
+                }
+                if (operation == null) continue;
+                if (operation.isCrossTrip()) {
+                    for (int w = 0; w < workers; w++) {
+                        if (filled[w] > 0) {
+                            queues.get(w).put(Arrays.copyOf(pending[w], filled[w]));
+                            filled[w] = 0;
+                        }
+                        queues.get(w).put(BARRIER);
+                    }
+                    drained.arriveAndAwaitAdvance();
+                    // Its call has returned before anything after it is handed out; only
+                    // durability is waited for later, at the next barrier or the end
+                    awaitStored(inFlight);
+                    apply(operation, inFlight);
+                    continue;
+                }
+                int w = operation.partitionKey(schedule) % workers;
+                pending[w][filled[w]++] = operation;
+                if (filled[w] == batchSize) {
+                    queues.get(w).put(pending[w]);
+                    pending[w] = new Operation[batchSize];
+                    filled[w] = 0;
+                }
+            }
+        } finally {
+            for (int w = 0; w < workers; w++) {
+                if (filled[w] > 0) {
+                    queues.get(w).put(Arrays.copyOf(pending[w], filled[w]));
+                }
+                queues.get(w).put(STOP);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            awaitStored(inFlight);
+            elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    private void work(BlockingQueue<Operation[]> queue, Phaser drained) {
+        List<CompletableFuture<Void>> inFlight = new ArrayList<>(batchSize);
+        try {
+            while (true) {
+                Operation[] batch = queue.take();
+                if (batch == STOP) return;
+                if (batch == BARRIER) {
+                    drained.arrive();
+                    continue;
+                }
+                for (Operation operation : batch) {
+                    apply(operation, inFlight);
+                }
+                awaitStored(inFlight);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Applies one operation, counting it and timing it until the call returns and until
+    // its change is stored; the durability future goes into inFlight.
+    private void apply(Operation operation, List<CompletableFuture<Void>> inFlight) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> done;
+        try {
+            done = operation.applyTo(service);
+        } catch (Exception e) {
+            count(rejected, operation.type);
+            rejections.computeIfAbsent(e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+            return;
+        }
+        callLatency.recordSince(start);
+        count(accepted, operation.type);
+        inFlight.add(done.whenComplete((ignored, error) -> {
+            if (error != null) {
+                storageFailures.increment();
+            } else {
+                durableLatency.recordSince(start);
+            }
+        }));
+    }
+
+    private static void awaitStored(List<CompletableFuture<Void>> inFlight) {
+        CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+        inFlight.clear();
+    }
+
+    private static void count(Map<Operation.Type, LongAdder> counts, Operation.Type type) {
+        counts.computeIfAbsent(type, k -> new LongAdder()).increment();
+    }
+
+    public long getAccepted() {
+        return accepted.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    public long getRejected() {
+        return rejected.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    public long getMalformedLines() {
+        return malformedLines;
+    }
+
+    public long getStorageFailures() {
+        return storageFailures.sum();
+    }
+
+    public void printReport() {
+        long total = getAccepted() + getRejected();
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("operations: %d in %.2f s (%.0f ops/s), %d workers, batches of %d%n",
+                total, seconds, total / Math.max(seconds, 1e-9), workers, batchSize);
+        for (Operation.Type type : Operation.Type.values()) {
+            long ok = sum(accepted, type);
+            long failed = sum(rejected, type);
+            if (ok + failed > 0) {
+                System.out.printf("  %-14s accepted %10d  rejected %10d%n", type.getLabel(), ok, failed);
+            }
+        }
+        Map<String, Long> byReason = new TreeMap<>();
+        rejections.forEach((reason, count) -> byReason.put(reason, count.sum()));
+        System.out.println("rejections: " + byReason);
+        System.out.println("malformed lines: " + malformedLines + ", storage failures: " + storageFailures.sum());
+        printLatency("call", callLatency);
+        printLatency("durable", durableLatency);
+        OccupancyStats occupancy = service.getOccupancyStats();
+        System.out.printf("seats booked: %d of %d (%.1f%%)%n",
+                occupancy.getBooked(), occupancy.getCapacity(), occupancy.getLoadFactor() * 100);
+    }
+
+    private static long sum(Map<Operation.Type, LongAdder> counts, Operation.Type type) {
+        LongAdder count = counts.get(type);
+        return count == null ? 0 : count.sum();
+    }
+
+    private static void printLatency(String label, LatencyHistogram histogram) {
+        System.out.printf("%-8s p50 %8.1f us  p90 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  max %8.1f us%n", label,
+                histogram.percentile(50) / 1e3, histogram.percentile(90) / 1e3, histogram.percentile(99) / 1e3,
+                histogram.percentile(99.9) / 1e3, histogram.percentile(100) / 1e3);
+    }
+
+    private static void generate(Schedule schedule, String path, Map<String, String> options) throws IOException {
+        WorkloadGenerator generator = new WorkloadGenerator(schedule, Long.parseLong(options.getOrDefault("seed", "1")),
+                Double.parseDouble(options.getOrDefault("skew", "1.0")),
+                Double.parseDouble(options.getOrDefault("cancel", "0.2")));
+        boolean json = options.getOrDefault("format", path.endsWith(".jsonl") ? "jsonl" : "csv").equals("jsonl");
+        long count = Long.parseLong(options.getOrDefault("ops", "100000"));
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                path.equals("-") ? System.out : new FileOutputStream(path), StandardCharsets.UTF_8), 1 << 16)) {
+            if (!json) {
+                out.write(Operation.CSV_HEADER);
+                out.write('\n');
+            }
+            for (long i = 0; i < count; i++) {
+                Operation operation = generator.next();
+                out.write(json ? operation.toJson() : operation.toCsv());
+                out.write('\n');
+            }
+        }
+    }
+
+    private static AbstractBusService openService(Schedule schedule, Map<String, String> options) {
+        Storage storage = openStorage(options.getOrDefault("storage", "none"));
+        DurabilityPolicy durability;
+        switch (options.getOrDefault("durability", "group")) {
+            case "sync":
+                durability = DurabilityPolicy.sync();
+                break;
+            case "async":
+                durability = DurabilityPolicy.async();
+                break;
+            case "group":
+                durability = DurabilityPolicy.groupCommit(256, 5);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown durability: " + options.get("durability"));
+        }
+        switch (options.getOrDefault("service", "concurrent")) {
+            case "concurrent":
+                return new ConcurrentBusService(storage, schedule, durability);
+            case "simple":
+                return new BusService(storage, schedule, durability);
+            default:
+                throw new IllegalArgumentException("Unknown service: " + options.get("service"));
+        }
+    }
+
+    // "none" keeps everything in memory, to measure the service without storage costs.
+    private static Storage openStorage(String spec) {
+        if (spec.equals("none")) {
+            return new Storage() {
+                @Override
+                public void save(BusServiceState state) {
+                }
+
+                @Override
+                public BusServiceState load(Schedule schedule) {
+                    return new BusServiceState(schedule);
+                }
+            };
+        }
+        int colon = spec.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Storage must be none or <kind>:<path>, got " + spec);
+        }
+        String path = spec.substring(colon + 1);
+        switch (spec.substring(0, colon)) {
+            case "file":
+                return new FileStorage(path);
+            case "journal":
+                return new JournalStorage(new FileStorage(path), path + ".journal");
+            case "binary":
+                return new BinaryStorage(path);
+            case "sharded":
+                return new ShardedStorage(path);
+            default:
+                throw new IllegalArgumentException("Unknown storage: " + spec);
+        }
+    }
+
+    // --name value pairs after the two positional arguments.
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+}
@@ -0,0 +1,136 @@
+package com.busbooking.replay;
+
+import com.busbooking.model.Schedule;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Synthetic booking traffic with skewed demand. Routes and time slots are drawn from
+// Zipf distributions over a seeded random ranking, so a few routes and slots take most
+// of the bookings while days stay uniform; skew 0 makes everything uniform. The generator
+// tracks the seat map its own operations would produce: bookings go to a free seat, or
+// to a random taken one once the trip is sold out, and cancellations release a seat it
+// booked earlier with that passenger's credentials. Each booking uses a new passenger.
+public class WorkloadGenerator {
+    private final Schedule schedule;
+    private final Random random;
+    private final double cancelRatio;
+    private final double[] routeCdf;
+    private final double[] timeCdf;
+    private final long[] booked; // the generator's view of each trip's seat bitmap
+
+    // Seats booked so far, as trip * 64 + seat, and the passenger holding each.
+    private int[] bookedSeats = new int[1024];
+    private long[] bookedPassengers = new long[1024];
+    private int bookedCount;
+    private long nextPassenger;
+
+    public WorkloadGenerator(Schedule schedule, long seed, double skew, double cancelRatio) {
+        if (skew < 0) {
+            throw new IllegalArgumentException("Skew must not be negative");
+        }
+        if (cancelRatio < 0 || cancelRatio >= 1) {
+            throw new IllegalArgumentException("Cancel ratio must be in [0, 1)");
+        }
+        this.schedule = schedule;
+        this.random = new Random(seed);
+        this.cancelRatio = cancelRatio;
+        this.routeCdf = zipfCdf(schedule.getRouteCount(), skew);
+        this.timeCdf = zipfCdf(schedule.getTimeCount(), skew);
+        this.booked = new long[schedule.getTripCount()];
+    }
+
+    public Operation next() {
+        if (bookedCount > 0 && random.nextDouble() < cancelRatio) {
+            return cancel();
+        }
+        int r = sample(routeCdf);
+        int d = random.nextInt(schedule.getDayCount());
+        int t = sample(timeCdf);
+        int trip = schedule.tripIndex(r, d, t);
+        int capacity = schedule.getCapacity(trip);
+        long passenger = nextPassenger++;
+        int free = capacity - Long.bitCount(booked[trip]);
+        int seat;
+        if (free == 0) {
+            seat = random.nextInt(capacity);
+        } else {
+            seat = nthFreeSeat(booked[trip], random.nextInt(free));
+            booked[trip] |= 1L << seat;
+            remember(trip * Schedule.MAX_CAPACITY + seat, passenger);
+        }
+        return new Operation(Operation.Type.BOOK, r, d, t, seat, "Passenger " + passenger, id(passenger), phone(passenger));
+    }
+
+    private Operation cancel() {
+        int i = random.nextInt(bookedCount);
+        int packed = bookedSeats[i];
+        long passenger = bookedPassengers[i];
+        bookedCount--;
+        bookedSeats[i] = bookedSeats[bookedCount];
+        bookedPassengers[i] = bookedPassengers[bookedCount];
+        int trip = packed / Schedule.MAX_CAPACITY;
+        int seat = packed % Schedule.MAX_CAPACITY;
+        booked[trip] &= ~(1L << seat);
+        int times = schedule.getTimeCount();
+        int days = schedule.getDayCount();
+        return new Operation(Operation.Type.CANCEL, trip / (days * times), trip / times % days, trip % times, seat,
+                "", id(passenger), phone(passenger));
+    }
+
+    private void remember(int packed, long passenger) {
+        if (bookedCount == bookedSeats.length) {
+            bookedSeats = Arrays.copyOf(bookedSeats, bookedCount * 2);
+            bookedPassengers = Arrays.copyOf(bookedPassengers, bookedCount * 2);
+        }
+        bookedSeats[bookedCount] = packed;
+        bookedPassengers[bookedCount] = passenger;
+        bookedCount++;
+    }
+
+    private static int nthFreeSeat(long bits, int n) {
+        long free = ~bits;
+        for (int i = 0; i < n; i++) {
+            free &= free - 1;
+        }
+        return Long.numberOfTrailingZeros(free);
+    }
+
+    // Cumulative weights 1 / rank^skew, with ranks handed out in a random order.
+    private double[] zipfCdf(int n, double skew) {
+        int[] rank = new int[n];
+        for (int i = 0; i < n; i++) {
+            rank[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = rank[i];
+            rank[i] = rank[j];
+            rank[j] = swap;
+        }
+        double[] cdf = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1 / Math.pow(rank[i] + 1, skew);
+            cdf[i] = total;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= total;
+        }
+        return cdf;
+    }
+
+    private int sample(double[] cdf) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+    }
+
+    // Distinct valid credentials per passenger number.
+    private static String id(long passenger) {
+        return String.format("%010d", 1_000_000_000L + passenger % 9_000_000_000L);
+    }
+
+    private static String phone(long passenger) {
+        return String.format("01%09d", passenger % 1_000_000_000L);
+    }
+}
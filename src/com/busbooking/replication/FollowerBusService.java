@@ -0,0 +1,644 @@
+package com.busbooking.replication;
+
+import com.busbooking.core.AbstractBusService;
+import com.busbooking.core.Storage;
+import com.busbooking.exception.DuplicateCredentialsException;
+import com.busbooking.exception.InvalidCredentialsException;
+import com.busbooking.exception.InvalidSelectionException;
+import com.busbooking.exception.MissingCredentialsException;
+import com.busbooking.exception.SeatAlreadyBookedException;
+import com.busbooking.exception.WaitlistFullException;
+import com.busbooking.model.Passenger;
+import com.busbooking.model.Schedule;
+import com.busbooking.model.SeatRequest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+// Follower side of leader/follower replication: reads are served from a local replica
+// kept up to date from the leader's log, writes are forwarded to the leader. A write's
+// future completes once the replica has applied it, so a terminal always sees its own
+// bookings. If the leader is unreachable the future fails with the IOException.
+//
+// Holds live on the leader: holdSeat, bookHeldSeat and releaseHold are forwarded, but
+// isHeld, getHeldSeats and isBooked on a follower don't see them. Waitlist joins and
+// departures are forwarded too; getWaitlist reads the replica.
+public class FollowerBusService extends AbstractBusService {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10_000; // several missed heartbeats
+    private static final long MAX_RETRY_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final BlockingQueue<RpcConnection> idle = new LinkedBlockingQueue<>();
+    private volatile Consumer<Throwable> failureHandler = FollowerBusService::logFailure;
+    private volatile boolean closed;
+    private volatile Socket streamSocket;
+
+    // Guarded by this
+    private final Storage.BusServiceState replica;
+    private long epoch;
+    private long appliedSeq;
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    private static final class Waiter {
+        final long seq;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Waiter(long seq) {
+            this.seq = seq;
+        }
+    }
+
+    // Connects to the leader's replication port and waits for the initial snapshot.
+    public static FollowerBusService connect(String host, int port) throws IOException {
+        Socket socket = open(host, port, Wire.STREAM);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeLong(0);
+        out.writeLong(0);
+        out.flush();
+        Schedule schedule = Wire.readSchedule(in);
+        FollowerBusService follower = new FollowerBusService(host, port, schedule);
+        follower.epoch = in.readLong();
+        follower.readFrame(in); // the leader always opens a new epoch with a snapshot
+        follower.startStream(socket, in);
+        return follower;
+    }
+
+    private FollowerBusService(String host, int port, Schedule schedule) {
+        super(schedule);
+        this.host = host;
+        this.port = port;
+        this.replica = new Storage.BusServiceState(schedule);
+    }
+
+    public synchronized long getAppliedSequence() {
+        return appliedSeq;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket socket = streamSocket;
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException ignored) {
+        }
+        RpcConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+        super.close();
+    }
+
+    @Override
+    public synchronized boolean isBooked(int routeIndex, int dayIndex, int timeIndex, int seatIndex) throws InvalidSelectionException {
+        validateIndices(routeIndex, dayIndex, timeIndex, seatIndex);
+        return replica.isBooked(routeIndex, dayIndex, timeIndex, seatIndex);
+    }
+
+    @Override
+    public synchronized long getOccupancy(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        return replica.booked[schedule.tripIndex(routeIndex, dayIndex, timeIndex)];
+    }
+
+    @Override
+    protected CompletableFuture<Void> doBookSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String name, String id, String phone)
+            throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        Reply reply;
+        try {
+            reply = call(out -> {
+                out.writeByte(Wire.BOOK);
+                out.writeInt(routeIndex);
+                out.writeInt(dayIndex);
+                out.writeInt(timeIndex);
+                out.writeInt(seatIndex);
+                out.writeUTF(Wire.text(name));
+                out.writeUTF(Wire.text(id));
+                out.writeUTF(Wire.text(phone));
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            reply.rethrow();
+        } catch (InvalidCredentialsException e) {
+            throw unexpected(e);
+        }
+        return completion(reply);
+    }
+
+    @Override
+    protected CompletableFuture<Void> doCancelSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone)
+            throws InvalidSelectionException, InvalidCredentialsException {
+        Reply reply;
+        try {
+            reply = call(out -> {
+                out.writeByte(Wire.CANCEL);
+                out.writeInt(routeIndex);
+                out.writeInt(dayIndex);
+                out.writeInt(timeIndex);
+                out.writeInt(seatIndex);
+                out.writeUTF(Wire.text(id));
+                out.writeUTF(Wire.text(phone));
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            reply.rethrow();
+        } catch (SeatAlreadyBookedException | MissingCredentialsException | DuplicateCredentialsException e) {
+            throw unexpected(e);
+        }
+        return completion(reply);
+    }
+
+    // The leader looks the booking up again and cancels it under its own lock, so the seat
+    // found in the replica only decides that there is something to cancel.
+    @Override
+    protected CompletableFuture<Void> doCancelBooking(int routeIndex, int dayIndex, int timeIndex, int seatIndex, String id, String phone)
+            throws InvalidCredentialsException {
+        Reply reply;
+        try {
+            reply = call(out -> {
+                out.writeByte(Wire.CANCEL_BOOKING);
+                out.writeUTF(Wire.text(id));
+                out.writeUTF(Wire.text(phone));
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            reply.rethrow();
+        } catch (InvalidSelectionException | SeatAlreadyBookedException | MissingCredentialsException | DuplicateCredentialsException e) {
+            throw unexpected(e);
+        }
+        return completion(reply);
+    }
+
+    @Override
+    public CompletableFuture<Void> bookSeats(List<SeatRequest> requests)
+            throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        Reply reply;
+        try {
+            reply = call(out -> {
+                out.writeByte(Wire.BOOK_GROUP);
+                Wire.writeRequests(out, requests);
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            reply.rethrow();
+        } catch (InvalidCredentialsException e) {
+            throw unexpected(e);
+        }
+        return completion(reply);
+    }
+
+    @Override
+    public CompletableFuture<Void> cancelSeats(List<SeatRequest> requests) throws InvalidSelectionException, InvalidCredentialsException {
+        Reply reply;
+        try {
+            reply = call(out -> {
+                out.writeByte(Wire.CANCEL_GROUP);
+                Wire.writeRequests(out, requests);
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            reply.rethrow();
+        } catch (SeatAlreadyBookedException | MissingCredentialsException | DuplicateCredentialsException e) {
+            throw unexpected(e);
+        }
+        return completion(reply);
+    }
+
+    @Override
+    public CompletableFuture<Void> joinWaitlist(int routeIndex, int dayIndex, int timeIndex, String name, String id, String phone)
+            throws InvalidSelectionException, MissingCredentialsException, DuplicateCredentialsException, WaitlistFullException {
+        Reply reply;
+        try {
+            reply = call(out -> {
+                out.writeByte(Wire.JOIN_WAITLIST);
+                out.writeInt(routeIndex);
+                out.writeInt(dayIndex);
+                out.writeInt(timeIndex);
+                out.writeUTF(Wire.text(name));
+                out.writeUTF(Wire.text(id));
+                out.writeUTF(Wire.text(phone));
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (reply.status == Wire.REJECTED && "WaitlistFullException".equals(reply.type)) {
+            throw new WaitlistFullException(reply.message);
+        }
+        try {
+            reply.rethrow();
+        } catch (SeatAlreadyBookedException | InvalidCredentialsException e) {
+            throw unexpected(e);
+        }
+        return completion(reply);
+    }
+
+    @Override
+    public CompletableFuture<Void> leaveWaitlist(int routeIndex, int dayIndex, int timeIndex, String id, String phone)
+            throws InvalidSelectionException, InvalidCredentialsException {
+        Reply reply;
+        try {
+            reply = call(out -> {
+                out.writeByte(Wire.LEAVE_WAITLIST);
+                out.writeInt(routeIndex);
+                out.writeInt(dayIndex);
+                out.writeInt(timeIndex);
+                out.writeUTF(Wire.text(id));
+                out.writeUTF(Wire.text(phone));
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            reply.rethrow();
+        } catch (SeatAlreadyBookedException | MissingCredentialsException | DuplicateCredentialsException e) {
+            throw unexpected(e);
+        }
+        return completion(reply);
+    }
+
+    @Override
+    public synchronized List<Passenger> getWaitlist(int routeIndex, int dayIndex, int timeIndex) throws InvalidSelectionException {
+        validateTrip(routeIndex, dayIndex, timeIndex);
+        return waitlistOf(replica, schedule.tripIndex(routeIndex, dayIndex, timeIndex));
+    }
+
+    // Without a leader there is no hold to hand out, so connection failures surface as
+    // an IllegalStateException here.
+    @Override
+    public long holdSeat(int routeIndex, int dayIndex, int timeIndex, int seatIndex, long ttlMillis)
+            throws InvalidSelectionException, SeatAlreadyBookedException {
+        Reply reply = callOrThrow(out -> {
+            out.writeByte(Wire.HOLD);
+            out.writeInt(routeIndex);
+            out.writeInt(dayIndex);
+            out.writeInt(timeIndex);
+            out.writeInt(seatIndex);
+            out.writeLong(ttlMillis);
+        });
+        try {
+            reply.rethrow();
+        } catch (MissingCredentialsException | DuplicateCredentialsException | InvalidCredentialsException e) {
+            throw unexpected(e);
+        }
+        return reply.value;
+    }
+
+    // Holds taken on the leader are invisible here, so bookAdjacentSeats doesn't retry.
+    @Override
+    protected boolean seesAllHolds() {
+        return false;
+    }
+
+    @Override
+    protected CompletableFuture<Void> doBookHeldSeat(long holdId, String name, String id, String phone)
+            throws SeatAlreadyBookedException, MissingCredentialsException, DuplicateCredentialsException {
+        Reply reply;
+        try {
+            reply = call(out -> {
+                out.writeByte(Wire.BOOK_HELD);
+                out.writeLong(holdId);
+                out.writeUTF(Wire.text(name));
+                out.writeUTF(Wire.text(id));
+                out.writeUTF(Wire.text(phone));
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            reply.rethrow();
+        } catch (InvalidSelectionException | InvalidCredentialsException e) {
+            throw unexpected(e);
+        }
+        return completion(reply);
+    }
+
+    // An unreachable leader is reported to the failure handler; the hold then expires on
+    // the leader when its time is up.
+    @Override
+    public boolean releaseHold(long holdId) {
+        try {
+            return call(out -> {
+                out.writeByte(Wire.RELEASE);
+                out.writeLong(holdId);
+            }).value != 0;
+        } catch (IOException e) {
+            failureHandler.accept(e);
+            return false;
+        }
+    }
+
+    // Asks the leader to write a full snapshot.
+    @Override
+    public void persist() {
+        try {
+            call(out -> out.writeByte(Wire.PERSIST));
+        } catch (IOException e) {
+            failureHandler.accept(e);
+        }
+    }
+
+    // Receives replication and forwarding failures; by default they are logged to stderr.
+    @Override
+    public void setPersistenceFailureHandler(Consumer<Throwable> handler) {
+        failureHandler = handler == null ? FollowerBusService::logFailure : handler;
+    }
+
+    // Completes once the replica has caught up with the leader's reply, or fails if the
+    // leader applied the write but could not store it.
+    private CompletableFuture<Void> completion(Reply reply) {
+        if (reply.status == Wire.FAILED) {
+            return CompletableFuture.failedFuture(new IOException("Leader could not save booking data: " + reply.message));
+        }
+        synchronized (this) {
+            if (appliedSeq >= reply.seq) return CompletableFuture.completedFuture(null);
+            Waiter waiter = new Waiter(reply.seq);
+            waiters.add(waiter);
+            return waiter.done;
+        }
+    }
+
+    private static IllegalStateException unexpected(Exception e) {
+        return new IllegalStateException("Unexpected reply from leader", e);
+    }
+
+    // ---- replication stream ----
+
+    private void startStream(Socket socket, DataInputStream in) {
+        streamSocket = socket;
+        Thread reader = new Thread(() -> runStream(socket, in), "replication-follower");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void runStream(Socket socket, DataInputStream in) {
+        long retry = 100;
+        while (!closed) {
+            try {
+                if (socket == null) {
+                    socket = open(host, port, Wire.STREAM);
+                    streamSocket = socket;
+                    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    synchronized (this) {
+                        out.writeLong(epoch);
+                        out.writeLong(appliedSeq);
+                    }
+                    out.flush();
+                    Wire.readSchedule(in);
+                    long leaderEpoch = in.readLong();
+                    synchronized (this) {
+                        epoch = leaderEpoch;
+                    }
+                }
+                retry = 100;
+                while (!closed) {
+                    readFrame(in);
+                }
+            } catch (IOException e) {
+                if (closed) return;
+                failureHandler.accept(e);
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                socket = null;
+                try {
+                    Thread.sleep(retry);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                retry = Math.min(retry * 2, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+
+    private void readFrame(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == Wire.HEARTBEAT) return;
+        long seq = in.readLong();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad mutation count " + count);
+        }
+        List<Storage.Mutation> mutations = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            mutations.add(Wire.readMutation(in));
+        }
+        if (type == Wire.SNAPSHOT) {
+            applySnapshot(seq, mutations);
+        } else if (type == Wire.ENTRY) {
+            applyEntry(seq, mutations);
+        } else {
+            throw new IOException("Unknown replication frame " + type);
+        }
+    }
+
+    private synchronized void applySnapshot(long seq, List<Storage.Mutation> booked) {
+        Storage.BusServiceState next = new Storage.BusServiceState(schedule);
+        for (Storage.Mutation m : booked) {
+            if (m.fits(schedule)) m.applyTo(next);
+        }
+        // Waitlists aren't published, so they are simply replaced.
+        replica.clearWaitlists();
+        for (Storage.Mutation m : booked) {
+            if (m.isWaitlistChange() && m.fits(schedule)) m.applyTo(replica);
+        }
+        // Publish the difference so subscribers see the snapshot as ordinary seat changes.
+        for (int r = 0; r < schedule.getRouteCount(); r++) {
+            for (int d = 0; d < schedule.getDayCount(); d++) {
+                for (int t = 0; t < schedule.getTimeCount(); t++) {
+                    int trip = schedule.tripIndex(r, d, t);
+                    long changed = replica.booked[trip] ^ next.booked[trip];
+                    while (changed != 0) {
+                        int s = Long.numberOfTrailingZeros(changed);
+                        changed &= changed - 1;
+                        if (next.isBooked(r, d, t, s)) {
+                            replica.book(r, d, t, s, next.getName(trip, s), next.getId(trip, s), next.getPhone(trip, s));
+                            publishBooked(r, d, t, s, next.getName(trip, s), next.getId(trip, s), next.getPhone(trip, s));
+                        } else {
+                            replica.cancel(r, d, t, s);
+                            publishCancelled(r, d, t, s);
+                        }
+                    }
+                    // Seats booked in both may still have changed hands
+                    long kept = replica.booked[trip] & next.booked[trip];
+                    while (kept != 0) {
+                        int s = Long.numberOfTrailingZeros(kept);
+                        kept &= kept - 1;
+                        if (replica.getName(trip, s).equals(next.getName(trip, s)) && replica.getIdKey(trip, s) == next.getIdKey(trip, s) &&
+                                replica.getPhoneKey(trip, s) == next.getPhoneKey(trip, s)) {
+                            continue;
+                        }
+                        replica.book(r, d, t, s, next.getName(trip, s), next.getId(trip, s), next.getPhone(trip, s));
+                        publishBooked(r, d, t, s, next.getName(trip, s), next.getId(trip, s), next.getPhone(trip, s));
+                    }
+                }
+            }
+        }
+        appliedSeq = seq;
+        // Whatever a waiter wrote is either in the snapshot or lost with a previous leader run.
+        for (Waiter waiter : waiters) {
+            waiter.done.complete(null);
+        }
+        waiters.clear();
+    }
+
+    private synchronized void applyEntry(long seq, List<Storage.Mutation> mutations) {
+        if (seq <= appliedSeq) return;
+        for (Storage.Mutation m : mutations) {
+            if (!m.fits(schedule)) continue;
+            if (m.isWaitlistChange()) {
+                m.applyTo(replica);
+                continue;
+            }
+            boolean wasBooked = replica.isBooked(m.routeIndex, m.dayIndex, m.timeIndex, m.seatIndex);
+            m.applyTo(replica);
+            if (m.type == Storage.Mutation.Type.BOOK) {
+                publishBooked(m.routeIndex, m.dayIndex, m.timeIndex, m.seatIndex, m.name, m.id, m.phone);
+            } else if (wasBooked) {
+                publishCancelled(m.routeIndex, m.dayIndex, m.timeIndex, m.seatIndex);
+            }
+        }
+        appliedSeq = seq;
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+            if (waiter.seq <= seq) {
+                waiter.done.complete(null);
+                it.remove();
+            }
+        }
+    }
+
+    // ---- write forwarding ----
+
+    private interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final class Reply {
+        byte status;
+        long seq;
+        long value;
+        String type;
+        String message;
+
+        void rethrow() throws InvalidSelectionException, SeatAlreadyBookedException, MissingCredentialsException,
+                DuplicateCredentialsException, InvalidCredentialsException {
+            if (status != Wire.REJECTED) return;
+            switch (type) {
+                case "InvalidSelectionException": throw new InvalidSelectionException(message);
+                case "SeatAlreadyBookedException": throw new SeatAlreadyBookedException(message);
+                case "MissingCredentialsException": throw new MissingCredentialsException(message);
+                case "DuplicateCredentialsException": throw new DuplicateCredentialsException(message);
+                case "InvalidCredentialsException": throw new InvalidCredentialsException(message);
+                case "IllegalArgumentException": throw new IllegalArgumentException(message);
+                default: throw new IllegalStateException(type + ": " + message);
+            }
+        }
+    }
+
+    private static final class RpcConnection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        RpcConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // One request at a time per connection; concurrent callers get connections of their own.
+    private Reply call(Request request) throws IOException {
+        RpcConnection connection = idle.poll();
+        if (connection == null) {
+            connection = new RpcConnection(open(host, port, Wire.RPC));
+        }
+        try {
+            request.write(connection.out);
+            connection.out.flush();
+            Reply reply = new Reply();
+            reply.status = connection.in.readByte();
+            if (reply.status == Wire.OK) {
+                reply.seq = connection.in.readLong();
+                reply.value = connection.in.readLong();
+            } else if (reply.status == Wire.REJECTED) {
+                reply.type = connection.in.readUTF();
+                reply.message = connection.in.readUTF();
+            } else if (reply.status == Wire.FAILED) {
+                reply.message = connection.in.readUTF();
+            } else {
+                throw new IOException("Unknown reply status " + reply.status);
+            }
+            idle.add(connection);
+            return reply;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private Reply callOrThrow(Request request) {
+        try {
+            return call(request);
+        } catch (IOException e) {
+            throw new IllegalStateException("Leader unreachable: " + e, e);
+        }
+    }
+
+    private static Socket open(String host, int port, byte kind) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            if (kind == Wire.STREAM) socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(Wire.MAGIC);
+            out.writeByte(kind);
+            out.flush();
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static void logFailure(Throwable failure) {
+        System.err.println("Replication failure: " + failure);
+    }
+}
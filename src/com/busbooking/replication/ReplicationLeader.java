@@ -0,0 +1,279 @@
+package com.busbooking.replication;
+
+import com.busbooking.core.AbstractBusService;
+import com.busbooking.core.Storage;
+import com.busbooking.exception.DuplicateCredentialsException;
+import com.busbooking.exception.InvalidCredentialsException;
+import com.busbooking.exception.InvalidSelectionException;
+import com.busbooking.exception.MissingCredentialsException;
+import com.busbooking.exception.SeatAlreadyBookedException;
+import com.busbooking.exception.WaitlistFullException;
+import com.busbooking.model.Passenger;
+import com.busbooking.model.Schedule;
+import com.busbooking.model.TripSnapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+// Leader side of leader/follower replication. The leader's storage is wrapped so every
+// batch the persistence pipeline writes is also sequenced into a ReplicationLog, which
+// is streamed to followers over TCP. Followers forward their writes here and the
+// leader's own service executes them.
+//
+//   ReplicationLeader leader = new ReplicationLeader(7070);
+//   ConcurrentBusService service = new ConcurrentBusService(leader.wrap(storage), schedule, policy);
+//   leader.start(service);
+//
+// A follower that connects, reconnects or falls behind the retained log is sent a snapshot
+// read from the service plus every entry after the sequence number taken before the read.
+// Book and cancel each set a seat's whole state, so replaying entries the snapshot already
+// reflects converges on the leader's state.
+public class ReplicationLeader {
+    private static final int DEFAULT_LOG_CAPACITY = 100_000;
+    private static final long HEARTBEAT_MILLIS = 1000;
+
+    private final ServerSocket serverSocket;
+    private final ReplicationLog log;
+    // A new epoch per leader run, so followers never resume against another run's numbering.
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile AbstractBusService service;
+    private volatile boolean closed;
+
+    public ReplicationLeader(int port) throws IOException {
+        this(port, DEFAULT_LOG_CAPACITY);
+    }
+
+    public ReplicationLeader(int port, int logCapacity) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(port));
+        this.log = new ReplicationLog(logCapacity);
+    }
+
+    // Storage for the leader's service: writes go to storage and into the replication log.
+    public Storage wrap(Storage storage) {
+        return new Storage() {
+            @Override
+            public void save(BusServiceState state) throws Exception {
+                storage.save(state);
+            }
+
+            @Override
+            public BusServiceState load(Schedule schedule) throws Exception {
+                return storage.load(schedule);
+            }
+
+            @Override
+            public void apply(List<Mutation> mutations, Supplier<BusServiceState> snapshot) throws Exception {
+                log.append(mutations);
+                storage.apply(mutations, snapshot);
+            }
+
+            @Override
+            public void close() throws Exception {
+                storage.close();
+            }
+        };
+    }
+
+    public void start(AbstractBusService service) {
+        this.service = service;
+        Thread acceptor = new Thread(this::acceptLoop, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getLastSequence() {
+        return log.lastSeq();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : connections) {
+            socket.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                Thread handler = new Thread(() -> handle(socket), "replication-" + socket.getRemoteSocketAddress());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (!closed) System.err.println("Replication accept failed: " + e);
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            if (in.readInt() != Wire.MAGIC) return;
+            byte kind = in.readByte();
+            if (kind == Wire.STREAM) {
+                stream(in, out);
+            } else if (kind == Wire.RPC) {
+                serve(in, out);
+            }
+        } catch (IOException | InterruptedException e) {
+            // follower went away; it reconnects and catches up on its own
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private void stream(DataInputStream in, DataOutputStream out) throws IOException, InterruptedException {
+        long followerEpoch = in.readLong();
+        long seq = in.readLong();
+        Wire.writeSchedule(out, service.getSchedule());
+        out.writeLong(epoch);
+        if (followerEpoch != epoch) {
+            seq = sendSnapshot(out);
+        }
+        while (!closed) {
+            List<ReplicationLog.Entry> entries = log.after(seq, HEARTBEAT_MILLIS);
+            if (entries == null) {
+                seq = sendSnapshot(out);
+                continue;
+            }
+            if (entries.isEmpty()) {
+                out.writeByte(Wire.HEARTBEAT);
+            }
+            for (ReplicationLog.Entry entry : entries) {
+                out.writeByte(Wire.ENTRY);
+                out.writeLong(entry.seq);
+                out.writeInt(entry.mutations.size());
+                for (Storage.Mutation m : entry.mutations) {
+                    Wire.writeMutation(out, m);
+                }
+                seq = entry.seq;
+            }
+            out.flush();
+        }
+    }
+
+    // Reads every booked seat from the trip snapshots, then every waitlist; returns the
+    // sequence the follower continues from, taken before the read so nothing in between
+    // is missed. Replaying waitlist records the snapshot already reflects is harmless.
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long seq = log.lastSeq();
+        Schedule schedule = service.getSchedule();
+        List<Storage.Mutation> booked = new ArrayList<>();
+        try {
+            for (int r = 0; r < schedule.getRouteCount(); r++) {
+                for (int d = 0; d < schedule.getDayCount(); d++) {
+                    for (int t = 0; t < schedule.getTimeCount(); t++) {
+                        TripSnapshot trip = service.getTripSnapshot(r, d, t);
+                        long bits = trip.getOccupancy();
+                        while (bits != 0) {
+                            int seat = Long.numberOfTrailingZeros(bits);
+                            bits &= bits - 1;
+                            booked.add(Storage.Mutation.book(r, d, t, seat, trip.getName(seat), trip.getId(seat), trip.getPhone(seat)));
+                        }
+                        for (Passenger waiting : service.getWaitlist(r, d, t)) {
+                            booked.add(Storage.Mutation.waitlist(r, d, t, waiting.getName(), waiting.getId(), waiting.getPhone()));
+                        }
+                    }
+                }
+            }
+        } catch (InvalidSelectionException e) {
+            throw new IllegalStateException(e); // indices come from the service's own schedule
+        }
+        out.writeByte(Wire.SNAPSHOT);
+        out.writeLong(seq);
+        out.writeInt(booked.size());
+        for (Storage.Mutation m : booked) {
+            Wire.writeMutation(out, m);
+        }
+        out.flush();
+        return seq;
+    }
+
+    private void serve(DataInputStream in, DataOutputStream out) throws IOException {
+        while (!closed) {
+            byte op = in.readByte();
+            long value = 0;
+            CompletableFuture<?> done = CompletableFuture.completedFuture(null);
+            try {
+                switch (op) {
+                    case Wire.BOOK:
+                        done = service.bookSeat(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readUTF(), in.readUTF(), in.readUTF());
+                        break;
+                    case Wire.CANCEL:
+                        done = service.cancelSeat(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readUTF(), in.readUTF());
+                        break;
+                    case Wire.CANCEL_BOOKING:
+                        done = service.cancelBooking(in.readUTF(), in.readUTF());
+                        break;
+                    case Wire.BOOK_GROUP:
+                        done = service.bookSeats(Wire.readRequests(in));
+                        break;
+                    case Wire.CANCEL_GROUP:
+                        done = service.cancelSeats(Wire.readRequests(in));
+                        break;
+                    case Wire.HOLD:
+                        value = service.holdSeat(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readLong());
+                        break;
+                    case Wire.BOOK_HELD:
+                        done = service.bookHeldSeat(in.readLong(), in.readUTF(), in.readUTF(), in.readUTF());
+                        break;
+                    case Wire.RELEASE:
+                        value = service.releaseHold(in.readLong()) ? 1 : 0;
+                        break;
+                    case Wire.PERSIST:
+                        service.persist();
+                        break;
+                    case Wire.JOIN_WAITLIST:
+                        done = service.joinWaitlist(in.readInt(), in.readInt(), in.readInt(), in.readUTF(), in.readUTF(), in.readUTF());
+                        break;
+                    case Wire.LEAVE_WAITLIST:
+                        done = service.leaveWaitlist(in.readInt(), in.readInt(), in.readInt(), in.readUTF(), in.readUTF());
+                        break;
+                    default:
+                        throw new IOException("Unknown replication op " + op);
+                }
+            } catch (InvalidSelectionException | SeatAlreadyBookedException | MissingCredentialsException |
+                     DuplicateCredentialsException | InvalidCredentialsException | WaitlistFullException | IllegalArgumentException e) {
+                out.writeByte(Wire.REJECTED);
+                out.writeUTF(e.getClass().getSimpleName());
+                out.writeUTF(Wire.text(e.getMessage()));
+                out.flush();
+                continue;
+            }
+            try {
+                done.join();
+                out.writeByte(Wire.OK);
+                out.writeLong(log.lastSeq());
+                out.writeLong(value);
+            } catch (CompletionException e) {
+                out.writeByte(Wire.FAILED);
+                out.writeUTF(String.valueOf(e.getCause()));
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.busbooking.replication;
+
+import com.busbooking.core.Storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// The leader's sequence of applied mutation batches. Only the most recent entries are
+// kept; a follower that falls further behind than that is sent a snapshot instead.
+final class ReplicationLog {
+    private static final int MAX_READ = 1024;
+
+    static final class Entry {
+        final long seq;
+        final List<Storage.Mutation> mutations;
+
+        Entry(long seq, List<Storage.Mutation> mutations) {
+            this.seq = seq;
+            this.mutations = mutations;
+        }
+    }
+
+    private final Entry[] ring;
+    private long lastSeq; // sequence numbers start at 1
+
+    ReplicationLog(int capacity) {
+        this.ring = new Entry[capacity];
+    }
+
+    synchronized long append(List<Storage.Mutation> mutations) {
+        lastSeq++;
+        ring[(int) (lastSeq % ring.length)] = new Entry(lastSeq, new ArrayList<>(mutations));
+        notifyAll();
+        return lastSeq;
+    }
+
+    synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    // Entries after seq, waiting up to timeoutMillis for the first one. Returns an empty
+    // list on timeout and null if entries after seq are no longer retained.
+    synchronized List<Entry> after(long seq, long timeoutMillis) throws InterruptedException {
+        if (seq > lastSeq || lastSeq - seq > ring.length) return null;
+        if (seq == lastSeq) {
+            wait(timeoutMillis);
+            if (seq == lastSeq) return Collections.emptyList();
+            if (lastSeq - seq > ring.length) return null;
+        }
+        long end = Math.min(lastSeq, seq + MAX_READ);
+        List<Entry> entries = new ArrayList<>((int) (end - seq));
+        for (long s = seq + 1; s <= end; s++) {
+            entries.add(ring[(int) (s % ring.length)]);
+        }
+        return entries;
+    }
+}
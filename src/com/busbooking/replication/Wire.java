@@ -0,0 +1,150 @@
+package com.busbooking.replication;
+
+import com.busbooking.core.Storage;
+import com.busbooking.model.Passenger;
+import com.busbooking.model.Schedule;
+import com.busbooking.model.SeatRequest;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Replication protocol, all big-endian DataOutput:
+//   client hello: int MAGIC, byte STREAM | RPC
+//   STREAM: client sends long epoch, long lastSeq; leader sends the schedule and its epoch,
+//           then SNAPSHOT/ENTRY/HEARTBEAT frames for as long as the connection lasts
+//   RPC:    client sends one op at a time; leader replies OK (seq, value), REJECTED
+//           (exception type, message) or FAILED (message, the write is applied but not durable)
+final class Wire {
+    static final int MAGIC = 0x42425250;
+
+    static final byte STREAM = 1;
+    static final byte RPC = 2;
+
+    static final byte SNAPSHOT = 1;
+    static final byte ENTRY = 2;
+    static final byte HEARTBEAT = 3;
+
+    static final byte BOOK = 1;
+    static final byte CANCEL = 2;
+    static final byte BOOK_GROUP = 3;
+    static final byte CANCEL_GROUP = 4;
+    static final byte HOLD = 5;
+    static final byte BOOK_HELD = 6;
+    static final byte RELEASE = 7;
+    static final byte PERSIST = 8;
+    static final byte JOIN_WAITLIST = 9;
+    static final byte LEAVE_WAITLIST = 10;
+    static final byte CANCEL_BOOKING = 11;
+
+    static final byte OK = 0;
+    static final byte REJECTED = 1;
+    static final byte FAILED = 2;
+
+    private Wire() {
+    }
+
+    static void writeSchedule(DataOutputStream out, Schedule schedule) throws IOException {
+        writeNames(out, schedule.getRouteNames());
+        writeNames(out, schedule.getDayNames());
+        writeNames(out, schedule.getTimeSlots());
+        for (int trip = 0; trip < schedule.getTripCount(); trip++) {
+            out.writeByte(schedule.getCapacity(trip));
+        }
+    }
+
+    static Schedule readSchedule(DataInputStream in) throws IOException {
+        String[] routes = readNames(in);
+        String[] days = readNames(in);
+        String[] times = readNames(in);
+        int[] capacities = new int[routes.length * days.length * times.length];
+        for (int trip = 0; trip < capacities.length; trip++) {
+            capacities[trip] = in.readUnsignedByte();
+        }
+        try {
+            return new Schedule(routes, days, times, capacities);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad schedule from leader: " + e.getMessage(), e);
+        }
+    }
+
+    static void writeMutation(DataOutputStream out, Storage.Mutation m) throws IOException {
+        out.writeByte(m.type.ordinal());
+        out.writeInt(m.routeIndex);
+        out.writeInt(m.dayIndex);
+        out.writeInt(m.timeIndex);
+        out.writeInt(m.seatIndex);
+        out.writeUTF(text(m.name));
+        out.writeUTF(text(m.id));
+        out.writeUTF(text(m.phone));
+    }
+
+    static Storage.Mutation readMutation(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        if (type < 0 || type >= Storage.Mutation.Type.values().length) {
+            throw new IOException("Unknown mutation type " + type);
+        }
+        return new Storage.Mutation(Storage.Mutation.Type.values()[type], in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                in.readUTF(), in.readUTF(), in.readUTF());
+    }
+
+    static void writeRequests(DataOutputStream out, List<SeatRequest> requests) throws IOException {
+        out.writeInt(requests.size());
+        for (SeatRequest request : requests) {
+            out.writeInt(request.getRouteIndex());
+            out.writeInt(request.getDayIndex());
+            out.writeInt(request.getTimeIndex());
+            out.writeInt(request.getSeatIndex());
+            Passenger passenger = request.getPassenger();
+            out.writeBoolean(passenger != null);
+            if (passenger != null) {
+                out.writeUTF(text(passenger.getName()));
+                out.writeUTF(text(passenger.getId()));
+                out.writeUTF(text(passenger.getPhone()));
+            }
+        }
+    }
+
+    static List<SeatRequest> readRequests(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad request count " + count);
+        }
+        List<SeatRequest> requests = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            int r = in.readInt();
+            int d = in.readInt();
+            int t = in.readInt();
+            int s = in.readInt();
+            Passenger passenger = in.readBoolean() ? new Passenger(in.readUTF(), in.readUTF(), in.readUTF()) : null;
+            requests.add(new SeatRequest(r, d, t, s, passenger));
+        }
+        return requests;
+    }
+
+    // writeUTF can't carry null; the services treat "" as missing anyway.
+    static String text(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static void writeNames(DataOutputStream out, String[] names) throws IOException {
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(text(name));
+        }
+    }
+
+    private static String[] readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count <= 0 || count > 1 << 20) {
+            throw new IOException("Bad name count " + count);
+        }
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+}
@@ -1,12 +1,14 @@
 package com.busbooking.ui;
 
 import com.busbooking.core.AbstractBusService;
-import com.busbooking.core.BusService;
 import com.busbooking.exception.DuplicateCredentialsException;
 import com.busbooking.exception.InvalidSelectionException;
 import com.busbooking.exception.MissingCredentialsException;
 import com.busbooking.exception.SeatAlreadyBookedException;
-import com.busbooking.model.Seat;
+import com.busbooking.exception.WaitlistFullException;
+import com.busbooking.model.SeatChange;
+import com.busbooking.model.SeatRequest;
+import com.busbooking.model.TripSnapshot;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -18,18 +20,32 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.GridLayout;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
 
 public class BusBookingApp extends JFrame {
+    private static final Color DRIVER_COLOR = new Color(200, 220, 255);
+    private static final Color BOOKED_COLOR = new Color(255, 200, 200);
+    private static final Color FREE_COLOR = new Color(200, 255, 200);
+    private static final long HOLD_MILLIS = 5 * 60 * 1000;
+
     private final AbstractBusService service;
     private final JComboBox<String> routeBox;
     private final JComboBox<String> dayBox;
     private final JComboBox<String> timeBox;
     private final JPanel seatPanel;
+    private final JButton[] seatButtons;
+    private TripView shown;
+    private int refreshGeneration;
+    private int shownGeneration;
 
-    public BusBookingApp(BusService service) {
+    public BusBookingApp(AbstractBusService service) {
         super("Bus Seat Booking");
         this.service = service;
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -53,25 +69,31 @@ public class BusBookingApp extends JFrame {
         top.add(bookBtn);
         top.add(cancelBtn);
 
-        seatPanel = new JPanel(new GridLayout(11, 5, 10, 10));
+        seatPanel = new JPanel();
         seatPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        seatButtons = new JButton[service.getSchedule().getMaxCapacity()];
+        buildSeatGrid();
         JScrollPane scrollPane = new JScrollPane(seatPanel);
 
         add(top, BorderLayout.NORTH);
         add(scrollPane, BorderLayout.CENTER);
 
         refreshBtn.addActionListener(e -> refreshSeats());
+        routeBox.addActionListener(e -> refreshSeats());
+        dayBox.addActionListener(e -> refreshSeats());
+        timeBox.addActionListener(e -> refreshSeats());
         bookBtn.addActionListener(e -> bookSeat());
         cancelBtn.addActionListener(e -> cancelSeat());
 
+        service.getSeatChanges().subscribe(new SeatChangeSubscriber());
         refreshSeats();
     }
 
-    private void refreshSeats() {
-        seatPanel.removeAll();
-        int r = routeBox.getSelectedIndex();
-        int d = dayBox.getSelectedIndex();
-        int t = timeBox.getSelectedIndex();
+    // Builds the seat grid once, sized for the largest bus in the schedule; seats a
+    // trip doesn't have are hidden rather than removed.
+    private void buildSeatGrid() {
+        int rows = (seatButtons.length + 3) / 4;
+        seatPanel.setLayout(new GridLayout(rows + 1, 5, 10, 10));
 
         // Row 0: driver row (no seats), driver at top-right corner
         seatPanel.add(createSpacer());
@@ -80,13 +102,12 @@ public class BusBookingApp extends JFrame {
         seatPanel.add(createSpacer());
         JLabel driver = new JLabel("Driver", SwingConstants.CENTER);
         driver.setOpaque(true);
-        driver.setBackground(new Color(200, 220, 255));
+        driver.setBackground(DRIVER_COLOR);
         driver.setBorder(BorderFactory.createLineBorder(Color.GRAY));
         seatPanel.add(driver);
 
-        // Rows 1..10: 2 seats, aisle, 2 seats
-        int seatCounter = 0; // maps to seat indices 0..39
-        for (int row = 1; row <= 10; row++) {
+        // Rows 1..rows: 2 seats, aisle, 2 seats
+        for (int row = 1; row <= rows; row++) {
             for (int col = 0; col < 5; col++) {
                 if (col == 2) { // aisle
                     seatPanel.add(createSpacer());
@@ -94,29 +115,127 @@ public class BusBookingApp extends JFrame {
                 }
                 int seatInRow = col < 2 ? col : col - 1; // 0,1, -,2,3
                 int seatIndex = (row - 1) * 4 + seatInRow;
-                seatCounter = seatIndex;
-
+                if (seatIndex >= seatButtons.length) { // short last row
+                    seatPanel.add(createSpacer());
+                    continue;
+                }
                 JButton btn = new JButton(String.valueOf(seatIndex + 1));
                 btn.setHorizontalAlignment(SwingConstants.CENTER);
                 btn.setOpaque(true);
                 btn.setBorder(BorderFactory.createLineBorder(Color.GRAY));
+                btn.setBackground(Color.LIGHT_GRAY);
+                seatButtons[seatIndex] = btn;
+                seatPanel.add(btn);
+            }
+        }
+    }
+
+    // Loads the selected trip off the EDT, then updates only the buttons that changed.
+    private void refreshSeats() {
+        int r = routeBox.getSelectedIndex();
+        int d = dayBox.getSelectedIndex();
+        int t = timeBox.getSelectedIndex();
+        int request = ++refreshGeneration;
+        new SwingWorker<TripView, Void>() {
+            @Override
+            protected TripView doInBackground() throws Exception {
+                TripSnapshot snapshot = service.getTripSnapshot(r, d, t);
+                String[] names = new String[snapshot.getCapacity()];
+                long bits = snapshot.getOccupancy();
+                while (bits != 0) {
+                    int s = Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    names[s] = snapshot.getName(s);
+                }
+                return new TripView(service.getSchedule().tripIndex(r, d, t), snapshot.getOccupancy(), names);
+            }
+
+            @Override
+            protected void done() {
+                if (request != refreshGeneration) return; // selection moved on
+                shownGeneration = request;
                 try {
-                    boolean booked = service.isBooked(r, d, t, seatIndex);
-                    btn.setBackground(booked ? new Color(255, 200, 200) : new Color(200, 255, 200));
-                    if (booked) {
-                        Seat s = service.getSeat(r, d, t, seatIndex);
-                        btn.setToolTipText("Booked by: " + s.getName());
-                    } else {
-                        btn.setToolTipText("Available");
+                    showTrip(get());
+                } catch (InterruptedException | ExecutionException ex) {
+                    for (JButton btn : seatButtons) {
+                        btn.setBackground(Color.LIGHT_GRAY);
                     }
-                } catch (InvalidSelectionException ex) {
-                    btn.setBackground(Color.LIGHT_GRAY);
+                    shown = null;
                 }
-                seatPanel.add(btn);
             }
+        }.execute();
+    }
+
+    private void showTrip(TripView view) {
+        boolean sameTrip = shown != null && shown.trip == view.trip;
+        for (int s = 0; s < seatButtons.length; s++) {
+            JButton btn = seatButtons[s];
+            boolean exists = s < view.names.length;
+            if (btn.isVisible() != exists) btn.setVisible(exists);
+            if (!exists) continue;
+            boolean booked = (view.occupancy & (1L << s)) != 0;
+            if (sameTrip && booked == ((shown.occupancy & (1L << s)) != 0) &&
+                    Objects.equals(view.names[s], shown.names[s])) {
+                continue;
+            }
+            btn.setBackground(booked ? BOOKED_COLOR : FREE_COLOR);
+            btn.setToolTipText(booked ? "Booked by: " + view.names[s] : "Available");
+        }
+        shown = view;
+    }
+
+    // Patches the one affected button. If the change doesn't follow from what is shown
+    // (a load is still running, or events were dropped) the trip is reloaded instead.
+    private void applySeatChange(SeatChange change) {
+        if (shown == null || change.getTripIndex() != shown.trip) return;
+        int s = change.getSeatIndex();
+        long bit = 1L << s;
+        long expected = change.isBooked() ? shown.occupancy | bit : shown.occupancy & ~bit;
+        if (shownGeneration != refreshGeneration || expected != change.getOccupancy()) {
+            refreshSeats();
+            return;
+        }
+        String[] names = shown.names.clone();
+        names[s] = change.isBooked() ? change.getName() : null;
+        showTrip(new TripView(shown.trip, change.getOccupancy(), names));
+    }
+
+    // Takes one event at a time and hands it to the EDT.
+    private final class SeatChangeSubscriber implements Flow.Subscriber<SeatChange> {
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(SeatChange change) {
+            SwingUtilities.invokeLater(() -> applySeatChange(change));
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    // Occupancy and passenger names of one trip as last read from the service.
+    private static final class TripView {
+        final int trip;
+        final long occupancy;
+        final String[] names;
+
+        TripView(int trip, long occupancy, String[] names) {
+            this.trip = trip;
+            this.occupancy = occupancy;
+            this.names = names;
         }
-        seatPanel.revalidate();
-        seatPanel.repaint();
     }
 
     private JPanel createSpacer() {
@@ -129,10 +248,23 @@ public class BusBookingApp extends JFrame {
         int r = routeBox.getSelectedIndex();
         int d = dayBox.getSelectedIndex();
         int t = timeBox.getSelectedIndex();
-        String seatStr = JOptionPane.showInputDialog(this, "Enter seat number (1-40):");
+        int capacity = service.getSchedule().getCapacity(r, d, t);
+        try {
+            if (service.isFull(r, d, t)) {
+                offerWaitlist(r, d, t);
+                return;
+            }
+        } catch (InvalidSelectionException ex) {
+            JOptionPane.showMessageDialog(this, "Invalid selection", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        String seatStr = JOptionPane.showInputDialog(this, "Enter seat number (1-" + capacity + "):");
         if (seatStr == null || seatStr.isBlank()) return;
+        long hold = -1;
         try {
             int seatIndex = Integer.parseInt(seatStr) - 1;
+            // Keep the seat while the passenger details are typed in
+            hold = service.holdSeat(r, d, t, seatIndex, HOLD_MILLIS);
             JTextField nameField = new JTextField();
             JTextField idField = new JTextField();
             JTextField phoneField = new JTextField();
@@ -145,9 +277,10 @@ public class BusBookingApp extends JFrame {
             panel.add(phoneField);
             int result = JOptionPane.showConfirmDialog(this, panel, "Enter passenger details", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
             if (result == JOptionPane.OK_OPTION) {
-                service.bookSeat(r, d, t, seatIndex, nameField.getText(), idField.getText(), phoneField.getText());
+                service.bookHeldSeat(hold, nameField.getText(), idField.getText(), phoneField.getText())
+                        .whenComplete((ignored, failure) -> reportPersistenceFailure(failure));
+                hold = -1;
                 JOptionPane.showMessageDialog(this, "Seat booked successfully");
-                refreshSeats();
             }
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(this, "Invalid number", "Error", JOptionPane.ERROR_MESSAGE);
@@ -159,17 +292,50 @@ public class BusBookingApp extends JFrame {
             JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         } catch (InvalidSelectionException ex) {
             JOptionPane.showMessageDialog(this, "Invalid selection", "Error", JOptionPane.ERROR_MESSAGE);
+        } catch (IllegalStateException ex) {
+            // A follower terminal whose leader can't be reached
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            if (hold >= 0) service.releaseHold(hold);
+        }
+    }
+
+    // Full trips: the passenger can wait for the next cancelled seat instead.
+    private void offerWaitlist(int r, int d, int t) {
+        int answer = JOptionPane.showConfirmDialog(this, "This trip is full. Join the waitlist for the next free seat?",
+                "Trip full", JOptionPane.YES_NO_OPTION);
+        if (answer != JOptionPane.YES_OPTION) return;
+        JTextField nameField = new JTextField();
+        JTextField idField = new JTextField();
+        JTextField phoneField = new JTextField();
+        JPanel panel = new JPanel(new GridLayout(0, 1));
+        panel.add(new JLabel("Name:"));
+        panel.add(nameField);
+        panel.add(new JLabel("ID (10 Digit):"));
+        panel.add(idField);
+        panel.add(new JLabel("Phone:"));
+        panel.add(phoneField);
+        int result = JOptionPane.showConfirmDialog(this, panel, "Enter passenger details", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION) return;
+        try {
+            service.joinWaitlist(r, d, t, nameField.getText(), idField.getText(), phoneField.getText())
+                    .whenComplete((ignored, failure) -> reportPersistenceFailure(failure));
+            JOptionPane.showMessageDialog(this, "Added to the waitlist.\nYou get the next seat someone cancels.");
+        } catch (InvalidSelectionException | MissingCredentialsException | DuplicateCredentialsException | WaitlistFullException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
+    // The seat number is optional: left empty, the booking is found from the credentials.
     private void cancelSeat() {
         int r = routeBox.getSelectedIndex();
         int d = dayBox.getSelectedIndex();
         int t = timeBox.getSelectedIndex();
-        String seatStr = JOptionPane.showInputDialog(this, "Enter seat number (1-40) to cancel:");
-        if (seatStr == null || seatStr.isBlank()) return;
+        int capacity = service.getSchedule().getCapacity(r, d, t);
+        String seatStr = JOptionPane.showInputDialog(this, "Enter seat number (1-" + capacity + ") to cancel,\nor leave empty to find your booking:");
+        if (seatStr == null) return;
         try {
-            int seatIndex = Integer.parseInt(seatStr) - 1;
+            int seatIndex = seatStr.isBlank() ? -1 : Integer.parseInt(seatStr.trim()) - 1;
             JTextField idField = new JTextField();
             JTextField phoneField = new JTextField();
             JPanel panel = new JPanel(new GridLayout(0, 1));
@@ -179,9 +345,16 @@ public class BusBookingApp extends JFrame {
             panel.add(phoneField);
             int result = JOptionPane.showConfirmDialog(this, panel, "Verify credentials", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
             if (result != JOptionPane.OK_OPTION) return;
-            service.cancelSeat(r, d, t, seatIndex, idField.getText(), phoneField.getText());
-            JOptionPane.showMessageDialog(this, "Booking cancelled");
-            refreshSeats();
+            if (seatIndex < 0) {
+                SeatRequest booking = service.findBookingById(idField.getText());
+                service.cancelBooking(idField.getText(), phoneField.getText())
+                        .whenComplete((ignored, failure) -> reportPersistenceFailure(failure));
+                JOptionPane.showMessageDialog(this, "Booking cancelled: " + describe(booking));
+            } else {
+                service.cancelSeat(r, d, t, seatIndex, idField.getText(), phoneField.getText())
+                        .whenComplete((ignored, failure) -> reportPersistenceFailure(failure));
+                JOptionPane.showMessageDialog(this, "Booking cancelled");
+            }
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(this, "Invalid number", "Error", JOptionPane.ERROR_MESSAGE);
         } catch (InvalidSelectionException ex) {
@@ -190,5 +363,17 @@ public class BusBookingApp extends JFrame {
             JOptionPane.showMessageDialog(this, "Invalid credentials", "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
-}
 
+    private String describe(SeatRequest booking) {
+        if (booking == null) return "";
+        return service.getRouteNames()[booking.getRouteIndex()] + ", " + service.getDayNames()[booking.getDayIndex()] + " " +
+                service.getTimeSlots()[booking.getTimeIndex()] + ", seat " + (booking.getSeatIndex() + 1);
+    }
+
+    // Storage errors arrive on the persistence thread when writes are asynchronous.
+    private void reportPersistenceFailure(Throwable failure) {
+        if (failure == null) return;
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                "Could not save booking data: " + failure.getMessage(), "Error", JOptionPane.ERROR_MESSAGE));
+    }
+}
@@ -0,0 +1,103 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Current (version 2) snapshots round-trip bookings and waitlists; version 1 files, written
+// before waitlists existed, still load. A save that fails leaves the old snapshot in place.
+class BinaryStorageTest {
+    private final Schedule schedule = Schedule.defaultSchedule();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void versionTwoRoundTripsBookingsAndWaitlists() throws Exception {
+        Storage.BusServiceState state = new Storage.BusServiceState(schedule);
+        state.book(0, 0, 0, 0, "Ayesha", "1000000001", "01700000001");
+        state.book(7, 2, 9, 39, "Rafi Ünal", "1000000002", "01700000002");
+        int trip = schedule.tripIndex(3, 1, 4);
+        state.addToWaitlist(trip, "Nabila", "1000000003", "01700000003");
+        state.addToWaitlist(trip, "Tanvir", "1000000004", "01700000004");
+
+        BinaryStorage storage = new BinaryStorage(directory.resolve("bookings.bin").toString());
+        storage.save(state);
+        Storage.BusServiceState loaded = storage.load(schedule);
+
+        assertEquals("Ayesha", loaded.getName(0, 0, 0, 0));
+        assertEquals("1000000001", loaded.getId(0, 0, 0, 0));
+        assertEquals("Rafi Ünal", loaded.getName(7, 2, 9, 39));
+        assertEquals("01700000002", loaded.getPhone(7, 2, 9, 39));
+        assertFalse(loaded.isBooked(0, 0, 0, 1));
+        assertEquals(2, loaded.getWaitlistSize(trip));
+        assertEquals("Nabila", loaded.getWaitlistName(trip, 0));
+        assertEquals("1000000004", loaded.getWaitlistId(trip, 1));
+    }
+
+    @Test
+    void versionOneLoadsWithEmptyWaitlists() throws Exception {
+        Path file = directory.resolve("v1.bin");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeInt(0x42425354);
+            out.writeInt(1);
+            out.writeInt(schedule.getRouteCount());
+            out.writeInt(schedule.getDayCount());
+            out.writeInt(schedule.getTimeCount());
+            out.writeInt(schedule.getMaxCapacity());
+            int booked = schedule.tripIndex(2, 1, 3);
+            for (int trip = 0; trip < schedule.getTripCount(); trip++) {
+                out.writeLong(trip == booked ? 1L << 5 : 0);
+            }
+            writeString(out, "Ayesha");
+            writeString(out, "1000000001");
+            writeString(out, "01700000001");
+        }
+
+        Storage.BusServiceState loaded = new BinaryStorage(file.toString()).load(schedule);
+
+        assertTrue(loaded.isBooked(2, 1, 3, 5));
+        assertEquals("Ayesha", loaded.getName(2, 1, 3, 5));
+        assertEquals("01700000001", loaded.getPhone(2, 1, 3, 5));
+        for (int trip = 0; trip < schedule.getTripCount(); trip++) {
+            assertEquals(0, loaded.getWaitlistSize(trip));
+        }
+    }
+
+    @Test
+    void failedSaveKeepsPreviousSnapshot() throws Exception {
+        Path file = directory.resolve("bookings.bin");
+        BinaryStorage storage = new BinaryStorage(file.toString());
+        Storage.BusServiceState state = new Storage.BusServiceState(schedule);
+        state.book(1, 1, 1, 1, "Ayesha", "1000000001", "01700000001");
+        storage.save(state);
+        assertFalse(Files.exists(directory.resolve("bookings.bin.tmp")));
+
+        // A directory where the temp file would go makes the next save fail before the rename
+        Files.createDirectories(directory.resolve("bookings.bin.tmp").resolve("blocker"));
+        state.book(1, 1, 1, 2, "Rafi", "1000000002", "01700000002");
+        assertThrows(IOException.class, () -> storage.save(state));
+
+        Files.delete(directory.resolve("bookings.bin.tmp").resolve("blocker"));
+        Storage.BusServiceState loaded = storage.load(schedule);
+        assertTrue(loaded.isBooked(1, 1, 1, 1));
+        assertFalse(loaded.isBooked(1, 1, 1, 2));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
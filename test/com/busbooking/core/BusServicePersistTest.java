@@ -0,0 +1,105 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+// One thread saves snapshots in a loop while others book, against a storage slow enough
+// that a save and a booking's write are always waiting on each other. A lock-order
+// mistake between the service and its storage shows up as a hang.
+class BusServicePersistTest {
+    private static final int THREADS = 4;
+    private static final int BOOKINGS = 50; // per thread
+
+    private final Schedule schedule = Schedule.defaultSchedule();
+
+    @Test
+    void persistDoesNotDeadlockWithSyncBookings() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> run(DurabilityPolicy.sync()));
+    }
+
+    @Test
+    void persistDoesNotDeadlockWithGroupCommit() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> run(DurabilityPolicy.groupCommit(16, 1)));
+    }
+
+    private void run(DurabilityPolicy durability) throws Exception {
+        SlowStorage storage = new SlowStorage();
+        BusService service = new BusService(storage, schedule, durability);
+        AtomicBoolean done = new AtomicBoolean();
+        Thread saver = new Thread(() -> {
+            while (!done.get()) {
+                service.persist();
+            }
+        });
+        saver.start();
+        Thread[] bookers = new Thread[THREADS];
+        AtomicInteger failures = new AtomicInteger();
+        for (int w = 0; w < THREADS; w++) {
+            int worker = w;
+            bookers[w] = new Thread(() -> {
+                for (int i = 0; i < BOOKINGS; i++) {
+                    int n = worker * BOOKINGS + i;
+                    try {
+                        service.bookSeat(0, 0, n / 40, n % 40, "Passenger " + n,
+                                String.format("%010d", 1_000_000_000L + n), String.format("017%08d", n)).join();
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            bookers[w].start();
+        }
+        for (Thread booker : bookers) {
+            booker.join();
+        }
+        done.set(true);
+        saver.join();
+        service.persist();
+        service.close();
+
+        assertEquals(0, failures.get());
+        assertEquals(THREADS * BOOKINGS, service.getOccupancyStats().getBooked());
+        int saved = 0;
+        for (int n = 0; n < THREADS * BOOKINGS; n++) {
+            if (storage.saved.isBooked(0, 0, n / 40, n % 40)) saved++;
+        }
+        assertEquals(THREADS * BOOKINGS, saved, "final snapshot should hold every booking");
+    }
+
+    private static class SlowStorage implements Storage {
+        volatile BusServiceState saved;
+
+        @Override
+        public void save(BusServiceState state) {
+            pause();
+            saved = state.copy();
+        }
+
+        @Override
+        public void apply(List<Mutation> mutations, Supplier<BusServiceState> snapshot) {
+            pause();
+        }
+
+        @Override
+        public BusServiceState load(Schedule schedule) {
+            return new BusServiceState(schedule);
+        }
+
+        private void pause() {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.busbooking.core;
+
+import com.busbooking.exception.DuplicateCredentialsException;
+import com.busbooking.exception.SeatAlreadyBookedException;
+import com.busbooking.model.Schedule;
+import com.busbooking.model.Seat;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Many threads book and cancel on a few hot trips, drawing IDs and phones from small
+// shared pools so seats and credentials collide constantly. The test keeps its own view
+// of who holds what: an entry is claimed after a booking succeeds and dropped before its
+// cancel is sent, so a second successful booking of the same seat, ID or phone shows up
+// as a claim that is already taken.
+class ConcurrentBusServiceStressTest {
+    private static final int THREADS = 16;
+    private static final int ATTEMPTS = 5_000;
+    private static final int TRIPS = 4; // route 0, day 0, first time slots
+    private static final int CREDENTIALS = 400;
+
+    private final Schedule schedule = Schedule.defaultSchedule();
+    private final Map<String, String> seatOwners = new ConcurrentHashMap<>();
+    private final Set<String> idsInUse = ConcurrentHashMap.newKeySet();
+    private final Set<String> phonesInUse = ConcurrentHashMap.newKeySet();
+    private final LongAdder bookings = new LongAdder();
+    private final LongAdder seatConflicts = new LongAdder();
+    private final LongAdder credentialConflicts = new LongAdder();
+
+    @Test
+    void concurrentBookingsNeverDoubleBookSeatsOrCredentials() throws Exception {
+        ConcurrentBusService service = new ConcurrentBusService(memoryStorage(), schedule, DurabilityPolicy.groupCommit(64, 1));
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int w = 0; w < THREADS; w++) {
+            long seed = w;
+            workers.add(pool.submit(() -> {
+                start.await();
+                run(service, new Random(seed));
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        pool.shutdown();
+
+        Set<String> ids = new HashSet<>();
+        Set<String> phones = new HashSet<>();
+        int booked = 0;
+        int capacity = schedule.getCapacity(0, 0, 0);
+        for (int t = 0; t < TRIPS; t++) {
+            for (int s = 0; s < capacity; s++) {
+                Seat seat = service.getSeat(0, 0, t, s);
+                String key = t + "/" + s;
+                if (!seat.isBooked()) {
+                    assertNull(seatOwners.get(key), "seat " + key + " lost its booking");
+                    continue;
+                }
+                booked++;
+                assertEquals(seatOwners.get(key), seat.getId(), "seat " + key + " holder");
+                assertTrue(ids.add(seat.getId()), "ID " + seat.getId() + " booked twice");
+                assertTrue(phones.add(seat.getPhone()), "phone " + seat.getPhone() + " booked twice");
+            }
+        }
+        assertEquals(seatOwners.size(), booked);
+        assertEquals(booked, service.getOccupancyStats().getBooked());
+        assertTrue(bookings.sum() > 0 && seatConflicts.sum() > 0 && credentialConflicts.sum() > 0,
+                "workload should produce bookings and both kinds of conflict");
+        service.close();
+    }
+
+    private void run(ConcurrentBusService service, Random random) throws Exception {
+        int capacity = schedule.getCapacity(0, 0, 0);
+        List<String[]> mine = new ArrayList<>(); // trip, seat, id, phone
+        for (int i = 0; i < ATTEMPTS; i++) {
+            if (!mine.isEmpty() && random.nextInt(3) == 0) {
+                String[] held = mine.remove(random.nextInt(mine.size()));
+                seatOwners.remove(held[0] + "/" + held[1]);
+                idsInUse.remove(held[2]);
+                phonesInUse.remove(held[3]);
+                service.cancelSeat(0, 0, Integer.parseInt(held[0]), Integer.parseInt(held[1]), held[2], held[3]).join();
+                continue;
+            }
+            int trip = random.nextInt(TRIPS);
+            int seat = random.nextInt(capacity);
+            String id = String.format("%010d", 1_000_000_000L + random.nextInt(CREDENTIALS));
+            String phone = String.format("017%08d", random.nextInt(CREDENTIALS));
+            try {
+                service.bookSeat(0, 0, trip, seat, "Passenger " + i, id, phone).join();
+            } catch (SeatAlreadyBookedException e) {
+                seatConflicts.increment();
+                continue;
+            } catch (DuplicateCredentialsException e) {
+                credentialConflicts.increment();
+                continue;
+            }
+            bookings.increment();
+            assertNull(seatOwners.putIfAbsent(trip + "/" + seat, id), "seat " + trip + "/" + seat + " booked twice");
+            assertTrue(idsInUse.add(id), "ID " + id + " booked twice");
+            assertTrue(phonesInUse.add(phone), "phone " + phone + " booked twice");
+            mine.add(new String[] {String.valueOf(trip), String.valueOf(seat), id, phone});
+        }
+    }
+
+    private static Storage memoryStorage() {
+        return new Storage() {
+            @Override
+            public void save(BusServiceState state) {
+            }
+
+            @Override
+            public BusServiceState load(Schedule schedule) {
+                return new BusServiceState(schedule);
+            }
+        };
+    }
+}
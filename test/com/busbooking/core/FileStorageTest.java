@@ -0,0 +1,115 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Saved files carry a CRC32C per block of lines. Loading keeps every block that verifies,
+// drops the rest, and copies the damaged file to <file>.corrupt so it can be inspected
+// after the next save replaces it.
+class FileStorageTest {
+    private static final int BOOKINGS = 300; // three checksum blocks of up to 128 lines
+
+    private final Schedule schedule = Schedule.defaultSchedule();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void savedFileVerifiesAndRoundTrips() throws Exception {
+        FileStorage storage = new FileStorage(file().toString());
+        Storage.BusServiceState state = bookings();
+        state.addToWaitlist(schedule.tripIndex(1, 0, 0), "Tanvir, Jr.", "1000000999", "01700000999");
+        storage.save(state);
+
+        FileStorage.Verification verification = storage.verify();
+        assertTrue(verification.isChecksummed());
+        assertTrue(verification.isClean(), verification.toString());
+        assertEquals(BOOKINGS + 1, verification.getRecords());
+
+        Storage.BusServiceState loaded = storage.load(schedule);
+        for (int n = 0; n < BOOKINGS; n++) {
+            assertEquals("Passenger " + n, loaded.getName(0, 0, n / 40, n % 40));
+        }
+        assertEquals("Tanvir, Jr.", loaded.getWaitlistName(schedule.tripIndex(1, 0, 0), 0));
+        assertFalse(Files.exists(corrupt()));
+    }
+
+    @Test
+    void corruptBlockIsDroppedAndFileSalvaged() throws Exception {
+        FileStorage storage = new FileStorage(file().toString());
+        storage.save(bookings());
+        // Record 130 sits in the second block
+        String text = new String(Files.readAllBytes(file()), StandardCharsets.UTF_8);
+        Files.write(file(), text.replace("Passenger 130,", "Passenger 13O,").getBytes(StandardCharsets.UTF_8));
+        byte[] damaged = Files.readAllBytes(file());
+
+        FileStorage.Verification verification = storage.verify();
+        assertEquals(1, verification.getCorruptBlocks());
+        assertEquals(BOOKINGS - 128, verification.getRecords());
+
+        Storage.BusServiceState loaded = storage.load(schedule);
+        for (int n = 0; n < BOOKINGS; n++) {
+            boolean inBadBlock = n >= 128 && n < 256;
+            assertEquals(!inBadBlock, loaded.isBooked(0, 0, n / 40, n % 40), "booking " + n);
+        }
+        assertArrayEquals(damaged, Files.readAllBytes(corrupt()));
+    }
+
+    @Test
+    void truncatedFileKeepsCompleteBlocks() throws Exception {
+        FileStorage storage = new FileStorage(file().toString());
+        storage.save(bookings());
+        byte[] full = Files.readAllBytes(file());
+        // Cut inside the second block, as a crash while copying the file might
+        String text = new String(full, StandardCharsets.UTF_8);
+        int cut = text.indexOf("Passenger 200,");
+        Files.write(file(), text.substring(0, cut).getBytes(StandardCharsets.UTF_8));
+
+        FileStorage.Verification verification = storage.verify();
+        assertTrue(verification.isTruncated());
+        assertEquals(128, verification.getRecords());
+
+        Storage.BusServiceState loaded = storage.load(schedule);
+        assertTrue(loaded.isBooked(0, 0, 127 / 40, 127 % 40));
+        assertFalse(loaded.isBooked(0, 0, 128 / 40, 128 % 40));
+        assertTrue(Files.exists(corrupt()));
+    }
+
+    @Test
+    void fileWithoutHeaderLoadsUnverified() throws Exception {
+        Files.write(file(), "0,0,0,5,Ayesha,1000000001,01700000001\n".getBytes(StandardCharsets.UTF_8));
+        FileStorage storage = new FileStorage(file().toString());
+
+        FileStorage.Verification verification = storage.verify();
+        assertFalse(verification.isChecksummed());
+        assertEquals(1, verification.getRecords());
+        assertEquals("Ayesha", storage.load(schedule).getName(0, 0, 0, 5));
+        assertFalse(Files.exists(corrupt()));
+    }
+
+    private Storage.BusServiceState bookings() {
+        Storage.BusServiceState state = new Storage.BusServiceState(schedule);
+        for (int n = 0; n < BOOKINGS; n++) {
+            state.book(0, 0, n / 40, n % 40, "Passenger " + n, String.format("%010d", 1_000_000_000L + n), String.format("017%08d", n));
+        }
+        return state;
+    }
+
+    private Path file() {
+        return directory.resolve("bookings.txt");
+    }
+
+    private Path corrupt() {
+        return directory.resolve("bookings.txt.corrupt");
+    }
+}
@@ -0,0 +1,127 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Records are replayed over the snapshot on load. A record cut short by a crash, or one
+// whose checksum fails, ends the replay and is truncated away along with everything after
+// it, so the next append starts on a clean record boundary.
+class JournalStorageTest {
+    private final Schedule schedule = Schedule.defaultSchedule();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysRecordsOverSnapshot() throws Exception {
+        JournalStorage storage = open();
+        Storage.BusServiceState state = storage.load(schedule);
+        append(storage, state, book(0, "Ayesha", 1));
+        append(storage, state, book(1, "Rafi", 2), book(2, "Nabila", 3));
+        append(storage, state, Storage.Mutation.cancel(0, 0, 0, 0));
+        storage.close();
+
+        Storage.BusServiceState loaded = open().load(schedule);
+        assertFalse(loaded.isBooked(0, 0, 0, 0));
+        assertEquals("Rafi", loaded.getName(0, 0, 0, 1));
+        assertEquals("Nabila", loaded.getName(0, 0, 0, 2));
+        assertFalse(Files.exists(directory.resolve("bookings.txt")), "snapshot written before compaction");
+    }
+
+    @Test
+    void tornTailIsTruncatedAndAppendingResumes() throws Exception {
+        JournalStorage storage = open();
+        Storage.BusServiceState state = storage.load(schedule);
+        append(storage, state, book(0, "Ayesha", 1));
+        long firstRecordEnd = Files.size(journal());
+        append(storage, state, book(1, "Rafi", 2), book(2, "Nabila", 3));
+        storage.close();
+        // A crash part-way through the second record's write
+        try (RandomAccessFile raf = new RandomAccessFile(journal().toFile(), "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        storage = open();
+        state = storage.load(schedule);
+        assertTrue(state.isBooked(0, 0, 0, 0));
+        assertFalse(state.isBooked(0, 0, 0, 1), "half of a torn batch was applied");
+        assertFalse(state.isBooked(0, 0, 0, 2), "half of a torn batch was applied");
+        assertEquals(firstRecordEnd, Files.size(journal()));
+
+        append(storage, state, book(3, "Tanvir", 4));
+        storage.close();
+        Storage.BusServiceState loaded = open().load(schedule);
+        assertTrue(loaded.isBooked(0, 0, 0, 0));
+        assertEquals("Tanvir", loaded.getName(0, 0, 0, 3));
+    }
+
+    @Test
+    void corruptRecordEndsReplay() throws Exception {
+        JournalStorage storage = open();
+        Storage.BusServiceState state = storage.load(schedule);
+        append(storage, state, book(0, "Ayesha", 1));
+        long secondRecordStart = Files.size(journal());
+        append(storage, state, book(1, "Rafi", 2));
+        append(storage, state, book(2, "Nabila", 3));
+        storage.close();
+        try (RandomAccessFile raf = new RandomAccessFile(journal().toFile(), "rw")) {
+            long at = secondRecordStart + 12; // inside the payload, past size and checksum
+            raf.seek(at);
+            int b = raf.read();
+            raf.seek(at);
+            raf.write(b ^ 0xFF);
+        }
+
+        Storage.BusServiceState loaded = open().load(schedule);
+        assertTrue(loaded.isBooked(0, 0, 0, 0));
+        assertFalse(loaded.isBooked(0, 0, 0, 1));
+        assertFalse(loaded.isBooked(0, 0, 0, 2), "replay continued past a corrupt record");
+        assertEquals(secondRecordStart, Files.size(journal()));
+    }
+
+    @Test
+    void compactionSavesSnapshotAndEmptiesJournal() throws Exception {
+        JournalStorage storage = new JournalStorage(new FileStorage(directory.resolve("bookings.txt").toString()), journal().toString(), 2);
+        Storage.BusServiceState state = storage.load(schedule);
+        append(storage, state, book(0, "Ayesha", 1));
+        append(storage, state, book(1, "Rafi", 2));
+        storage.close();
+
+        assertEquals(0, Files.size(journal()));
+        Storage.BusServiceState snapshot = new FileStorage(directory.resolve("bookings.txt").toString()).load(schedule);
+        assertTrue(snapshot.isBooked(0, 0, 0, 0));
+        assertTrue(snapshot.isBooked(0, 0, 0, 1));
+    }
+
+    private JournalStorage open() {
+        return new JournalStorage(new FileStorage(directory.resolve("bookings.txt").toString()), journal().toString());
+    }
+
+    private Path journal() {
+        return directory.resolve("bookings.journal");
+    }
+
+    // Applies to the in-memory state first, as the services do, then journals the batch.
+    private static void append(Storage storage, Storage.BusServiceState state, Storage.Mutation... mutations) throws Exception {
+        List<Storage.Mutation> batch = Arrays.asList(mutations);
+        for (Storage.Mutation m : batch) {
+            m.applyTo(state);
+        }
+        storage.apply(batch, () -> state);
+    }
+
+    private static Storage.Mutation book(int seat, String name, int n) {
+        return Storage.Mutation.book(0, 0, 0, seat, name, String.format("%010d", 1_000_000_000L + n), String.format("017%08d", n));
+    }
+}
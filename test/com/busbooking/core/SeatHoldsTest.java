@@ -0,0 +1,83 @@
+package com.busbooking.core;
+
+import com.busbooking.exception.SeatAlreadyBookedException;
+import com.busbooking.model.Schedule;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A held seat is kept from everyone else until its hold is used, released or runs out;
+// the expiry thread then frees it without any call into the service.
+class SeatHoldsTest {
+    private static final long WAIT_MILLIS = 5_000;
+
+    private final Schedule schedule = Schedule.defaultSchedule();
+
+    @Test
+    void expiredHoldFreesSeat() throws Exception {
+        for (AbstractBusService service : services()) {
+            String name = service.getClass().getSimpleName();
+            long shortHold = service.holdSeat(0, 0, 0, 3, 100);
+            service.holdSeat(0, 0, 0, 4, 60_000);
+            assertTrue(service.isHeld(0, 0, 0, 3), name);
+            assertThrows(SeatAlreadyBookedException.class,
+                    () -> service.bookSeat(0, 0, 0, 3, "Rafi", "1000000002", "01700000002"));
+
+            long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+            while (service.isHeld(0, 0, 0, 3) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+
+            assertFalse(service.isHeld(0, 0, 0, 3), name + ": hold did not expire");
+            assertTrue(service.isHeld(0, 0, 0, 4), name + ": longer hold expired with it");
+            assertEquals(1, service.getHoldCount());
+            assertThrows(SeatAlreadyBookedException.class,
+                    () -> service.bookHeldSeat(shortHold, "Ayesha", "1000000001", "01700000001"));
+            service.bookSeat(0, 0, 0, 3, "Rafi", "1000000002", "01700000002").join();
+            assertTrue(service.getSeat(0, 0, 0, 3).isBooked());
+            service.close();
+        }
+    }
+
+    @Test
+    void liveHoldIsBookedOrReleasedOnce() throws Exception {
+        for (AbstractBusService service : services()) {
+            long booked = service.holdSeat(0, 0, 0, 0, 60_000);
+            long released = service.holdSeat(0, 0, 0, 1, 60_000);
+            assertEquals(0b11, service.getHeldSeats(0, 0, 0));
+
+            service.bookHeldSeat(booked, "Ayesha", "1000000001", "01700000001").join();
+            assertTrue(service.releaseHold(released));
+            assertFalse(service.releaseHold(released));
+            assertFalse(service.releaseHold(booked), "a hold that was booked can't be released");
+
+            assertEquals(0, service.getHeldSeats(0, 0, 0));
+            assertEquals(0, service.getHoldCount());
+            assertEquals("Ayesha", service.getSeat(0, 0, 0, 0).getName());
+            assertFalse(service.getSeat(0, 0, 0, 1).isBooked());
+            service.close();
+        }
+    }
+
+    private List<AbstractBusService> services() {
+        return List.of(new BusService(memoryStorage(), schedule), new ConcurrentBusService(memoryStorage(), schedule));
+    }
+
+    private static Storage memoryStorage() {
+        return new Storage() {
+            @Override
+            public void save(BusServiceState state) {
+            }
+
+            @Override
+            public BusServiceState load(Schedule schedule) {
+                return new BusServiceState(schedule);
+            }
+        };
+    }
+}
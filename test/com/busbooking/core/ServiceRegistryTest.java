@@ -0,0 +1,128 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Over budget, the least recently acquired unleased tenants are persisted, closed and
+// dropped. A tenant acquired again while its evicted service is still flushing is only
+// loaded once that flush is done.
+class ServiceRegistryTest {
+    private final Schedule schedule = Schedule.defaultSchedule();
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final long serviceBytes = new ConcurrentBusService(memoryStorage(), schedule).estimateMemoryBytes();
+
+    private volatile CountDownLatch persisting = new CountDownLatch(0);
+    private volatile CountDownLatch allowPersist = new CountDownLatch(0);
+
+    @Test
+    void evictsLeastRecentlyAcquiredUnleasedTenant() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry(this::load, serviceBytes * 5 / 2);
+        registry.acquire("a").close();
+        registry.acquire("b").close();
+        registry.acquire("a").close(); // b is now the coldest
+        try (ServiceRegistry.Lease c = registry.acquire("c")) {
+            assertEquals(List.of("a", "c"), registry.getLoadedTenants());
+        }
+        assertEquals(1, registry.getEvictionCount());
+        assertEquals(List.of("load a", "load b", "load c", "persist b", "close b"), events);
+
+        // The evicted tenant comes back with a fresh load and pushes out the next coldest
+        registry.acquire("b").close();
+        assertEquals(List.of("c", "b"), registry.getLoadedTenants());
+        assertEquals(4, registry.getLoadCount());
+        registry.close();
+        assertFalse(registry.isLoaded("b"));
+    }
+
+    @Test
+    void leasedTenantsAreNotEvicted() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry(this::load, serviceBytes * 3 / 2);
+        try (ServiceRegistry.Lease a = registry.acquire("a"); ServiceRegistry.Lease b = registry.acquire("b")) {
+            assertTrue(registry.isLoaded("a") && registry.isLoaded("b"));
+            assertEquals(0, registry.getEvictionCount());
+            assertTrue(registry.getEstimatedBytes() > registry.getBudgetBytes());
+        }
+        // Releasing the leases lets the registry get back under budget
+        assertEquals(1, registry.getEvictionCount());
+        assertEquals(1, registry.getLoadedTenants().size());
+        registry.close();
+    }
+
+    @Test
+    void reloadWaitsForEvictedServiceToFlush() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry(this::load, serviceBytes * 3 / 2);
+        registry.acquire("a").close();
+        persisting = new CountDownLatch(1);
+        allowPersist = new CountDownLatch(1);
+
+        // Loading b evicts a, whose persist is held up until allowed
+        CompletableFuture<ServiceRegistry.Lease> b = CompletableFuture.supplyAsync(() -> acquire(registry, "b"));
+        assertTrue(persisting.await(10, TimeUnit.SECONDS));
+        CompletableFuture<ServiceRegistry.Lease> a = CompletableFuture.supplyAsync(() -> acquire(registry, "a"));
+        Thread.sleep(200);
+        assertFalse(a.isDone(), "a was reloaded while its evicted service was still flushing");
+        assertEquals(2, registry.getLoadCount());
+
+        allowPersist.countDown();
+        a.get(10, TimeUnit.SECONDS).close();
+        b.get(10, TimeUnit.SECONDS).close();
+        int closed = events.indexOf("close a");
+        assertTrue(closed >= 0 && closed < events.lastIndexOf("load a"), events.toString());
+        registry.close();
+    }
+
+    private ServiceRegistry.Lease acquire(ServiceRegistry registry, String tenant) {
+        try {
+            return registry.acquire(tenant);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private AbstractBusService load(String tenant) {
+        events.add("load " + tenant);
+        return new ConcurrentBusService(memoryStorage(), schedule) {
+            @Override
+            public void persist() {
+                persisting.countDown();
+                try {
+                    allowPersist.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add("persist " + tenant);
+                super.persist();
+            }
+
+            @Override
+            public void close() {
+                events.add("close " + tenant);
+                super.close();
+            }
+        };
+    }
+
+    private static Storage memoryStorage() {
+        return new Storage() {
+            @Override
+            public void save(BusServiceState state) {
+            }
+
+            @Override
+            public BusServiceState load(Schedule schedule) {
+                return new BusServiceState(schedule);
+            }
+        };
+    }
+}
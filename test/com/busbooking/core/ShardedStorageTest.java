@@ -0,0 +1,74 @@
+package com.busbooking.core;
+
+import com.busbooking.model.Schedule;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// apply() works from the shard files alone: only the shards a batch touches are read and
+// rewritten, and the service's state is never asked for.
+class ShardedStorageTest {
+    private static final Supplier<Storage.BusServiceState> NO_SNAPSHOT = () -> {
+        throw new AssertionError("apply should not take a snapshot");
+    };
+
+    private final Schedule schedule = Schedule.defaultSchedule();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void applyRewritesOnlyTouchedShards() throws Exception {
+        ShardedStorage storage = new ShardedStorage(directory.toString());
+        storage.load(schedule);
+        storage.apply(Arrays.asList(
+                Storage.Mutation.book(0, 1, 2, 3, "Ayesha", "1000000001", "01700000001"),
+                Storage.Mutation.book(2, 0, 0, 0, "Rafi", "1000000002", "01700000002")), NO_SNAPSHOT);
+        storage.apply(List.of(
+                Storage.Mutation.book(0, 0, 0, 5, "Nabila", "1000000003", "01700000003"),
+                Storage.Mutation.waitlist(0, 0, 0, "Tanvir", "1000000004", "01700000004")), NO_SNAPSHOT);
+        storage.apply(List.of(Storage.Mutation.cancel(2, 0, 0, 0)), NO_SNAPSHOT);
+
+        assertTrue(new File(directory.toFile(), "route-0.txt").isFile());
+        assertTrue(new File(directory.toFile(), "route-2.txt").isFile());
+        assertFalse(new File(directory.toFile(), "route-1.txt").exists(), "untouched shard was written");
+
+        Storage.BusServiceState loaded = new ShardedStorage(directory.toString()).load(schedule);
+        assertEquals("Ayesha", loaded.getName(0, 1, 2, 3));
+        assertEquals("1000000003", loaded.getId(0, 0, 0, 5));
+        assertFalse(loaded.isBooked(2, 0, 0, 0));
+        assertEquals(1, loaded.getWaitlistSize(schedule.tripIndex(0, 0, 0)));
+        assertEquals("Tanvir", loaded.getWaitlistName(schedule.tripIndex(0, 0, 0), 0));
+    }
+
+    // Shards are written one file at a time, so atomic cross-shard batches need the journal
+    // in front; its record holds the whole batch until the shards are compacted.
+    @Test
+    void journalKeepsCrossShardBatchTogether() throws Exception {
+        String journal = directory.resolve("bookings.journal").toString();
+        Storage storage = new JournalStorage(new ShardedStorage(directory.resolve("shards").toString()), journal);
+        Storage.BusServiceState state = storage.load(schedule);
+        List<Storage.Mutation> batch = Arrays.asList(
+                Storage.Mutation.book(1, 0, 0, 0, "Ayesha", "1000000001", "01700000001"),
+                Storage.Mutation.book(5, 2, 9, 1, "Rafi", "1000000002", "01700000002"));
+        for (Storage.Mutation m : batch) {
+            m.applyTo(state);
+        }
+        storage.apply(batch, () -> state);
+        storage.close();
+
+        Storage.BusServiceState loaded = new JournalStorage(new ShardedStorage(directory.resolve("shards").toString()), journal)
+                .load(schedule);
+        assertTrue(loaded.isBooked(1, 0, 0, 0));
+        assertTrue(loaded.isBooked(5, 2, 9, 1));
+    }
+}
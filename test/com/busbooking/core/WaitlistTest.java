@@ -0,0 +1,108 @@
+package com.busbooking.core;
+
+import com.busbooking.exception.InvalidSelectionException;
+import com.busbooking.model.Passenger;
+import com.busbooking.model.Schedule;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A cancelled seat on a full trip goes to the head of its waitlist in the same step, for
+// both service implementations. Only booked seats make a trip full.
+class WaitlistTest {
+    private static final int SEATS = 4;
+
+    private final Schedule schedule = new Schedule(new String[] {"A to B"}, new String[] {"ST"}, new String[] {"08:00"}, SEATS);
+
+    @Test
+    void cancelPromotesHeadOfWaitlist() throws Exception {
+        for (AbstractBusService service : services()) {
+            fill(service);
+            service.joinWaitlist(0, 0, 0, "Nabila", id(10), phone(10)).join();
+            service.joinWaitlist(0, 0, 0, "Tanvir", id(11), phone(11)).join();
+
+            service.cancelSeat(0, 0, 0, 2, id(2), phone(2)).join();
+
+            assertEquals("Nabila", service.getSeat(0, 0, 0, 2).getName(), service.getClass().getSimpleName());
+            assertEquals(id(10), service.getSeat(0, 0, 0, 2).getId());
+            List<Passenger> waiting = service.getWaitlist(0, 0, 0);
+            assertEquals(1, waiting.size());
+            assertEquals("Tanvir", waiting.get(0).getName());
+            assertEquals(SEATS, service.getOccupancyStats().getBooked());
+            service.close();
+        }
+    }
+
+    @Test
+    void passengerWhoBookedElsewhereIsSkipped() throws Exception {
+        Schedule twoTrips = new Schedule(new String[] {"A to B"}, new String[] {"ST"}, new String[] {"08:00", "09:00"}, SEATS);
+        for (AbstractBusService service : services(twoTrips)) {
+            fill(service);
+            service.joinWaitlist(0, 0, 0, "Nabila", id(10), phone(10)).join();
+            service.joinWaitlist(0, 0, 0, "Tanvir", id(11), phone(11)).join();
+            service.bookSeat(0, 0, 1, 0, "Nabila", id(10), phone(10)).join();
+
+            service.cancelSeat(0, 0, 0, 0, id(0), phone(0)).join();
+
+            assertEquals("Tanvir", service.getSeat(0, 0, 0, 0).getName(), service.getClass().getSimpleName());
+            assertTrue(service.getWaitlist(0, 0, 0).isEmpty());
+            service.close();
+        }
+    }
+
+    @Test
+    void heldSeatsDoNotMakeTripFull() throws Exception {
+        for (AbstractBusService service : services()) {
+            for (int s = 0; s < SEATS - 1; s++) {
+                service.bookSeat(0, 0, 0, s, "Passenger " + s, id(s), phone(s)).join();
+            }
+            service.holdSeat(0, 0, 0, SEATS - 1, 60_000);
+
+            assertEquals(0, service.getFreeSeatCount(0, 0, 0));
+            assertFalse(service.isFull(0, 0, 0), service.getClass().getSimpleName());
+            assertThrows(InvalidSelectionException.class, () -> service.joinWaitlist(0, 0, 0, "Nabila", id(10), phone(10)));
+            service.close();
+        }
+    }
+
+    private List<AbstractBusService> services() {
+        return services(schedule);
+    }
+
+    private static List<AbstractBusService> services(Schedule schedule) {
+        return List.of(new BusService(memoryStorage(), schedule), new ConcurrentBusService(memoryStorage(), schedule));
+    }
+
+    private static void fill(AbstractBusService service) throws Exception {
+        for (int s = 0; s < SEATS; s++) {
+            service.bookSeat(0, 0, 0, s, "Passenger " + s, id(s), phone(s)).join();
+        }
+        assertTrue(service.isFull(0, 0, 0));
+    }
+
+    private static String id(int n) {
+        return String.format("%010d", 1_000_000_000L + n);
+    }
+
+    private static String phone(int n) {
+        return String.format("017%08d", n);
+    }
+
+    private static Storage memoryStorage() {
+        return new Storage() {
+            @Override
+            public void save(BusServiceState state) {
+            }
+
+            @Override
+            public BusServiceState load(Schedule schedule) {
+                return new BusServiceState(schedule);
+            }
+        };
+    }
+}